@@ -0,0 +1,384 @@
+package unimelb.bitbox;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import unimelb.bitbox.util.BufferPool;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+
+/**
+ * A FILE_BYTES_RESPONSE whose file content travels as raw bytes after the message, rather
+ * than Base64 encoded in its "content" field. Frames are only sent to peers that advertised
+ * {@link PeerFeatures#binaryFrames}, every other peer gets the JSON message as before.
+ * <br/>
+ * A frame is a zero byte, which never starts a JSON message, then the length of the header,
+ * the header, the length of the payload and the payload. Lengths are 4 byte big endian
+ * integers and the header is the UTF-8 JSON message without its "content" field. Over TCP a
+ * frame sits between newline terminated JSON messages, over UDP a frame is a whole datagram.
+ */
+public class BinaryFrame {
+	public static final byte MARKER = 0;
+	// room in a frame for the header, and for a compressed payload to come out a little longer than its block
+	private static final long SLACK = 1<<16;
+
+	/**
+	 * The message, without the file content.
+	 */
+	public final Document header;
+	/**
+	 * The file content, from its position up to its limit, or null for a plain JSON message
+	 * or a frame read in bulk.
+	 */
+	public final ByteBuffer payload;
+	/**
+	 * For a frame read in bulk by a {@link StreamReader}, the file content still in the stream,
+	 * otherwise null. It has to be read before the next message, whatever is left is skipped.
+	 */
+	public final ReadableByteChannel body;
+	/**
+	 * The length of the body.
+	 */
+	public final long bodyLength;
+	// true if the payload is from the BufferPool
+	private final boolean pooled;
+
+	/**
+	 * @param header The message.
+	 * @param payload The file content, from its position up to its limit.
+	 */
+	public BinaryFrame(Document header, ByteBuffer payload) {
+		this(header, payload, false);
+	}
+
+	private BinaryFrame(Document header, ByteBuffer payload, boolean pooled) {
+		this.header=header;
+		this.payload=payload;
+		this.body=null;
+		this.bodyLength=0;
+		this.pooled=pooled;
+	}
+
+	private BinaryFrame(Document header, ByteBuffer payload, StreamReader.Body body) {
+		this.header=header;
+		this.payload=payload;
+		this.body=body;
+		this.bodyLength=body.remaining;
+		this.pooled=false;
+	}
+
+	/**
+	 * @param payload The file content, in a buffer from the {@link BufferPool} that the frame
+	 * now owns, see {@link #release()}.
+	 */
+	public static BinaryFrame pooled(Document header, ByteBuffer payload) {
+		return new BinaryFrame(header, payload, true);
+	}
+
+	/**
+	 * Give the payload back to the {@link BufferPool} once the frame has been sent, if it came
+	 * from there. The frame must not be used after this.
+	 */
+	public void release() {
+		if(pooled) BufferPool.release(payload);
+	}
+
+	// true if release() gives the payload back to the pool, so whoever releases it may keep it instead
+	boolean pooled() {
+		return pooled;
+	}
+
+	/**
+	 * Write the frame to a stream. The payload is written straight from its buffer.
+	 * The caller must keep other writers off the stream until this returns.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] json = header.toJson().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer head = ByteBuffer.allocate(9+json.length);
+		head.put(MARKER).putInt(json.length).put(json).putInt(payload.remaining());
+		out.write(head.array());
+		if(payload.hasArray()) {
+			out.write(payload.array(), payload.arrayOffset()+payload.position(), payload.remaining());
+		} else {
+			byte[] bytes = new byte[payload.remaining()];
+			payload.duplicate().get(bytes);
+			out.write(bytes);
+		}
+		out.flush();
+	}
+
+	/**
+	 * The same as {@link #writeTo(OutputStream)}, for a channel, which writes a direct payload
+	 * without copying it.
+	 * @param out The channel, in blocking mode.
+	 */
+	public void writeTo(WritableByteChannel out) throws IOException {
+		ByteBuffer head = head();
+		while(head.hasRemaining()) out.write(head);
+		ByteBuffer bytes = payload.duplicate();
+		while(bytes.hasRemaining()) out.write(bytes);
+	}
+
+	/**
+	 * @return Everything in the frame before the payload, ready to be read.
+	 */
+	ByteBuffer head() {
+		byte[] json = header.toJson().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer head = ByteBuffer.allocate(9+json.length);
+		head.put(MARKER).putInt(json.length).put(json).putInt(payload.remaining());
+		head.flip();
+		return head;
+	}
+
+	/**
+	 * @return The frame as the contents of a single datagram.
+	 */
+	public byte[] toDatagram() {
+		byte[] json = header.toJson().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer datagram = ByteBuffer.allocate(9+json.length+payload.remaining());
+		datagram.put(MARKER).putInt(json.length).put(json).putInt(payload.remaining());
+		datagram.put(payload.duplicate());
+		return datagram.array();
+	}
+
+	/**
+	 * @return The longest header or payload taken from a peer, the largest block any peer
+	 * is asked for, see maximumBlockSize, and some slack.
+	 */
+	static int maximumLength() {
+		long blockSize = Long.parseLong(Configuration.getConfigurationValue("blockSize", "5000"));
+		long maximumBlockSize = Long.parseLong(Configuration.getConfigurationValue("maximumBlockSize", "1048576"));
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(blockSize, maximumBlockSize)+SLACK);
+	}
+
+	/**
+	 * @return True if the datagram holds a frame rather than a JSON message.
+	 */
+	public static boolean isFrame(byte[] data, int length) {
+		return length>0 && data[0]==MARKER;
+	}
+
+	/**
+	 * @param data The datagram, see {@link #isFrame(byte[], int)}.
+	 * @param length The length of the datagram.
+	 * @return The frame, its payload is a view of the datagram rather than a copy.
+	 * @throws IOException If the datagram is not a complete frame.
+	 */
+	public static BinaryFrame fromDatagram(byte[] data, int length) throws IOException {
+		ByteBuffer datagram = ByteBuffer.wrap(data, 0, length);
+		try {
+			datagram.get();
+			int headerLength = datagram.getInt();
+			String json = new String(data, datagram.position(), headerLength, StandardCharsets.UTF_8);
+			datagram.position(datagram.position()+headerLength);
+			int payloadLength = datagram.getInt();
+			if(payloadLength>datagram.remaining()) throw new IOException("truncated frame");
+			ByteBuffer payload = ByteBuffer.wrap(data, datagram.position(), payloadLength).slice();
+			return new BinaryFrame(Document.parse(json), payload);
+		} catch (RuntimeException e) {
+			throw new IOException("malformed frame", e);
+		}
+	}
+
+	/**
+	 * Send a frame whose payload comes straight from a file, without copying it through the
+	 * heap where the platform allows, see {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 * The caller must keep other writers off the channel until this returns.
+	 * @param header The message.
+	 * @param file The file to send from.
+	 * @param position The position of the payload in the file.
+	 * @param length The length of the payload. If the file has become shorter the rest is sent
+	 * as zeros, which keeps the stream in step and fails the receiver's final check.
+	 * @param out The channel to send on, in blocking mode.
+	 */
+	public static void transfer(Document header, FileChannel file, long position, long length, WritableByteChannel out) throws IOException {
+		byte[] json = header.toJson().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer head = ByteBuffer.allocate(9+json.length);
+		head.put(MARKER).putInt(json.length).put(json).putInt((int) length);
+		head.flip();
+		while(head.hasRemaining()) out.write(head);
+		long sent = 0;
+		while(sent<length) {
+			long n = file.transferTo(position+sent, length-sent, out);
+			if(n<=0) break;
+			sent += n;
+		}
+		if(sent<length) {
+			ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(length-sent, 1<<16));
+			while(sent<length) {
+				zeros.clear();
+				zeros.limit((int) Math.min(length-sent, zeros.capacity()));
+				sent += out.write(zeros);
+			}
+		}
+	}
+
+	/**
+	 * Reads a TCP stream that holds both newline terminated JSON messages and frames.
+	 * The stream is read as a channel, a socket made from a channel must not be read through
+	 * its input stream while other threads write to it. The payload of a frame is reused for
+	 * the next one, it is only valid until the next message is read.
+	 */
+	public static class StreamReader {
+		private final ReadableByteChannel channel;
+		private final boolean bulk;
+		// always ready to be read from
+		private final ByteBuffer buffer = ByteBuffer.allocate(1<<16);
+		private byte[] line = new byte[1024];
+		private Body body;
+		// the payload of the last frame, reused for the next
+		private ByteBuffer payload = ByteBuffer.allocate(0);
+		private final int maximumLength = maximumLength();
+
+		/**
+		 * @param channel The stream.
+		 * @param bulk True to leave frame payloads in the stream for the caller to read, see {@link BinaryFrame#body}.
+		 */
+		public StreamReader(ReadableByteChannel channel, boolean bulk) {
+			this.channel=channel;
+			this.bulk=bulk;
+			buffer.flip();
+		}
+
+		/**
+		 * @return The next message. A JSON message comes back as a frame without a payload.
+		 * @throws EOFException If the other peer closed the connection.
+		 */
+		public BinaryFrame read() throws IOException {
+			if(body!=null) {
+				body.skip();
+				body = null;
+			}
+			if(!buffer.hasRemaining()) fill();
+			if(buffer.get(buffer.position())==MARKER) {
+				buffer.get();
+				byte[] json = new byte[readLength()];
+				readFully(json, 0, json.length);
+				int payloadLength = readLength();
+				Document header = Document.parse(new String(json, StandardCharsets.UTF_8));
+				if(bulk) {
+					body = new Body(payloadLength);
+					return new BinaryFrame(header, null, body);
+				}
+				if(payload.capacity()<payloadLength) payload = ByteBuffer.allocate(payloadLength);
+				payload.clear();
+				payload.limit(payloadLength);
+				readFully(payload.array(), 0, payloadLength);
+				return new BinaryFrame(header, payload.duplicate());
+			}
+			int count = 0;
+			while(true) {
+				if(!buffer.hasRemaining()) fill();
+				byte[] bytes = buffer.array();
+				int start = buffer.arrayOffset()+buffer.position();
+				int end = buffer.arrayOffset()+buffer.limit();
+				int newline = start;
+				while(newline<end && bytes[newline]!='\n') newline++;
+				int length = newline-start;
+				if(count+length>line.length) {
+					byte[] bigger = new byte[Math.max(line.length*2, count+length)];
+					System.arraycopy(line, 0, bigger, 0, count);
+					line = bigger;
+				}
+				System.arraycopy(bytes, start, line, count, length);
+				count += length;
+				if(newline<end) {
+					buffer.position(buffer.position()+length+1);
+					break;
+				}
+				buffer.position(buffer.limit());
+			}
+			if(count>0 && line[count-1]=='\r') count--;
+			return new BinaryFrame(Document.parse(new String(line, 0, count, StandardCharsets.UTF_8)), null);
+		}
+
+		private void fill() throws IOException {
+			buffer.compact();
+			int n = channel.read(buffer);
+			buffer.flip();
+			if(n<0) throw new EOFException();
+		}
+
+		private int readInt() throws IOException {
+			while(buffer.remaining()<4) fill();
+			return buffer.getInt();
+		}
+
+		// a length the peer sent, which is not trusted until it is checked
+		private int readLength() throws IOException {
+			int length = readInt();
+			if(length<0 || length>maximumLength) throw new IOException("malformed frame");
+			return length;
+		}
+
+		private void readFully(byte[] bytes, int offset, int length) throws IOException {
+			int done = 0;
+			while(done<length) {
+				if(!buffer.hasRemaining()) fill();
+				int n = Math.min(buffer.remaining(), length-done);
+				buffer.get(bytes, offset+done, n);
+				done += n;
+			}
+		}
+
+		/**
+		 * The payload of a frame, read from what is buffered and then straight from the stream.
+		 */
+		private class Body implements ReadableByteChannel {
+			private long remaining;
+
+			Body(long length) {
+				this.remaining=length;
+			}
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				if(remaining==0) return -1;
+				int n;
+				if(buffer.hasRemaining()) {
+					n = (int) Math.min(Math.min(buffer.remaining(), dst.remaining()), remaining);
+					ByteBuffer part = buffer.duplicate();
+					part.limit(part.position()+n);
+					dst.put(part);
+					buffer.position(buffer.position()+n);
+				} else {
+					int limit = dst.limit();
+					if(dst.remaining()>remaining) dst.limit(dst.position()+(int) remaining);
+					try {
+						n = channel.read(dst);
+					} finally {
+						dst.limit(limit);
+					}
+					if(n<0) throw new EOFException();
+				}
+				remaining -= n;
+				return n;
+			}
+
+			// whatever the caller did not read
+			void skip() throws IOException {
+				while(remaining>0) {
+					if(!buffer.hasRemaining()) fill();
+					int n = (int) Math.min(buffer.remaining(), remaining);
+					buffer.position(buffer.position()+n);
+					remaining -= n;
+				}
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			@Override
+			public void close() {
+			}
+		}
+	}
+}
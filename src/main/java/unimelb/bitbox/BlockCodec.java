@@ -0,0 +1,145 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import unimelb.bitbox.util.BufferPool;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Metrics;
+
+/**
+ * Compression of the file content in FILE_BYTES_RESPONSEs. A peer advertises the encodings it
+ * can decode in {@link PeerFeatures#compression}, and blocks are compressed for it when the
+ * compression setting names one of them. A compressed block carries its encoding in an
+ * "encoding" field, its "length" is still the length of the file content. Blocks that do not
+ * shrink are sent as they are, without the field.
+ * <br/>
+ * The only encoding is "deflate", raw deflate at compressionLevel, 1 by default, which favours
+ * speed over size. Each thread keeps its own deflater and inflater. Before a large block is
+ * compressed its first few kilobytes are, and if they do not shrink by a tenth the block is
+ * taken to be compressed already, as media and archives are, and is sent as it is.
+ */
+public class BlockCodec {
+	public static final String DEFLATE = "deflate";
+	// the part of a block compressed first to see if the rest is worth it
+	private static final int PROBE = 8192;
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(
+			Integer.parseInt(Configuration.getConfigurationValue("compressionLevel", "1")), true));
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	/**
+	 * @return The encoding to compress blocks for the peer with, or null to send them as they are.
+	 */
+	public static String encodingFor(HostPort peer) {
+		String configured = Configuration.getConfigurationValue("compression", "none");
+		if(!configured.equals(DEFLATE)) return null;
+		return PeerFeatures.of(peer).compression.contains(DEFLATE) ? DEFLATE : null;
+	}
+
+	/**
+	 * @param content The block, from its position to its limit, which are left as they are.
+	 * @return The compressed block in a buffer from the {@link BufferPool}, which the caller
+	 * must release, or null if it would not be smaller.
+	 */
+	public static ByteBuffer compress(ByteBuffer content) {
+		ByteBuffer in = heap(content);
+		int length = in.remaining();
+		Deflater deflater = deflaters.get();
+		ByteBuffer compressed = null;
+		if(length<=2*PROBE) {
+			compressed = deflate(deflater, in, length, length-1);
+		} else {
+			ByteBuffer probe = deflate(deflater, in, PROBE, PROBE*9/10);
+			if(probe!=null) {
+				BufferPool.release(probe);
+				// anything that does not fit in one byte less than the input is not worth it
+				compressed = deflate(deflater, in, length, length-1);
+			}
+		}
+		if(in!=content) BufferPool.release(in);
+		Metrics.add("compressionBytesIn", length);
+		if(compressed==null) {
+			Metrics.add("compressionBytesOut", length);
+			Metrics.add("compressionBypassed", 1);
+			return null;
+		}
+		Metrics.add("compressionBytesOut", compressed.remaining());
+		return compressed;
+	}
+
+	/**
+	 * @return The first count bytes of in compressed, in a pooled buffer, or null if that takes
+	 * more than limit bytes.
+	 */
+	private static ByteBuffer deflate(Deflater deflater, ByteBuffer in, int count, int limit) {
+		deflater.reset();
+		deflater.setInput(in.array(), in.arrayOffset()+in.position(), count);
+		deflater.finish();
+		ByteBuffer out = BufferPool.acquire(Math.max(limit, 0));
+		byte[] bytes = out.array();
+		int offset = out.arrayOffset();
+		int length = 0;
+		while(!deflater.finished() && length<out.limit()) {
+			length += deflater.deflate(bytes, offset+length, out.limit()-length);
+		}
+		if(!deflater.finished()) {
+			BufferPool.release(out);
+			return null;
+		}
+		out.limit(length);
+		return out;
+	}
+
+	/**
+	 * @param encoding The "encoding" field of the block.
+	 * @param content The compressed block, from its position to its limit.
+	 * @param length The length of the file content.
+	 * @return The file content in a buffer from the {@link BufferPool}, which the caller must release.
+	 * @throws IOException If the encoding is unknown or the block does not decode to the length.
+	 */
+	public static ByteBuffer decompress(String encoding, ByteBuffer content, int length) throws IOException {
+		if(!encoding.equals(DEFLATE)) throw new IOException("unknown encoding "+encoding);
+		ByteBuffer in = heap(content);
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(in.array(), in.arrayOffset()+in.position(), in.remaining());
+		ByteBuffer out = BufferPool.acquire(length);
+		byte[] bytes = out.array();
+		int offset = out.arrayOffset();
+		int done = 0;
+		try {
+			while(done<length && !inflater.finished()) {
+				int n = inflater.inflate(bytes, offset+done, length-done);
+				if(n==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				done += n;
+			}
+		} catch (DataFormatException e) {
+			BufferPool.release(out);
+			throw new IOException("damaged compressed block", e);
+		} finally {
+			if(in!=content) BufferPool.release(in);
+		}
+		if(done!=length || !inflater.finished()) {
+			BufferPool.release(out);
+			throw new IOException("compressed block is not "+length+" bytes");
+		}
+		return out;
+	}
+
+	// the content itself if it has an array, otherwise a pooled copy
+	private static ByteBuffer heap(ByteBuffer content) {
+		if(content.hasArray()) return content;
+		ByteBuffer copy = BufferPool.acquire(content.remaining());
+		copy.put(content.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	private BlockCodec() {
+	}
+}
@@ -0,0 +1,142 @@
+package unimelb.bitbox;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Metrics;
+
+/**
+ * Chooses the length of the FILE_BYTES_REQUESTs sent to one peer over one transport.
+ * <br/>
+ * Transfers start at the configured blockSize. The {@link TransferWindow} measures how long
+ * each block takes to arrive, and the tuner doubles the block size for as long as that makes
+ * the transfer faster. When a larger block turns out slower it goes back to the previous
+ * size and stays there, trying a larger one again now and then. A block lost over UDP halves
+ * the size.
+ * <br/>
+ * Over TCP the block size is limited by maximumBlockSize. Over UDP a block has to fit in one
+ * datagram, with or without Base64, depending on whether the peer takes binary frames.
+ * The chosen size is published in {@link Metrics} as "blockSize [transport] [peer]".
+ */
+public class BlockSizeTuner {
+	/**
+	 * The size of the datagrams peers receive.
+	 */
+	public static final int DATAGRAM_SIZE = 8192;
+	// largest block that fits in a datagram, leaving room for the rest of the message
+	private static final long DATAGRAM_FRAME_BLOCK = DATAGRAM_SIZE-1024;
+	private static final long DATAGRAM_JSON_BLOCK = 5000;
+	private static final long MINIMUM_BLOCK = 1024;
+	// blocks measured before deciding whether a size is better than the last
+	private static final int SAMPLES = 4;
+	// rounds of samples at a settled size before trying a larger one again
+	private static final int PROBE_ROUNDS = 16;
+
+	private static final ConcurrentHashMap<String,BlockSizeTuner> tuners = new ConcurrentHashMap<String,BlockSizeTuner>();
+
+	private final String metric;
+	private final long maximum;
+	private long size;
+	private double previousRate;
+	private double rateSum;
+	private int samples;
+	private boolean settled;
+	private int settledRounds;
+
+	private BlockSizeTuner(String metric, long initial, long maximum) {
+		this.metric=metric;
+		this.maximum=maximum;
+		this.size=Math.max(MINIMUM_BLOCK, Math.min(initial, maximum));
+		Metrics.set(metric, size);
+	}
+
+	/**
+	 * @param peer The peer the blocks are requested from.
+	 * @return The tuner for the peer over the configured transport.
+	 */
+	public static BlockSizeTuner of(HostPort peer) {
+		String transport = Configuration.getConfigurationValue("mode", "tcp");
+		String metric = "blockSize "+transport+" "+peer;
+		BlockSizeTuner tuner = tuners.get(metric);
+		if(tuner==null) {
+			long initial = Long.parseLong(Configuration.getConfigurationValue("blockSize", "5000"));
+			long maximum;
+			if(transport.equals("udp")) {
+				maximum = PeerFeatures.of(peer).binaryFrames ? DATAGRAM_FRAME_BLOCK : DATAGRAM_JSON_BLOCK;
+			} else {
+				maximum = Math.max(initial, Long.parseLong(Configuration.getConfigurationValue("maximumBlockSize", "1048576")));
+			}
+			BlockSizeTuner created = new BlockSizeTuner(metric, initial, maximum);
+			tuner = tuners.putIfAbsent(metric, created);
+			if(tuner==null) tuner = created;
+		}
+		return tuner;
+	}
+
+	/**
+	 * @return The length to request next.
+	 */
+	public synchronized long blockSize() {
+		return size;
+	}
+
+	/**
+	 * @return The largest length ever requested.
+	 */
+	public long maximumBlockSize() {
+		return maximum;
+	}
+
+	/**
+	 * Measure a block that arrived.
+	 * @param length The length of the block.
+	 * @param elapsed How long the block took to arrive, in nanoseconds.
+	 */
+	public synchronized void sample(long length, long elapsed) {
+		// only full blocks of the current size are comparable
+		if(length<size || elapsed<=0) return;
+		rateSum += (double) length/elapsed;
+		if(++samples==SAMPLES) {
+			adjust(rateSum/samples);
+			rateSum = 0;
+			samples = 0;
+		}
+	}
+
+	/**
+	 * Note that a block was lost, which halves the block size.
+	 */
+	public synchronized void lost() {
+		Metrics.add("blocksLost", 1);
+		resize(size/2);
+		previousRate = 0;
+		rateSum = 0;
+		samples = 0;
+		settled = true;
+		settledRounds = 0;
+	}
+
+	private void adjust(double rate) {
+		if(!settled) {
+			if(rate>previousRate*1.1 && size<maximum) {
+				previousRate = rate;
+				resize(size*2);
+			} else {
+				// the last step did not help, keep the better of the two
+				if(rate<previousRate*0.9) resize(size/2);
+				settled = true;
+				settledRounds = 0;
+			}
+		} else if(++settledRounds>=PROBE_ROUNDS && size<maximum) {
+			settled = false;
+			previousRate = rate;
+			resize(size*2);
+		}
+	}
+
+	private void resize(long newSize) {
+		size = Math.max(MINIMUM_BLOCK, Math.min(newSize, maximum));
+		Metrics.set(metric, size);
+	}
+}
@@ -19,6 +19,8 @@ import java.util.Base64;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -36,7 +38,10 @@ import org.json.simple.parser.ParseException;
 import unimelb.bitbox.util.CertificateUtils;
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.Handlers;
 import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.MessageEncoder;
+import unimelb.bitbox.util.Metrics;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 
 public class Peer {
@@ -52,6 +57,12 @@ public class Peer {
 	
 	protected static JSONObject responseList = new JSONObject();
 	protected static DatagramSocket socket = null;
+	// checks on FILE_BYTES_REQUESTs sent over UDP
+	private static ScheduledExecutorService bytesRequestChecks = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "bytes request checks");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	public static void main(String[] args) throws IOException, NumberFormatException, NoSuchAlgorithmException {
 		System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tc] %2$s %4$s: %5$s%n");
@@ -65,15 +76,23 @@ public class Peer {
 		if (mode.contentEquals("tcp")) {
 			port = Integer.parseInt(Configuration.getConfigurationValue("port"));
 			
-			// wait for connections--------- this is an independent thread running all the time
-			new Thread(() -> TCP.waiting(ser)).start();
-			new Thread(()-> waitingClient(ser)).start();
-			
-			// try to connect all the peers in the list
-			TCP.connectAllPeers();
-			
-			// running sync
-			TCP.sync(synchornizeTimeInterval, ser);
+			// all connections on a few selector threads, rather than threads of their own
+			if (SelectorTransport.enabled()) {
+				SelectorTransport.start(ser);
+				new Thread(()-> waitingClient(ser)).start();
+				SelectorTransport.connectAllPeers();
+				SelectorTransport.sync(synchornizeTimeInterval, ser);
+			} else {
+				// wait for connections--------- this is an independent thread running all the time
+				new Thread(() -> TCP.waiting(ser)).start();
+				new Thread(()-> waitingClient(ser)).start();
+				
+				// try to connect all the peers in the list
+				TCP.connectAllPeers();
+				
+				// running sync
+				TCP.sync(synchornizeTimeInterval, ser);
+			}
 		}
 		
 		if (mode.contentEquals("udp")) {		
@@ -117,6 +136,7 @@ public class Peer {
 			Document newCommand = new Document();
 			newCommand.append("command", "HANDSHAKE_REQUEST");
 			newCommand.append("hostPort", (Document) self_hostport.toDoc());
+			PeerFeatures.local().appendTo(newCommand);
 			byte[] buf = new byte[8192];
 			buf = newCommand.toJson().getBytes();
 			DatagramPacket packet = new DatagramPacket(buf, buf.length, InetAddress.getByName(peerIP), peerPort);
@@ -143,33 +163,29 @@ public class Peer {
 			} catch (InterruptedException e) {
 				//e.printStackTrace();
 			}
-			// avoid synchronizing and updating concurrently
+			// the events are taken out of the list, so none are sent twice or lost while sending
+			ArrayList<FileSystemEvent> events = ser.takeEvents();
 			// sync with all peers
 			if (count == sleepTime) {
-				ser.eventList.removeAll(ser.eventList);
-				ArrayList<FileSystemEvent> pathevents = ser.fileSystemManager.generateSyncEvents();
-				for(FileSystemEvent pathevent : pathevents) {
-					ser.processFileSystemEvent(pathevent);
-				}
-				peerSending(socket, ser);
-				ser.eventList.removeAll(ser.eventList);
+				events.addAll(ser.fileSystemManager.generateSyncEvents());
+				peerSending(socket, events);
 				count = 0;
 				System.out.println("ConnectedPeers when sync: "+connectedPeers);
+				log.info("metrics: " + Metrics.toDoc().toJson());
 			} else {
 			// if not synchronizing, we keep checking update for every 1 second
-				peerSending(socket, ser);
-				ser.eventList.removeAll(ser.eventList);
+				peerSending(socket, events);
 			}
 			count++;
 		}
 	}
 	
-	// send all events in ser eventList to all the remembered peers
-	public static void peerSending(DatagramSocket socket, ServerMain ser) {
+	// send the events to all the remembered peers
+	public static void peerSending(DatagramSocket socket, ArrayList<FileSystemEvent> events) {
 		try {
-			Iterator<String> iter = ser.eventList.iterator();
+			Iterator<FileSystemEvent> iter = events.iterator();
 			while (iter.hasNext()) {
-				String s = iter.next();
+				String s = MessageEncoder.toJson(iter.next());
 				byte[] buf = s.getBytes();
 				Iterator<HostPort> peer_iter = connectedPeers.iterator();
 				while (peer_iter.hasNext()) {
@@ -193,6 +209,44 @@ public class Peer {
 		}
 	}
 	
+	/** Send a FILE_BYTES_REQUEST over UDP and check that it is answered, as a lost request or
+	 * response would otherwise stop the transfer. An unanswered request is sent again, see
+	 * {@link TransferWindow#timedOut(String, long, long)}. Anything else is just sent.
+	 * @param request The message.
+	 * @param peer The peer, as it is known in connectedPeers.
+	 * @throws IOException
+	 */
+	public static void sendBytesRequest(String request, HostPort peer, InetAddress peerAddress, int peerPort) throws IOException {
+		byte[] buf = request.getBytes();
+		socket.send(new DatagramPacket(buf, buf.length, peerAddress, peerPort));
+		Document doc = Document.parse(request);
+		if (!"FILE_BYTES_REQUEST".equals(doc.getString("command"))) {
+			return;
+		}
+		int timeout = Integer.parseInt(Configuration.getConfigurationValue("udpTimeout"));
+		bytesRequestChecks.schedule(() -> {
+			String again = TransferWindow.of(peer).timedOut(doc.getString("pathName"), doc.getLong("position"),
+					TimeUnit.MILLISECONDS.toNanos(timeout));
+			if (again == null) {
+				return;
+			}
+			try {
+				sendBytesRequest(again, peer, peerAddress, peerPort);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	// transfers from a UDP peer may be started by any thread, requests go out through the shared socket
+	private static void registerTransfers(HostPort peer, InetAddress peerAddress, int peerPort) {
+		TransferScheduler.register(peer, messages -> {
+			for (String message : messages) {
+				sendBytesRequest(message, peer, peerAddress, peerPort);
+			}
+		});
+	}
+	
 	// check connection and retry
 	@SuppressWarnings("unchecked")
 	public static void waitResponse(HostPort hostport, String jsonString, String fieldName, DatagramPacket packet) {
@@ -200,17 +254,18 @@ public class Peer {
 		if (fieldName.equals("fileDescriptor")) {
 			String key = ((Document) doc.get(fieldName)).toJson() + hostport.toString();
 			responseList.put(key, false);
-			new Thread(() -> wait (key, hostport, packet)).start();
+			wait(key, hostport, packet);
 		}
 		if (fieldName.equals("pathName")) {
 			String key = (String) doc.get(fieldName) + hostport.toString();
 			responseList.put(key, false);
-			new Thread(() -> wait (key, hostport, packet)).start();
+			wait(key, hostport, packet);
 		}
 	}
 	
+	// a handler per message, asleep until its next retry
 	public static void wait (String key, HostPort hostport, DatagramPacket packet) {
-		Thread waiting = new Thread(new Runnable() {
+		Handlers.start("retry " + hostport, new Runnable() {
 			@Override
 			public void run() {
 				int count = 0;
@@ -236,6 +291,7 @@ public class Peer {
 						System.out.println("time out");
 						responseList.remove(key);
 						connectedPeers.remove(hostport);
+						TransferScheduler.unregister(hostport);
 					} else {
 						// recevied the response
 						responseList.remove(key);
@@ -250,7 +306,6 @@ public class Peer {
 				}
 			}
 		});
-		waiting.start();
 	}
 	
 	
@@ -261,8 +316,10 @@ public class Peer {
 				@Override
 				public void run() {
 					try {
+						// each datagram is handled before the next is received, so one buffer does
+						byte[] received_buf = new byte[BlockSizeTuner.DATAGRAM_SIZE];
 						while (true) {
-							byte[] buf = new byte[8192];
+							byte[] buf = received_buf;
 							DatagramPacket packet = new DatagramPacket(buf, buf.length);
 							socket.receive(packet);
 							
@@ -270,17 +327,40 @@ public class Peer {
 				            int peerPort = packet.getPort();
 				            HostPort peerHostport = new HostPort(peerAddress.toString().substring(1), peerPort);
 				            
-				            String received = new String(packet.getData(), 0, packet.getLength());
-							Document command = Document.parse(received);
+				            // a FILE_BYTES_RESPONSE may come as a binary frame, the rest is JSON
+				            BinaryFrame frame = BinaryFrame.isFrame(packet.getData(), packet.getLength())
+				            		? BinaryFrame.fromDatagram(packet.getData(), packet.getLength()) : null;
+				            String received = frame != null ? frame.header.toJson() : new String(packet.getData(), 0, packet.getLength());
+							Document command = frame != null ? frame.header : Document.parse(received);
 							
 							System.out.println(received);
 				         
+							// a peer that cannot understand our file descriptors is never connected
+							if (command.get("command").toString().equals("HANDSHAKE_REQUEST")
+									|| command.get("command").toString().equals("HANDSHAKE_RESPONSE")) {
+								String incompatible = PeerFeatures.local().checkCompatible(PeerFeatures.from(command));
+								if (incompatible != null) {
+									System.out.println("refused " + peerHostport + ": " + incompatible);
+									if (command.get("command").toString().equals("HANDSHAKE_REQUEST")) {
+										Document newCommand = new Document();
+										newCommand.append("command", "INVALID_PROTOCOL");
+										newCommand.append("message", incompatible);
+										buf = newCommand.toJson().getBytes();
+										packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
+										socket.send(packet);
+									}
+									continue;
+								}
+								PeerFeatures.remember(peerHostport, PeerFeatures.from(command));
+							}
+							
 							// if a new peer come in, check maximum number
 							if (command.get("command").toString().equals("HANDSHAKE_REQUEST")) {
 								
 								if (connectedPeers.size() < Integer
 										.parseInt(Configuration.getConfigurationValue("maximumIncommingConnections"))) {
 									connectedPeers.add(peerHostport);
+									registerTransfers(peerHostport, peerAddress, peerPort);
 								} else {
 									Document newCommand = new Document();
 									newCommand.append("command", "CONNECTION_REFUSED");
@@ -301,6 +381,7 @@ public class Peer {
 			                
 			                if (command.get("command").toString().equals("HANDSHAKE_RESPONSE")) {
 			                 connectedPeers.add(peerHostport);
+			                 registerTransfers(peerHostport, peerAddress, peerPort);
 			                }
 			                
 			                if (command.get("command").toString().equals("CONNECTION_REFUSED")) {
@@ -333,18 +414,13 @@ public class Peer {
 							    	Document replyCommand = new Document();
 									replyCommand.append("command", "HANDSHAKE_RESPONSE");
 									replyCommand.append("hostPort", new HostPort(ip, port).toDoc());
+									PeerFeatures.local().appendTo(replyCommand);
 									buf = replyCommand.toJson().getBytes();
 									packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
 									socket.send(packet);
 									
 									// send all the local data first
-									ser.eventList.removeAll(ser.eventList);
-									ArrayList<FileSystemEvent> pathevents = ser.fileSystemManager.generateSyncEvents();
-									for(FileSystemEvent pathevent : pathevents) {
-										ser.processFileSystemEvent(pathevent);
-									}
-									peerSending(socket, ser);
-									ser.eventList.removeAll(ser.eventList);
+									peerSending(socket, ser.fileSystemManager.generateSyncEvents());
 									break;
 								
 								case "FILE_CREATE_REQUEST":
@@ -356,10 +432,7 @@ public class Peer {
 									
 									Document create_reply = Document.parse(reply);
 									if (create_reply.get("status").toString().equals("true")) {
-									String reply1 = ser.file_bytes_request(command);
-									buf = reply1.getBytes();
-									packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
-									socket.send(packet);
+									ser.file_bytes_request(command, peerHostport);
 									System.out.println("send file_bytes_request");
 									}
 									break;
@@ -394,10 +467,7 @@ public class Peer {
 										buf = reply4.getBytes();
 										packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
 										socket.send(packet);
-										String reply5 = ser.byte_request(command);
-										buf = reply5.getBytes();
-										packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
-										socket.send(packet);
+										ser.byte_request(command, peerHostport);
 									} catch (NoSuchAlgorithmException e2) {
 										e2.printStackTrace();
 									}
@@ -405,7 +475,18 @@ public class Peer {
 									
 								case "FILE_BYTES_REQUEST":
 									try {
-										reply = ser.byte_response(command);
+										// the bytes as they were read, rather than Base64 inside JSON
+										if (PeerFeatures.of(peerHostport).binaryFrames) {
+											BinaryFrame byte_frame = ser.byte_response_frame(command, peerHostport, false);
+											if (byte_frame != null) {
+												buf = byte_frame.toDatagram();
+												byte_frame.release();
+												packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
+												socket.send(packet);
+												break;
+											}
+										}
+										reply = ser.byte_response(command, peerHostport);
 										buf = reply.getBytes();
 										packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
 										socket.send(packet);
@@ -419,13 +500,9 @@ public class Peer {
 							    // ======================= response =====================================
 								case "FILE_BYTES_RESPONSE":
 									try {
-										String reply3 = ser.write_byte(command);
-										if(reply3.equals("complete")) {
-											break;
-										}else {
-										buf = reply3.getBytes();
-										packet = new DatagramPacket(buf, buf.length, peerAddress, peerPort);
-										socket.send(packet);
+										ArrayList<String> replies = frame != null ? ser.write_byte(command, frame.payload, peerHostport) : ser.write_byte(command, peerHostport);
+										for (String reply3 : replies) {
+											sendBytesRequest(reply3, peerHostport, peerAddress, peerPort);
 										}
 									} catch (NoSuchAlgorithmException e) {
 										e.printStackTrace();
@@ -477,6 +554,7 @@ public class Peer {
 								// =========================== other protocols ===============================
 								case "INVALID_PROTOCOL":
 									connectedPeers.remove(peerHostport);
+									TransferScheduler.unregister(peerHostport);
 									break;
 								}
 						} 
@@ -502,95 +580,110 @@ public class Peer {
 						System.out.println("Server waiting for a client on "+clientPort);
 						while(true) {
 							Socket socket = serverSocket.accept();
-							// Prepare a key for this session
-							SecretKey secretKey= null;
-							BufferedWriter out= new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-							BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+							// each session on a handler of its own, so a slow client does not hold up the next
+							Handlers.start("client", () -> {
+								try {
+									session(socket);
+								} catch (Exception e) {
+									e.printStackTrace();
+								} finally {
+									// ============= End communication =============
+									try {
+										socket.close();
+									} catch (IOException e) {
+									}
+								}
+							});
+						}
 
-							String received = in.readLine();
-							System.out.println(received);
 
-							Document command = Document.parse(received);
-							String response;
-							if (command.getString("command").equals("AUTH_REQUEST")) {
-								// check the list in Configuration
-								String pubKeyString = findPubKey(command.getString("identity"));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 
-								if(pubKeyString==null) {
-									// ============= No key founded, refuse communication=============
-									Document newCommand = new Document();
-									newCommand.append("command", "AUTH_RESPONSE");
-									newCommand.append("status", false);
-									newCommand.append("message", "public key not found");
+				}
 
-									response=newCommand.toJson();
+				// one client session: authenticate, run its command and answer
+				private void session(Socket socket) throws Exception {
+					// Prepare a key for this session
+					SecretKey secretKey= null;
+					BufferedWriter out= new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
-									out.write(response+"\n");
-									out.flush();
-								}else {
-									// ============= Generating an AES secrete key =============
-									secretKey = generateAESKey();
+					String received = in.readLine();
+					System.out.println(received);
 
-									try {
-										// ============= Convert OpenSSH public key to Java RSAPublicKey Object =============
-										RSAPublicKey publicKey =  (RSAPublicKey) CertificateUtils.parseSSHPublicKey(pubKeyString);
-										//												System.out.println(publicKey);
+					Document command = Document.parse(received);
+					String response;
+					if (command.getString("command").equals("AUTH_REQUEST")) {
+						// check the list in Configuration
+						String pubKeyString = findPubKey(command.getString("identity"));
 
-										// ============= Encrypting with client's public key =============
-										String encrypted = rsaEncrypt(secretKey, publicKey);
+						if(pubKeyString==null) {
+							// ============= No key founded, refuse communication=============
+							Document newCommand = new Document();
+							newCommand.append("command", "AUTH_RESPONSE");
+							newCommand.append("status", false);
+							newCommand.append("message", "public key not found");
 
-										Document newCommand = new Document();
-										newCommand.append("command", "AUTH_RESPONSE");
-										newCommand.append("AES128", encrypted);
-										newCommand.append("status", true);
-										newCommand.append("message", "public key found");
+							response=newCommand.toJson();
 
-										response=newCommand.toJson();
+							out.write(response+"\n");
+							out.flush();
+						}else {
+							// ============= Generating an AES secrete key =============
+							secretKey = generateAESKey();
 
-										// ============= Sending the encrypted SecretKey to client =============
-										out.write(response+"\n");
-										out.flush();
+							try {
+								// ============= Convert OpenSSH public key to Java RSAPublicKey Object =============
+								RSAPublicKey publicKey =  (RSAPublicKey) CertificateUtils.parseSSHPublicKey(pubKeyString);
+								//												System.out.println(publicKey);
 
-									} catch (Exception e) {
-										e.printStackTrace();
-									}
+								// ============= Encrypting with client's public key =============
+								String encrypted = rsaEncrypt(secretKey, publicKey);
 
-									// ============= Receiving Client's command reply =============
-									received = in.readLine();
-									if(received==null) {
-										continue;
-									}
-									System.out.println("Message received: "+received);
-
-									// ============= Decrypt the message with AES key =============
-									command =Document.parse(received);
-									String encrypted = Document.parse(received).getString("payload");
-									String decrypted = decryptMsg(encrypted, secretKey);
-
-									command = Document.parse(decrypted);
-									response = executeClientCmd(ser, command);
-
-									// =============Sending back the response =============
-									encrypted = encryptMsg(response, secretKey);
-									Document doc = new Document();
-									doc.append("payload", encrypted);
-									response=doc.toJson();
-									out.write(response+"\n");
-									out.flush();
-									System.out.println("Message sent: "+response);
-								}
+								Document newCommand = new Document();
+								newCommand.append("command", "AUTH_RESPONSE");
+								newCommand.append("AES128", encrypted);
+								newCommand.append("status", true);
+								newCommand.append("message", "public key found");
 
+								response=newCommand.toJson();
+
+								// ============= Sending the encrypted SecretKey to client =============
+								out.write(response+"\n");
+								out.flush();
+
+							} catch (Exception e) {
+								e.printStackTrace();
 							}
 
-							// ============= End communication =============
-							socket.close();			
-						}
+							// ============= Receiving Client's command reply =============
+							received = in.readLine();
+							if(received==null) {
+								return;
+							}
+							System.out.println("Message received: "+received);
 
+							// ============= Decrypt the message with AES key =============
+							command =Document.parse(received);
+							String encrypted = Document.parse(received).getString("payload");
+							String decrypted = decryptMsg(encrypted, secretKey);
 
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
+							command = Document.parse(decrypted);
+							response = executeClientCmd(ser, command);
+
+							// =============Sending back the response =============
+							encrypted = encryptMsg(response, secretKey);
+							Document doc = new Document();
+							doc.append("payload", encrypted);
+							response=doc.toJson();
+							out.write(response+"\n");
+							out.flush();
+							System.out.println("Message sent: "+response);
+						}
 
+					}
 				}
 
 
@@ -811,6 +904,10 @@ public class Peer {
 		 * @throws IOException
 		 */
 		private static boolean disconnectPeer(String peerIP, int peerPort) throws IOException {
+			if(mode.contentEquals("tcp") && SelectorTransport.enabled()) {
+				HostPort hostPort = findPeer(peerIP, peerPort);
+				return hostPort!=null && SelectorTransport.disconnect(hostPort);
+			}
 			if(mode.contentEquals("tcp")) {
 				// Check if the peer is in the list
 				HostPort hostPort = findPeer(peerIP, peerPort);
@@ -841,6 +938,7 @@ public class Peer {
 				System.out.println("found"+hostPort);
 				if(hostPort!=null) {
 					connectedPeers.remove(hostPort);
+					TransferScheduler.unregister(hostPort);
 					System.out.println("after remove"+connectedPeers);
 					return true;
 				}
@@ -869,15 +967,28 @@ public class Peer {
 		 *  @return true if successfully connected, false if failed.
 		 */
 		public static boolean connectPeer(ServerMain ser, String peerIP, int peerPort) {
+			if(mode.contentEquals("tcp") && SelectorTransport.enabled()) {
+				HostPort hostport = new HostPort(peerIP, peerPort);
+				SelectorTransport.connect(hostport);
+				// the connection completes on a selector thread
+				try {
+					for (int i = 0; i < 50 && !SelectorTransport.isConnected(hostport); i++) {
+						TimeUnit.MILLISECONDS.sleep(100);
+					}
+				} catch (InterruptedException e) {
+					//e.printStackTrace();
+				}
+				return SelectorTransport.isConnected(hostport);
+			}
 			if(mode.contentEquals("tcp")) {
 				Socket socket = TCP.sentConnectionRequest(peerIP, peerPort, ser);
 				if ((socket != null) && (!socket.isClosed())) {
 					HostPort hostport = new HostPort(peerIP, peerPort);
-					new Thread(() -> TCP.peerRunning(socket, hostport, ser)).start();
+					TCP.peerRunning(socket, hostport, ser);
 					if(!socketList.contains(socket)&&!connectedPeers.contains(hostport)) {
 						socketList.add(socket);
 						connectedPeers.add(hostport);
-						TCP.peerSending(socket, ser);
+						TCP.peerSending(socket, ser.fileSystemManager.generateSyncEvents());
 					}
 					return true;
 				}
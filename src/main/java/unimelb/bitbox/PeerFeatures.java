@@ -0,0 +1,130 @@
+package unimelb.bitbox;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.ContentHash;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.HostPort;
+
+/**
+ * Optional protocol features, advertised in HANDSHAKE_REQUEST and HANDSHAKE_RESPONSE.
+ * A peer that does not send a field is an older peer and gets the behaviour of the
+ * original protocol for that feature.
+ */
+public class PeerFeatures {
+	// what each connected peer advertised in its handshake
+	private static final ConcurrentHashMap<HostPort,PeerFeatures> negotiated = new ConcurrentHashMap<HostPort,PeerFeatures>();
+
+	/**
+	 * The content hash used in the "md5" field of file descriptors. Both peers must use
+	 * the same one, as it is the key used to find file content.
+	 */
+	public String hashAlgorithm = ContentHash.MD5;
+	/**
+	 * True if the peer accepts file content as a {@link BinaryFrame} rather than Base64
+	 * in a FILE_BYTES_RESPONSE.
+	 */
+	public boolean binaryFrames = false;
+	/**
+	 * True if the peer answers a FILE_DELTA_REQUEST, see {@link unimelb.bitbox.util.Delta}.
+	 * Only over TCP, as the signatures of a large file do not fit in a datagram.
+	 */
+	public boolean deltaSync = false;
+	/**
+	 * True if the peer answers a FILE_CHUNKS_REQUEST, see {@link unimelb.bitbox.util.ChunkStore}.
+	 * Only over TCP, for the same reason as deltaSync.
+	 */
+	public boolean chunkStore = false;
+	/**
+	 * The encodings the peer can decode file content in, see {@link BlockCodec}.
+	 */
+	public ArrayList<String> compression = new ArrayList<String>();
+
+	/**
+	 * @return The features this peer is configured to use.
+	 */
+	public static PeerFeatures local() {
+		PeerFeatures features = new PeerFeatures();
+		features.hashAlgorithm = Configuration.getConfigurationValue("hashAlgorithm", ContentHash.MD5);
+		features.binaryFrames = true;
+		features.deltaSync = Configuration.getConfigurationValue("mode", "tcp").equals("tcp")
+				&& Boolean.parseBoolean(Configuration.getConfigurationValue("deltaSync", "true"));
+		features.chunkStore = Configuration.getConfigurationValue("mode", "tcp").equals("tcp")
+				&& Boolean.parseBoolean(Configuration.getConfigurationValue("chunkStore", "true"));
+		// any peer can decode, whether it compresses is up to its own setting
+		features.compression.add(BlockCodec.DEFLATE);
+		return features;
+	}
+
+	/**
+	 * @param handshake A HANDSHAKE_REQUEST or HANDSHAKE_RESPONSE from the other peer.
+	 * @return The features the other peer advertised.
+	 */
+	public static PeerFeatures from(Document handshake) {
+		PeerFeatures features = new PeerFeatures();
+		if(handshake.containsKey("hashAlgorithm")) {
+			features.hashAlgorithm = handshake.getString("hashAlgorithm");
+		}
+		if(handshake.containsKey("binaryFrames")) {
+			features.binaryFrames = handshake.getBoolean("binaryFrames");
+		}
+		if(handshake.containsKey("deltaSync")) {
+			features.deltaSync = handshake.getBoolean("deltaSync");
+		}
+		if(handshake.containsKey("chunkStore")) {
+			features.chunkStore = handshake.getBoolean("chunkStore");
+		}
+		if(handshake.get("compression") instanceof ArrayList) {
+			for(Object encoding : (ArrayList<?>) handshake.get("compression")) {
+				features.compression.add(encoding.toString());
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Advertise these features in an outgoing handshake message.
+	 */
+	public void appendTo(Document handshake) {
+		handshake.append("hashAlgorithm", hashAlgorithm);
+		handshake.append("binaryFrames", binaryFrames);
+		handshake.append("deltaSync", deltaSync);
+		handshake.append("chunkStore", chunkStore);
+		handshake.append("compression", compression);
+	}
+
+	/**
+	 * Remember the features a peer advertised when it connected.
+	 */
+	public static void remember(HostPort peer, PeerFeatures remote) {
+		negotiated.put(peer, remote);
+	}
+
+	/**
+	 * Forget a peer that disconnected.
+	 */
+	public static void forget(HostPort peer) {
+		negotiated.remove(peer);
+	}
+
+	/**
+	 * @return The features the peer advertised, or those of the original protocol if it is not known.
+	 */
+	public static PeerFeatures of(HostPort peer) {
+		PeerFeatures features = negotiated.get(peer);
+		return features!=null ? features : new PeerFeatures();
+	}
+
+	/**
+	 * @param remote The features the other peer advertised.
+	 * @return null if the peers can talk to each other, otherwise the reason why not.
+	 */
+	public String checkCompatible(PeerFeatures remote) {
+		if(!hashAlgorithm.equals(remote.hashAlgorithm)) {
+			return "content hash mismatch: "+hashAlgorithm+" and "+remote.hashAlgorithm;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,812 @@
+package unimelb.bitbox;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.BufferPool;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.MessageEncoder;
+import unimelb.bitbox.util.Metrics;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+/**
+ * The TCP transport for many peers, chosen with tcpTransport = selector. The default,
+ * blocking, transport in {@link TCP} gives every connection threads of its own, here all
+ * connections share selectorThreads threads, 2 by default, which only read, split what is
+ * read into messages and frames, and write. The messages are handled by a pool of
+ * workerThreads, 8 by default, one message of a connection at a time and in the order they
+ * arrived, exactly as {@link TCP#handle(BinaryFrame, HostPort, ServerMain, TCP.Link)} handles
+ * them for the blocking transport. The protocol is the same, so peers on either transport
+ * can connect to each other.
+ * <br/>
+ * What is sent to a connection is queued and written as the peer takes it. A thread that
+ * sends while more than maximumPendingWrite megabytes, 8 by default, are queued for the
+ * connection waits for the peer to catch up. File bytes are always sent as frames read into
+ * memory, as a file cannot be sent straight to a socket that does not block.
+ */
+public class SelectorTransport {
+	private static Logger log = Logger.getLogger(SelectorTransport.class.getName());
+
+	// what each connection reads into, grown for longer messages and shrunk again after them
+	private static final int READ_BUFFER = 16 * 1024;
+	// events are queued for writing once this much of them is encoded
+	private static final int EVENTS_FLUSH = 64 * 1024;
+
+	private static final long maximumPending = Long.parseLong(Configuration.getConfigurationValue("maximumPendingWrite", "8")) * 1024 * 1024;
+
+	private static Loop[] loops;
+	private static final AtomicInteger nextLoop = new AtomicInteger();
+	private static ExecutorService workers;
+	private static ServerMain ser;
+	// the connections that completed their handshake
+	private static final ConcurrentHashMap<HostPort, Connection> connections = new ConcurrentHashMap<HostPort, Connection>();
+
+	/**
+	 * @return True if TCP connections are to be held by this transport.
+	 */
+	public static boolean enabled() {
+		return Configuration.getConfigurationValue("tcpTransport", "blocking").equals("selector");
+	}
+
+	/**
+	 * Start the selector threads and the workers, and accept connections on the port.
+	 */
+	public static void start(ServerMain ser) throws IOException {
+		SelectorTransport.ser = ser;
+		int selectorThreads = Integer.parseInt(Configuration.getConfigurationValue("selectorThreads", "2"));
+		int workerThreads = Integer.parseInt(Configuration.getConfigurationValue("workerThreads", "8"));
+		AtomicInteger workerCount = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerThreads, r -> {
+			Thread thread = new Thread(r, "peer worker " + workerCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		loops = new Loop[Math.max(selectorThreads, 1)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new Loop(i);
+		}
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.bind(new InetSocketAddress(Peer.port));
+		loops[0].register(server, SelectionKey.OP_ACCEPT, null);
+		System.out.println("Server listening on " + Peer.ip + ":" + Peer.port + " for connections on " + loops.length + " selector threads");
+	}
+
+	/**
+	 * Connect to every peer in the peers setting. The connections complete in the background.
+	 */
+	public static void connectAllPeers() {
+		for (String peer : Configuration.getConfigurationValue("peers").split(",")) {
+			if (!peer.trim().isEmpty()) {
+				connect(new HostPort(peer.trim()));
+			}
+		}
+	}
+
+	/**
+	 * Start connecting to a peer. If it refuses, the peers it names are tried in turn, as
+	 * {@link TCP#sentConnectionRequest(String, int, ServerMain)} does.
+	 */
+	public static void connect(HostPort peer) {
+		connect(peer, new ArrayDeque<HostPort>(), new HashSet<HostPort>());
+	}
+
+	private static void connect(HostPort peer, Queue<HostPort> alternatives, Set<HostPort> tried) {
+		tried.add(peer);
+		System.out.println("Sent connection request: Try connecting to " + peer);
+		try {
+			InetSocketAddress address = new InetSocketAddress(peer.host, peer.port);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(peer.host);
+			}
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			Connection connection = new Connection(channel, nextLoop(), peer, alternatives, tried);
+			if (channel.connect(address)) {
+				connection.loop.register(channel, SelectionKey.OP_READ, connection);
+				connection.sendRequest();
+			} else {
+				connection.loop.register(channel, SelectionKey.OP_CONNECT, connection);
+			}
+		} catch (IOException e) {
+			System.out.println("connection failed");
+			connectAlternative(alternatives, tried);
+		}
+	}
+
+	// the next peer a refusing peer named that has not been tried yet
+	private static void connectAlternative(Queue<HostPort> alternatives, Set<HostPort> tried) {
+		while (!alternatives.isEmpty()) {
+			HostPort peer = alternatives.poll();
+			if (!tried.contains(peer) && !isConnected(peer)) {
+				connect(peer, alternatives, tried);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return True if the peer is connected and through its handshake.
+	 */
+	public static boolean isConnected(HostPort peer) {
+		return connections.containsKey(peer);
+	}
+
+	/**
+	 * Close the connection to a peer.
+	 * @return False if the peer was not connected.
+	 */
+	public static boolean disconnect(HostPort peer) {
+		Connection connection = connections.get(peer);
+		if (connection == null) {
+			return false;
+		}
+		connection.close();
+		return true;
+	}
+
+	/**
+	 * Send the new events to every connected peer each second, and everything in the share
+	 * every sleepTime seconds, as {@link TCP#sync(int, ServerMain)} does.
+	 */
+	public static void sync(int sleepTime, ServerMain ser) {
+		int count = sleepTime;
+		while (true) {
+			try {
+				TimeUnit.SECONDS.sleep(1);
+			} catch (InterruptedException e) {
+				//e.printStackTrace();
+			}
+			ArrayList<FileSystemEvent> events = ser.takeEvents();
+			if (count == sleepTime) {
+				events.addAll(ser.fileSystemManager.generateSyncEvents());
+				count = 0;
+				System.out.println("connected peers: " + connections.size());
+				log.info("metrics: " + Metrics.toDoc().toJson());
+			}
+			if (!events.isEmpty()) {
+				for (Connection connection : connections.values()) {
+					try {
+						connection.sendEvents(events);
+					} catch (IOException e) {
+						// the connection is closed, and gone from connections
+					}
+				}
+			}
+			count++;
+		}
+	}
+
+	private static Loop nextLoop() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+
+	// true on any selector thread, which must never wait, as every connection on it would wait too
+	private static boolean onSelectorThread() {
+		Thread current = Thread.currentThread();
+		for (Loop loop : loops) {
+			if (loop.thread == current) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A selector and the thread that runs it.
+	 */
+	private static class Loop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		// work for the selector thread, such as registering channels
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		Loop(int number) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "selector " + number);
+			thread.start();
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void register(SelectableChannel channel, int ops, Connection connection) {
+			execute(() -> {
+				try {
+					SelectionKey key = channel.register(selector, ops, connection);
+					if (connection != null) {
+						connection.registered(key);
+					}
+				} catch (IOException e) {
+					if (connection != null) {
+						connection.close();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					log.severe("selector failed: " + e);
+					return;
+				}
+				for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.attachment() == null) {
+						accept((ServerSocketChannel) key.channel());
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							connection.finishConnect();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.writable();
+						}
+					} catch (IOException | RuntimeException e) {
+						connection.close();
+					}
+				}
+			}
+		}
+
+		private void accept(ServerSocketChannel server) {
+			try {
+				SocketChannel channel;
+				while ((channel = server.accept()) != null) {
+					channel.configureBlocking(false);
+					Connection connection = new Connection(channel, nextLoop());
+					connection.loop.register(channel, SelectionKey.OP_READ, connection);
+				}
+			} catch (IOException e) {
+				log.warning("could not accept a connection: " + e);
+			}
+		}
+	}
+
+	private enum State {
+		// accepted, waiting for the HANDSHAKE_REQUEST
+		AWAIT_REQUEST,
+		// accepted and answered, waiting for the peer's HANDSHAKE_RESPONSE
+		AWAIT_CONFIRM,
+		// connecting, or waiting for the answer to our HANDSHAKE_REQUEST
+		AWAIT_RESPONSE,
+		CONNECTED,
+		CLOSED
+	}
+
+	/**
+	 * A message as it was read, handled on a worker.
+	 */
+	private static class Inbound {
+		final String json;
+		// the frame's payload from the BufferPool, or null for a JSON message
+		final ByteBuffer payload;
+
+		Inbound(String json, ByteBuffer payload) {
+			this.json = json;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * One peer connection. Reading is done only on its selector thread, handling on one worker
+	 * at a time, and writing by whichever thread holds the connection's lock.
+	 */
+	private static class Connection implements TCP.Link {
+		final SocketChannel channel;
+		final Loop loop;
+		private SelectionKey key;
+		private volatile State state;
+		// the peer, from the start for connections we make, from the handshake for the others
+		private HostPort hostport;
+		// for connections we make, the peers to try if this one refuses
+		private final Queue<HostPort> alternatives;
+		private final Set<HostPort> tried;
+
+		// read on the selector thread, always ready to be read into
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+		// how far the line at the start of in was searched for its end
+		private int scanned;
+		// the frame being read, if its payload has not all arrived
+		private String header;
+		private ByteBuffer payload;
+
+		private final ArrayDeque<Inbound> inbound = new ArrayDeque<Inbound>();
+		private boolean handling;
+
+		// written under the connection's lock, the buffers go out before what is in the encoder
+		private final MessageEncoder encoder = new MessageEncoder();
+		private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<ByteBuffer>();
+		private long pending;
+		private boolean writeInterest;
+
+		// a connection that was accepted
+		Connection(SocketChannel channel, Loop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.state = State.AWAIT_REQUEST;
+			this.alternatives = null;
+			this.tried = null;
+		}
+
+		// a connection to a peer
+		Connection(SocketChannel channel, Loop loop, HostPort peer, Queue<HostPort> alternatives, Set<HostPort> tried) {
+			this.channel = channel;
+			this.loop = loop;
+			this.state = State.AWAIT_RESPONSE;
+			this.hostport = peer;
+			this.alternatives = alternatives;
+			this.tried = tried;
+		}
+
+		synchronized void registered(SelectionKey key) {
+			this.key = key;
+			if (state == State.CLOSED) {
+				key.cancel();
+			} else if (!queued.isEmpty() && key.interestOps() == SelectionKey.OP_READ) {
+				writeInterest = true;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		void finishConnect() throws IOException {
+			if (channel.finishConnect()) {
+				key.interestOps(SelectionKey.OP_READ);
+				sendRequest();
+			}
+		}
+
+		void sendRequest() throws IOException {
+			Document request = new Document();
+			request.append("command", "HANDSHAKE_REQUEST");
+			request.append("hostPort", new HostPort(Peer.ip, Peer.port).toDoc());
+			PeerFeatures.local().appendTo(request);
+			send(request.toJson());
+			System.out.println("COMMAND SENT: " + request.toJson());
+		}
+
+		// ---------------------------------- reading, on the selector thread ----------------------------------
+
+		void read() throws IOException {
+			int n;
+			if (payload != null && in.position() == 0) {
+				// the rest of a frame goes straight where it is handled from
+				n = channel.read(payload);
+			} else {
+				n = channel.read(in);
+			}
+			if (n < 0) {
+				throw new EOFException();
+			}
+			decode();
+		}
+
+		// split what was read into messages, the rest stays in the buffer
+		private void decode() throws IOException {
+			int need = 0;
+			in.flip();
+			byte[] bytes = in.array();
+			while (true) {
+				if (payload != null) {
+					int n = Math.min(in.remaining(), payload.remaining());
+					payload.put(bytes, in.position(), n);
+					in.position(in.position() + n);
+					if (payload.hasRemaining()) {
+						break;
+					}
+					payload.flip();
+					received(new Inbound(header, payload));
+					header = null;
+					payload = null;
+					continue;
+				}
+				if (!in.hasRemaining()) {
+					break;
+				}
+				if (bytes[in.position()] == BinaryFrame.MARKER) {
+					if (in.remaining() < 5) {
+						break;
+					}
+					int headerLength = in.getInt(in.position() + 1);
+					if (headerLength < 0) {
+						throw new IOException("malformed frame");
+					}
+					if (in.remaining() < 9 + headerLength) {
+						need = 9 + headerLength;
+						break;
+					}
+					in.position(in.position() + 5);
+					header = new String(bytes, in.position(), headerLength, StandardCharsets.UTF_8);
+					in.position(in.position() + headerLength);
+					int payloadLength = in.getInt();
+					if (payloadLength < 0) {
+						throw new IOException("malformed frame");
+					}
+					payload = BufferPool.acquire(payloadLength);
+					continue;
+				}
+				int start = in.position();
+				int newline = start + scanned;
+				while (newline < in.limit() && bytes[newline] != '\n') {
+					newline++;
+				}
+				if (newline == in.limit()) {
+					scanned = newline - start;
+					need = in.remaining() + 1;
+					break;
+				}
+				scanned = 0;
+				int end = newline > start && bytes[newline - 1] == '\r' ? newline - 1 : newline;
+				if (end > start) {
+					received(new Inbound(new String(bytes, start, end - start, StandardCharsets.UTF_8), null));
+				}
+				in.position(newline + 1);
+			}
+			in.compact();
+			if (need > in.capacity()) {
+				in = resized(Math.max(need, in.capacity() * 2));
+			} else if (in.capacity() > READ_BUFFER && need <= READ_BUFFER && in.position() <= READ_BUFFER / 2) {
+				in = resized(READ_BUFFER);
+			}
+		}
+
+		private ByteBuffer resized(int capacity) {
+			ByteBuffer resized = ByteBuffer.allocate(capacity);
+			in.flip();
+			resized.put(in);
+			return resized;
+		}
+
+		private void received(Inbound message) {
+			synchronized (inbound) {
+				inbound.add(message);
+				if (handling) {
+					return;
+				}
+				handling = true;
+			}
+			workers.execute(this::handle);
+		}
+
+		// ------------------------------------- handling, on a worker -------------------------------------
+
+		private void handle() {
+			while (true) {
+				Inbound message;
+				synchronized (inbound) {
+					message = inbound.poll();
+					if (message == null) {
+						handling = false;
+						return;
+					}
+				}
+				try {
+					if (state != State.CLOSED) {
+						receive(new BinaryFrame(Document.parse(message.json), message.payload));
+					}
+				} catch (IOException e) {
+					close();
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "could not handle a message from " + hostport, e);
+					// a handshake that went wrong leaves nothing to carry on with
+					if (state != State.CONNECTED) {
+						close();
+					}
+				} finally {
+					BufferPool.release(message.payload);
+				}
+			}
+		}
+
+		private void receive(BinaryFrame frame) throws IOException {
+			Document command = frame.header;
+			String name = command.containsKey("command") ? command.get("command").toString() : "";
+			switch (state) {
+				case CONNECTED:
+					TCP.handle(frame, hostport, ser, this);
+					break;
+
+				case AWAIT_REQUEST:
+					if (!name.equals("HANDSHAKE_REQUEST")) {
+						close();
+						break;
+					}
+					String message;
+					synchronized (Peer.connectedPeers) {
+						message = TCP.handleHandshake(command, ser);
+					}
+					send(message);
+					System.out.println("COMMAND SENT: " + message);
+					if (Document.parse(message).getString("command").equals("HANDSHAKE_RESPONSE")) {
+						state = State.AWAIT_CONFIRM;
+					} else {
+						closeWhenSent();
+					}
+					break;
+
+				case AWAIT_CONFIRM:
+					if (!name.equals("HANDSHAKE_RESPONSE")) {
+						close();
+						break;
+					}
+					hostport = new HostPort((Document) command.get("hostPort"));
+					PeerFeatures.remember(hostport, PeerFeatures.from(command));
+					connected();
+					break;
+
+				case AWAIT_RESPONSE:
+					if (name.equals("HANDSHAKE_RESPONSE")) {
+						// refuse a peer that cannot understand our file descriptors
+						String incompatible = PeerFeatures.local().checkCompatible(PeerFeatures.from(command));
+						if (incompatible != null) {
+							System.out.println("connection failed: " + incompatible);
+							alternatives.clear();
+							close();
+							break;
+						}
+						PeerFeatures.remember(hostport, PeerFeatures.from(command));
+						Document reply = new Document();
+						reply.append("command", "HANDSHAKE_RESPONSE");
+						reply.append("hostPort", new HostPort(Peer.ip, Peer.port).toDoc());
+						PeerFeatures.local().appendTo(reply);
+						send(reply.toJson());
+						connected();
+					} else {
+						// CONNECTION_REFUSED names the peers it is connected to instead
+						@SuppressWarnings("unchecked")
+						ArrayList<Document> peers = (ArrayList<Document>) command.get("peers");
+						if (peers != null) {
+							for (Document peer : peers) {
+								alternatives.offer(new HostPort(peer));
+							}
+						}
+						close();
+					}
+					break;
+
+				case CLOSED:
+					break;
+			}
+		}
+
+		private void connected() throws IOException {
+			synchronized (Peer.connectedPeers) {
+				if (Peer.connectedPeers.contains(hostport)) {
+					close();
+					return;
+				}
+				Peer.connectedPeers.add(hostport);
+			}
+			connections.put(hostport, this);
+			state = State.CONNECTED;
+			if (alternatives != null) {
+				alternatives.clear();
+			}
+			// transfers from this peer may be started by any peer's thread
+			TransferScheduler.register(hostport, messages -> send(messages));
+			System.out.println("Current connected peers: " + connections.size());
+			// what we have, the peer asks for whatever it is missing
+			sendEvents(ser.fileSystemManager.generateSyncEvents());
+		}
+
+		// -------------------------------------- writing, on any thread --------------------------------------
+
+		@Override
+		public synchronized void send(String message) throws IOException {
+			encoder.message(message);
+			flush();
+		}
+
+		@Override
+		public synchronized void send(ArrayList<String> messages) throws IOException {
+			for (String message : messages) {
+				encoder.message(message);
+				System.out.println("COMMAND SENT: " + message);
+			}
+			flush();
+		}
+
+		@Override
+		public synchronized void send(BinaryFrame frame) throws IOException {
+			if (state == State.CLOSED) {
+				frame.release();
+				throw new IOException("connection closed");
+			}
+			encoder.bytes(frame.head());
+			queueEncoded();
+			if (frame.pooled() && frame.payload.isDirect()) {
+				// the payload is written from the frame's own buffer, which goes back to the pool once written
+				queue(frame.payload);
+			} else {
+				ByteBuffer copy = BufferPool.acquireDirect(frame.payload.remaining());
+				copy.put(frame.payload.duplicate());
+				copy.flip();
+				queue(copy);
+				frame.release();
+			}
+			flush();
+		}
+
+		synchronized void sendEvents(ArrayList<FileSystemEvent> events) throws IOException {
+			for (FileSystemEvent event : events) {
+				encoder.event(event);
+				if (encoder.size() >= EVENTS_FLUSH) {
+					flush();
+				}
+			}
+			flush();
+		}
+
+		@Override
+		public boolean sendBulk(Document command) {
+			return false;
+		}
+
+		@Override
+		public boolean direct() {
+			return true;
+		}
+
+		private void queueEncoded() {
+			if (encoder.size() == 0) {
+				return;
+			}
+			ByteBuffer encoded = BufferPool.acquireDirect(encoder.size());
+			encoder.writeTo(encoded);
+			encoded.flip();
+			queue(encoded);
+		}
+
+		private void queue(ByteBuffer buffer) {
+			queued.add(buffer);
+			pending += buffer.remaining();
+		}
+
+		// write what can be written now, and hold the sender back while too much is waiting
+		private void flush() throws IOException {
+			if (state == State.CLOSED) {
+				throw new IOException("connection closed");
+			}
+			queueEncoded();
+			if (!writeInterest) {
+				write();
+			}
+			// a selector thread may be sending for another loop's connection, say when a
+			// closed connection's transfers move on, and must not wait for that loop
+			while (pending > maximumPending && state != State.CLOSED && !onSelectorThread()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (state == State.CLOSED) {
+				throw new IOException("connection closed");
+			}
+		}
+
+		synchronized void writable() throws IOException {
+			write();
+		}
+
+		private void write() throws IOException {
+			while (!queued.isEmpty()) {
+				ByteBuffer buffer = queued.peek();
+				pending -= channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					break;
+				}
+				BufferPool.release(queued.poll());
+			}
+			boolean more = !queued.isEmpty();
+			if (more != writeInterest && key != null) {
+				writeInterest = more;
+				key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				if (Thread.currentThread() != loop.thread) {
+					loop.selector.wakeup();
+				}
+			}
+			if (pending <= maximumPending) {
+				notifyAll();
+			}
+			if (!more && state == State.CLOSED) {
+				channel.close();
+			}
+		}
+
+		// ------------------------------------------- closing -------------------------------------------
+
+		// for a refused connection, once the refusal has gone out
+		private synchronized void closeWhenSent() {
+			if (queued.isEmpty()) {
+				close();
+			} else {
+				state = State.CLOSED;
+				notifyAll();
+			}
+		}
+
+		void close() {
+			State was;
+			synchronized (this) {
+				was = state;
+				state = State.CLOSED;
+				for (ByteBuffer buffer : queued) {
+					BufferPool.release(buffer);
+				}
+				queued.clear();
+				pending = 0;
+				notifyAll();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+			// the selector thread may be reading into it
+			loop.execute(() -> {
+				BufferPool.release(payload);
+				payload = null;
+			});
+			if (was == State.CONNECTED) {
+				connections.remove(hostport, this);
+				synchronized (Peer.connectedPeers) {
+					Peer.connectedPeers.remove(hostport);
+				}
+				PeerFeatures.forget(hostport);
+				TransferScheduler.unregister(hostport);
+			} else if (was == State.AWAIT_RESPONSE) {
+				System.out.println("connection failed");
+				connectAlternative(alternatives, tried);
+			}
+		}
+	}
+
+	private SelectorTransport() {
+	}
+}
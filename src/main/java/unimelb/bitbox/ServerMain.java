@@ -1,135 +1,68 @@
 package unimelb.bitbox;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
-import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import antlr.CharBuffer;
+import unimelb.bitbox.util.BufferPool;
+import unimelb.bitbox.util.ChunkStore;
 import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Delta;
 import unimelb.bitbox.util.Document;
 import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.FileSystemObserver;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Metrics;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeMap;
 import java.util.Base64;
 
 
 public class ServerMain implements FileSystemObserver {
 	private static Logger log = Logger.getLogger(ServerMain.class.getName());
 	protected FileSystemManager fileSystemManager;
-	public ArrayList<String> eventList;
+	public ArrayList<FileSystemEvent> eventList;
 
 	public ServerMain() throws NumberFormatException, IOException, NoSuchAlgorithmException {
 		fileSystemManager = new FileSystemManager(Configuration.getConfigurationValue("path"), this);
-		eventList = new ArrayList<String>();
+		eventList = new ArrayList<FileSystemEvent>();
 	}
 
 	@Override
 	public void processFileSystemEvent(FileSystemEvent fileSystemEvent) {
-		// TODO: process events
-		switch (fileSystemEvent.event) {
-		case FILE_MODIFY:
-
-			// transform fileSystemEvent into JSONObject
-			JSONObject message = new JSONObject();
-			message.put("command", "FILE_MODIFY_REQUEST");
-
-			Document document = (Document) fileSystemEvent.fileDescriptor.toDoc();
-			
-			// transform fileDesciptor Doc into JSONObject
-			JSONObject fileDescriptor = new JSONObject();
-			fileDescriptor.put("md5", document.get("md5"));
-			fileDescriptor.put("lastModified", document.get("lastModified"));
-			fileDescriptor.put("fileSize", document.get("fileSize"));
-			
-			message.put("fileDescriptor", fileDescriptor);
-			message.put("pathName", fileSystemEvent.pathName);
-
-			String protocol = message.toJSONString();
-			eventList.add(message.toString());
-			
-
-			break;
-			
-	case FILE_CREATE:
-
-			 // transform fileSystemEvent into JSONObject
-			 JSONObject message1 = new JSONObject();
-			 message1.put("command", "FILE_CREATE_REQUEST");
-
-			 Document document1  = (Document) fileSystemEvent.fileDescriptor.toDoc();
-			 
-			 // transform fileDesciptor Doc into JSONObject
-			 JSONObject fileDescriptor1 = new JSONObject();
-			 fileDescriptor1.put("md5", document1.get("md5"));
-			 fileDescriptor1.put("lastModified", document1.get("lastModified"));
-			 fileDescriptor1.put("fileSize", document1.get("fileSize"));
-			 
-			 message1.put("fileDescriptor", fileDescriptor1);
-			 message1.put("pathName", fileSystemEvent.pathName);
-			      
-			 String protocol1 = message1.toJSONString();
-		     eventList.add(message1.toString());
-					
-			 break; 
-					
-		case FILE_DELETE:
-			
-			//transform fileSystemEvent to JSONObject 
-			JSONObject message2 = new JSONObject();
-			message2.put("command", "FILE_DELETE_REQUEST");
-			
-			Document document2 = (Document) fileSystemEvent.fileDescriptor.toDoc();
-			
-			// transform fileDesciptor Doc into JSONObject
-			JSONObject fileDescriptor2 = new JSONObject();
-			fileDescriptor2.put("md5", document2.get("md5"));
-			fileDescriptor2.put("lastModified", document2.get("lastModified"));
-			fileDescriptor2.put("filesize", document2.get("fileSize"));
-			
-			message2.put("fileDescriptor", fileDescriptor2);
-			message2.put("pathName", fileSystemEvent.pathName);
-			
-			String protocol2 = message2.toJSONString();
-			eventList.add(message2.toString());
-			
-			break;
-			
-		case DIRECTORY_CREATE:
-			
-			//transform fileSystemEvent to JSONObject 
-			JSONObject message3 = new JSONObject();
-			message3.put("command", "DIRECTORY_CREATE_REQUEST");
-			message3.put("pathName", fileSystemEvent.pathName);
-			
-			String protocol3 = message3.toJSONString();
-			eventList.add(message3.toString());
-			
-			break;
-			
-		case DIRECTORY_DELETE:
-			
-			//transform fileSystemEvent to JSONObject 
-			JSONObject message4 = new JSONObject();
-			message4.put("pathName", fileSystemEvent.pathName);
-			message4.put("command", "DIRECTORY_DELETE_REQUEST");
-			
-			String protocol4 = message4.toJSONString();
-			eventList.add(message4.toString());
-			
-			break;
+		// the requests are written from the event when they are sent, see MessageEncoder
+		synchronized (eventList) {
+			eventList.add(fileSystemEvent);
 		}
 	};
+
+	/**
+	 * @return The events since the last call, which are no longer in eventList.
+	 */
+	public ArrayList<FileSystemEvent> takeEvents() {
+		synchronized (eventList) {
+			ArrayList<FileSystemEvent> events = new ArrayList<FileSystemEvent>(eventList);
+			eventList.clear();
+			return events;
+		}
+	}
 	
 	public String file_create_response(Document message) throws NoSuchAlgorithmException, IOException {
 		Document response = new Document();		
@@ -139,6 +72,14 @@ public class ServerMain implements FileSystemObserver {
 		long lastModified = (long)des.get("lastModified");
 		String md5 = (String)des.get("md5");
 		long blockSize =  Long.parseLong(Configuration.getConfigurationValue("blockSize"));
+		if (fileSystemManager.isExcluded(pathName, false) == true) {
+			response.append("command", "FILE_CREATE_RESPONSE");
+			response.append("fileDescriptor", des);
+			response.append("pathName", pathName);
+			response.append("message", "pathname is excluded");
+			response.append("status", false);
+			return response.toJson();
+		}
 		if (fileSystemManager.fileNameExists(pathName) == false) {
 		if (fileSystemManager.createFileLoader(pathName, md5, length, lastModified) == true) {
 				response.append("command", "FILE_CREATE_RESPONSE");
@@ -173,47 +114,43 @@ public class ServerMain implements FileSystemObserver {
 		
 	}
 	
-	public String file_bytes_request(Document message)  {
-		String result = "";
-		Document response = new Document();		
+	/**
+	 * Queue the file to be received, unless it is already complete, see {@link TransferScheduler}.
+	 * @param peer The peer the bytes are requested from.
+	 */
+	public void file_bytes_request(Document message, HostPort peer)  {
 		Document des =(Document) message.get("fileDescriptor");
 		String pathName = (String)message.get("pathName");
-		long length = (long)des.get("fileSize");
-		long lastModified = (long)des.get("lastModified");
-		String md5 = (String)des.get("md5");
-		long blockSize =  Long.parseLong(Configuration.getConfigurationValue("blockSize"));
-		if (blockSize>5000) {
-			blockSize = 5000;
-		}
 		try {
-		if (fileSystemManager.checkWriteComplete(pathName) == true ) {
-				result = "complete";
-			} else {
-				if(blockSize > length) {
-					response.append("command", "FILE_BYTES_REQUEST");			
-					response.append("fileDescriptor", des);
-					response.append("pathName", pathName);
-					response.append("position", 0);
-					response.append("length", length);
-					result = response.toJson();
-					
-				} else {
-					response.append("command", "FILE_BYTES_REQUEST");			
-					response.append("fileDescriptor", des);
-					response.append("pathName", pathName);
-					response.append("position", 0);
-					response.append("length", blockSize);
-					result = response.toJson();
-				}
-			}
+			receive(des, pathName, peer);
 		 } catch(Exception e) {
-			 result = "complete";
+			 // nothing more to request
 		 }
-
-		return result;
 		
 	}
 	
+	/**
+	 * Queue the parts of a file that its loader is missing, all of it unless the loader
+	 * resumed an earlier transfer, or complete the file if it has them all.
+	 */
+	private void receive(Document des, String pathName, HostPort peer) throws NoSuchAlgorithmException, IOException {
+		TreeMap<Long,Long> missing = fileSystemManager.missingRanges(pathName);
+		if (missing == null) {
+			return;
+		}
+		if (missing.isEmpty()) {
+			if (fileSystemManager.checkWriteComplete(pathName) == true) {
+				return;
+			}
+			// it did not check out, and has to be received again
+			missing = fileSystemManager.missingRanges(pathName);
+			if (missing == null) {
+				return;
+			}
+		}
+		TransferScheduler.submit(peer, des, pathName, missing);
+	}
+	
 	public String file_modify_response(Document message) throws NoSuchAlgorithmException, IOException {
 		Document response = new Document();		
 		Document des =(Document) message.get("fileDescriptor");
@@ -238,44 +175,291 @@ public class ServerMain implements FileSystemObserver {
 		
 	}
 	
-	public String byte_request(Document message) throws NoSuchAlgorithmException, IOException {
-		Document response = new Document();		
+	/**
+	 * Queue the modified file to be received, if it needs any bytes, see {@link TransferScheduler}.
+	 * @param peer The peer the bytes are requested from.
+	 */
+	public void byte_request(Document message, HostPort peer) throws NoSuchAlgorithmException, IOException {
 		Document des =(Document) message.get("fileDescriptor");
 		String pathName = (String)message.get("pathName");
-		long lastModified = (long)des.get("lastModified");
-		long length = (long)des.get("fileSize");
-		String md5 = (String)des.get("md5");	
-		long blockSize =  Long.parseLong(Configuration.getConfigurationValue("blockSize"));
-		if (blockSize>5000) {
-			blockSize = 5000;
+		if (fileSystemManager.checkShortcut(pathName) == false) {
+			receive(des, pathName, peer);
 		}
-		if ((long)des.get("fileSize")!=0) {
-			if (fileSystemManager.checkShortcut("test.txt") == false) {
-				if(blockSize > length) {
-					response.append("command", "FILE_BYTES_REQUEST");			
-					response.append("fileDescriptor", des);
-					response.append("pathName", pathName);
-					response.append("position", 0);
-					response.append("length", length);
-				} else {
-					response.append("command", "FILE_BYTES_REQUEST");			
-					response.append("fileDescriptor", des);
-					response.append("pathName", pathName);
-					response.append("position", 0);
-					response.append("length", blockSize);
-				}
+	}
+	
+	/**
+	 * Ask for a modified file as the difference from its current content, if the peer can
+	 * answer, see {@link Delta}. Otherwise the file is requested with {@link #byte_request(Document, HostPort)}.
+	 * @param peer The peer that sent the FILE_MODIFY_REQUEST.
+	 * @return The FILE_DELTA_REQUEST to send, or null if there is no current content to build on.
+	 */
+	public String delta_request(Document message, HostPort peer) throws NoSuchAlgorithmException, IOException {
+		if (PeerFeatures.local().deltaSync == false || PeerFeatures.of(peer).deltaSync == false) {
+			return null;
+		}
+		Document des = (Document)message.get("fileDescriptor");
+		String pathName = (String)message.get("pathName");
+		// a loader that resumed an earlier transfer only needs the parts it is missing
+		TreeMap<Long,Long> missing = fileSystemManager.missingRanges(pathName);
+		if (missing == null || missing.equals(Collections.singletonMap(0L, (long)des.get("fileSize"))) == false) {
+			return null;
+		}
+		Delta.Signatures signatures = fileSystemManager.signFile(pathName, Delta.blockSize((long)des.get("fileSize")));
+		if (signatures == null || signatures.weak.length == 0) {
+			return null;
+		}
+		Document request = new Document();
+		request.append("command", "FILE_DELTA_REQUEST");
+		request.append("fileDescriptor", des);
+		request.append("pathName", pathName);
+		request.append("signatures", signatures.toDoc());
+		return request.toJson();
+	}
+	
+	/**
+	 * Work out how a peer can build a file from its current content.
+	 * @return The FILE_DELTA_RESPONSE, with the instructions if the file could be read.
+	 */
+	public String delta_response(Document command) throws NoSuchAlgorithmException, IOException {
+		Document des = (Document)command.get("fileDescriptor");
+		Document response = new Document();
+		response.append("command", "FILE_DELTA_RESPONSE");
+		response.append("fileDescriptor", des);
+		response.append("pathName", (String)command.get("pathName"));
+		FileChannel file = fileSystemManager.openFile((String)des.get("md5"));
+		if (file == null) {
+			response.append("message", "unsuccessful read");
+			response.append("status", false);
+			return response.toJson();
+		}
+		ArrayList<Delta.Instruction> instructions;
+		try {
+			instructions = Delta.match(file, Delta.Signatures.fromDoc((Document)command.get("signatures")));
+		} finally {
+			file.close();
+		}
+		ArrayList<Document> docs = new ArrayList<Document>();
+		for (Delta.Instruction instruction : instructions) {
+			docs.add(instruction.toDoc());
+		}
+		response.append("instructions", docs);
+		response.append("message", "successful read");
+		response.append("status", true);
+		return response.toJson();
+	}
+	
+	/**
+	 * Copy the unchanged parts of a modified file into place, and queue the rest to be
+	 * received. If the peer could not work out the difference, all that is missing is queued.
+	 * @param peer The peer that sent the FILE_DELTA_RESPONSE.
+	 */
+	@SuppressWarnings("unchecked")
+	public void apply_delta(Document message, HostPort peer) throws NoSuchAlgorithmException, IOException {
+		Document des = (Document)message.get("fileDescriptor");
+		String pathName = (String)message.get("pathName");
+		if (message.getBoolean("status") == false) {
+			receive(des, pathName, peer);
+			return;
+		}
+		ArrayList<Delta.Instruction> instructions = new ArrayList<Delta.Instruction>();
+		for (Object doc : (ArrayList<Object>)message.get("instructions")) {
+			instructions.add(Delta.Instruction.fromDoc((Document)doc));
+		}
+		try {
+			if (fileSystemManager.copyBlocks(pathName, instructions) == false) {
+				return;
 			}
-		} else {
-			
+		} catch (IOException e) {
+			// the current content changed since it was signed, receive what was not copied
+			log.warning("could not copy the unchanged parts of "+pathName+": "+e.getMessage());
+			receive(des, pathName, peer);
+			return;
+		}
+		TreeMap<Long,Long> literals = Delta.literals(instructions);
+		long literalBytes = 0;
+		for (long length : literals.values()) {
+			literalBytes += length;
+		}
+		Metrics.add("deltaBytesCopied", (long)des.get("fileSize")-literalBytes);
+		Metrics.add("deltaBytesLiteral", literalBytes);
+		// what is missing now is the literal data
+		receive(des, pathName, peer);
+	}
+	
+	/**
+	 * Ask for the chunks of a file, to build it from chunks that local files already have, if
+	 * the peer can answer, see {@link ChunkStore}.
+	 * @param peer The peer that sent the FILE_CREATE_REQUEST or FILE_MODIFY_REQUEST.
+	 * @return The FILE_CHUNKS_REQUEST to send, or null if the file is to be requested as it is.
+	 */
+	public String chunks_request(Document message, HostPort peer) {
+		if (PeerFeatures.local().chunkStore == false || PeerFeatures.of(peer).chunkStore == false) {
+			return null;
+		}
+		Document des = (Document)message.get("fileDescriptor");
+		String pathName = (String)message.get("pathName");
+		// not worth a round trip for a file of a few chunks
+		if ((long)des.get("fileSize") < ChunkStore.MAXIMUM_CHUNK) {
+			return null;
+		}
+		TreeMap<Long,Long> missing = fileSystemManager.missingRanges(pathName);
+		if (missing == null || missing.equals(Collections.singletonMap(0L, (long)des.get("fileSize"))) == false) {
+			return null;
+		}
+		Document request = new Document();
+		request.append("command", "FILE_CHUNKS_REQUEST");
+		request.append("fileDescriptor", des);
+		request.append("pathName", pathName);
+		return request.toJson();
+	}
+	
+	/**
+	 * Split a file into chunks for a peer to build it from.
+	 * @return The FILE_CHUNKS_RESPONSE, with the chunks if the file could be read.
+	 */
+	public String chunks_response(Document command) throws NoSuchAlgorithmException, IOException {
+		Document des = (Document)command.get("fileDescriptor");
+		Document response = new Document();
+		response.append("command", "FILE_CHUNKS_RESPONSE");
+		response.append("fileDescriptor", des);
+		response.append("pathName", (String)command.get("pathName"));
+		FileChannel file = fileSystemManager.openFile((String)des.get("md5"));
+		if (file == null) {
+			response.append("message", "unsuccessful read");
+			response.append("status", false);
+			return response.toJson();
+		}
+		ChunkStore.Chunks chunks;
+		try {
+			chunks = ChunkStore.chunk(file);
+		} finally {
+			file.close();
 		}
-					
+		response.append("chunks", chunks.encode());
+		response.append("message", "successful read");
+		response.append("status", true);
 		return response.toJson();
 	}
 	
-	public String byte_response(Document command) throws NoSuchAlgorithmException, IOException, ParseException {
+	/**
+	 * Copy the chunks of a file that local files already have into place, and queue the rest
+	 * to be received. If the peer could not split the file, all of it is queued.
+	 * @param peer The peer that sent the FILE_CHUNKS_RESPONSE.
+	 */
+	public void apply_chunks(Document message, HostPort peer) throws NoSuchAlgorithmException, IOException {
+		Document des = (Document)message.get("fileDescriptor");
+		String pathName = (String)message.get("pathName");
+		if (message.getBoolean("status") == true) {
+			long copied = fileSystemManager.copyChunks(pathName, ChunkStore.Chunks.decode(message.getString("chunks")));
+			Metrics.add("chunkBytesCopied", copied);
+			Metrics.add("chunkBytesMissing", (long)des.get("fileSize")-copied);
+		}
+		receive(des, pathName, peer);
+	}
+	
+	/**
+	 * @param peer The peer that asked, whose {@link PeerFeatures} decide whether the bytes are compressed.
+	 */
+	public String byte_response(Document command, HostPort peer) throws NoSuchAlgorithmException, IOException, ParseException {
+		Document des = (Document)command.get("fileDescriptor");
+		Document response = byte_response_header(command);
+		
+		ByteBuffer sendingBuffer = BufferPool.acquire((int)(long)command.get("length"));
+		if (fileSystemManager.readFile((String)des.get("md5"), (long)command.get("position"), sendingBuffer) == false) {
+			BufferPool.release(sendingBuffer);
+			response.append("content", "");
+			response.append("message", "unsuccessful read");
+			response.append("status", false);
+			return response.toJson();
+		}
+		sendingBuffer.flip();
+		ByteBuffer content = encodeContent(response, sendingBuffer, peer);
+		String encoded = new String(Base64.getEncoder().encode(content).array(), StandardCharsets.US_ASCII);
+		BufferPool.release(content);
+		response.append("content", encoded);
+		
+		return response.toJson();
+	}
+	
+	/**
+	 * The same as {@link #byte_response(Document, HostPort)}, for a peer that takes binary frames.
+	 * @param direct True if the frame is written to a channel rather than copied into an array,
+	 * so that the bytes can be read into a direct buffer.
+	 * @return The FILE_BYTES_RESPONSE with the bytes read as its payload, which the caller must
+	 * {@link BinaryFrame#release()} once it is sent, or null if the bytes could not be read.
+	 */
+	public BinaryFrame byte_response_frame(Document command, HostPort peer, boolean direct) throws NoSuchAlgorithmException, IOException {
+		Document des = (Document)command.get("fileDescriptor");
+		int length = (int)(long)command.get("length");
+		// compression works on arrays
+		ByteBuffer sendingBuffer = direct && BlockCodec.encodingFor(peer) == null ? BufferPool.acquireDirect(length) : BufferPool.acquire(length);
+		if (fileSystemManager.readFile((String)des.get("md5"), (long)command.get("position"), sendingBuffer) == false) {
+			BufferPool.release(sendingBuffer);
+			return null;
+		}
+		sendingBuffer.flip();
+		Document response = byte_response_header(command);
+		return BinaryFrame.pooled(response, encodeContent(response, sendingBuffer, peer));
+	}
+	
+	/**
+	 * Add the checksum of the bytes of a FILE_BYTES_RESPONSE, and compress them if the peer
+	 * can decode them and it makes them smaller, see {@link BlockCodec}.
+	 * @param content Bytes from the {@link BufferPool}, which are released if they are compressed.
+	 * @return The bytes to send, from the pool.
+	 */
+	private ByteBuffer encodeContent(Document response, ByteBuffer content, HostPort peer) {
+		appendChecksum(response, content);
+		String encoding = BlockCodec.encodingFor(peer);
+		if (encoding == null) {
+			return content;
+		}
+		ByteBuffer compressed = BlockCodec.compress(content);
+		if (compressed == null) {
+			return content;
+		}
+		BufferPool.release(content);
+		response.append("encoding", encoding);
+		return compressed;
+	}
+	
+	/**
+	 * Add the CRC32 of the bytes of a FILE_BYTES_RESPONSE as its "crc32" field, if blockChecksums
+	 * is on, so that a damaged block is caught when it arrives rather than when the file is complete.
+	 * Peers that do not know the field ignore it.
+	 */
+	private void appendChecksum(Document response, ByteBuffer content) {
+		if (Boolean.parseBoolean(Configuration.getConfigurationValue("blockChecksums", "true")) == false) {
+			return;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(content.duplicate());
+		response.append("crc32", crc.getValue());
+	}
+	
+	/**
+	 * The same as {@link #byte_response_frame(Document, HostPort, boolean)}, sent straight from the file to the
+	 * peer's socket, see {@link BinaryFrame#transfer}. The caller must keep other writers off
+	 * the socket until this returns.
+	 * @return False if nothing was sent because the file could not be opened.
+	 */
+	public boolean byte_response_bulk(Document command, WritableByteChannel out) throws NoSuchAlgorithmException, IOException {
+		Document des = (Document)command.get("fileDescriptor");
+		FileChannel file = fileSystemManager.openFile((String)des.get("md5"));
+		if (file == null) {
+			return false;
+		}
+		try {
+			BinaryFrame.transfer(byte_response_header(command), file, (long)command.get("position"), (long)command.get("length"), out);
+		} finally {
+			file.close();
+		}
+		return true;
+	}
+	
+	private Document byte_response_header(Document command) {
 		Document des = (Document)command.get("fileDescriptor");
 		String fileName = (String) command.get("pathName");
-		File f = new File("share/"+fileName);
 		
 		Document response = new Document();
 		response.append("command", "FILE_BYTES_RESPONSE");
@@ -285,87 +469,160 @@ public class ServerMain implements FileSystemObserver {
 		response.append("length",(long)command.get("length"));
 		response.append("message", "successful read");
 		response.append("status", true);
-		
-		ByteBuffer sendingBuffer = fileSystemManager.readFile((String)des.get("md5"), (long)command.get("position"), (long)command.get("length"));
-		String encoded = Base64.getEncoder().encodeToString(sendingBuffer.array());
-		response.append("content", encoded);
-		
-		return response.toJson();
+		return response;
 	}
 	
 
-	public String write_byte(Document message) throws IOException, NoSuchAlgorithmException, ParseException {
-		String result = "";
-		Document des = (Document)message.get("fileDescriptor");
+	/**
+	 * @param peer The peer the bytes came from.
+	 * @return The FILE_BYTES_REQUESTs that keep the peer's {@link TransferWindow} full, empty
+	 * once the file is complete, or a FILE_CREATE_RESPONSE on failure. Completing a file can
+	 * start queued transfers, which are sent by the {@link TransferScheduler}.
+	 */
+	public ArrayList<String> write_byte(Document message, HostPort peer) throws IOException, NoSuchAlgorithmException, ParseException {
+		if (message.containsKey("status") && message.getBoolean("status") == false) {
+			// the peer could not read the file, it has changed there and a new event will follow
+			return written(message, false, peer);
+		}
 		String buffer_str = (String)message.get("content");
 		
-		byte [] barr = Base64.getDecoder().decode(buffer_str);
-		
-		ByteBuffer content = ByteBuffer.wrap(barr);
-		long position = (long)message.get("position") + (long)message.get("length");
-		
-		if (fileSystemManager.writeFile((String)message.get("pathName"), content, (long)message.get("position")) == true) {
-		
-			if ((long)message.get("position") <= ((long)des.get("fileSize")-(long)message.get("length")*2)) {
-				Document response = new Document();		
-
-				response.append("command", "FILE_BYTES_REQUEST");
-				response.append("fileDescriptor", des);
-				response.append("pathName", (String)message.get("pathName"));
-				response.append("length", (long)message.get("length"));
-				response.append("position", position);
-				
-				result = response.toJson();
-				
-			} else if ((long)message.get("position") < ((long)des.get("fileSize")-(long)message.get("length"))) {
-				Document response = new Document();	
-
-				response.append("command", "FILE_BYTES_REQUEST");
-				response.append("fileDescriptor", des);
-				response.append("pathName", (String)message.get("pathName"));
-				response.append("length", (long)des.get("fileSize")-position);
-				response.append("position", position);
-				
-				result = response.toJson();
-			}	else if (((long)message.get("position") == ((long)des.get("fileSize")-(long)message.get("length")))) {
-				if (fileSystemManager.checkWriteComplete((String)message.get("pathName")) == true ) {
-					result  = "complete";
-				} else {
-					Document response = new Document();		
-
-					response.append("command", "FILE_CREATE_RESPONSE");
-					response.append("fileDescriptor", des);
-					response.append("pathName", (String)message.get("pathName"));
-					response.append("message", "there was a problem creating the file");
-					response.append("status", false);
-					
-					result = response.toJson();
+		byte [] encoded = buffer_str.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer content = BufferPool.acquire(encoded.length/4*3);
+		try {
+			content.limit(Base64.getDecoder().decode(encoded, content.array()));
+			return write_byte(message, content, peer);
+		} finally {
+			BufferPool.release(content);
+		}
+	}
+	
+	/**
+	 * The same as {@link #write_byte(Document, HostPort)}, for a FILE_BYTES_RESPONSE that
+	 * arrived as a binary frame.
+	 * @param message The frame header.
+	 * @param content The frame payload.
+	 */
+	public ArrayList<String> write_byte(Document message, ByteBuffer content, HostPort peer) throws IOException, NoSuchAlgorithmException, ParseException {
+		String pathName = (String)message.get("pathName");
+		if (!TransferWindow.of(peer).accepts(pathName, (long)message.get("position"), (long)message.get("length"))) {
+			return corrupted(message, peer);
+		}
+		ByteBuffer decoded = null;
+		if (message.containsKey("encoding")) {
+			try {
+				decoded = BlockCodec.decompress(message.getString("encoding"), content, (int)(long)message.get("length"));
+			} catch (IOException e) {
+				return corrupted(message, peer);
+			}
+			content = decoded;
+		}
+		try {
+			if (message.containsKey("crc32")) {
+				CRC32 crc = new CRC32();
+				crc.update(content.duplicate());
+				if (crc.getValue() != (long)message.get("crc32")) {
+					return corrupted(message, peer);
 				}
-			} else {
-				Document response = new Document();		
-
-				response.append("command", "FILE_CREATE_RESPONSE");
-				response.append("fileDescriptor", des);
-				response.append("pathName", (String)message.get("pathName"));
-				response.append("message", "there was a problem creating the file");
-				response.append("status", false);
-				
-				result = response.toJson();
 			}
-			} else {
+			return written(message, fileSystemManager.writeFile(pathName, content, (long)message.get("position")), peer);
+		} finally {
+			BufferPool.release(decoded);
+		}
+	}
+	
+	// ask for just this block again, rather than the whole file once it fails its hash
+	private ArrayList<String> corrupted(Document message, HostPort peer) {
+		String pathName = (String)message.get("pathName");
+		log.warning("damaged block of "+pathName+" at "+message.get("position"));
+		ArrayList<String> result = new ArrayList<String>();
+		String again = TransferWindow.of(peer).corrupted(pathName, (long)message.get("position"));
+		if (again != null) {
+			result.add(again);
+		}
+		return result;
+	}
+	
+	/**
+	 * The same as {@link #write_byte(Document, HostPort)}, for a FILE_BYTES_RESPONSE whose
+	 * bytes are still in the socket, see {@link BinaryFrame#body}. They are written to the
+	 * file straight from the socket, unless they are compressed or carry a "crc32" to check.
+	 * @param message The frame header.
+	 * @param content The frame body.
+	 * @param length The length of the body.
+	 */
+	public ArrayList<String> write_byte(Document message, ReadableByteChannel content, long length, HostPort peer) throws IOException, NoSuchAlgorithmException, ParseException {
+		String pathName = (String)message.get("pathName");
+		long declared = (long)message.get("length");
+		if (!TransferWindow.of(peer).accepts(pathName, (long)message.get("position"), declared)
+				|| (!message.containsKey("encoding") && length != declared)) {
+			// the rest of the body is skipped before the next message
+			return corrupted(message, peer);
+		}
+		if (message.containsKey("encoding") || message.containsKey("crc32")) {
+			// compressed bytes have to be decoded, and checked bytes checked, before they can be written
+			ByteBuffer body = BufferPool.acquire((int)length);
+			try {
+				while (body.hasRemaining()) {
+					if (content.read(body) < 0) {
+						throw new EOFException();
+					}
+				}
+				body.flip();
+				return write_byte(message, body, peer);
+			} finally {
+				BufferPool.release(body);
+			}
+		}
+		return written(message, fileSystemManager.writeFile(pathName, content, (long)message.get("position"), length), peer);
+	}
+	
+	private ArrayList<String> written(Document message, boolean written, HostPort peer) throws IOException, NoSuchAlgorithmException {
+		ArrayList<String> result = new ArrayList<String>();
+		Document des = (Document)message.get("fileDescriptor");
+		String pathName = (String)message.get("pathName");
+		TransferWindow window = TransferWindow.of(peer);
+		
+		if (written == true) {
+			// blocks may arrive in any order, only the last one to arrive completes the file
+			if (window.received(pathName, (long)message.get("position"), (long)message.get("length")) == false) {
+				result = window.fill(pathName);
+			} else if (complete(pathName, peer) == false) {
 				Document response = new Document();		
 
 				response.append("command", "FILE_CREATE_RESPONSE");
 				response.append("fileDescriptor", des);
-				response.append("pathName", (String)message.get("pathName"));
+				response.append("pathName", pathName);
 				response.append("message", "there was a problem creating the file");
 				response.append("status", false);
 				
-				result = response.toJson();
+				result.add(response.toJson());
 			}
+		} else {
+			// no loader, e.g. the file was completed from another peer, stop asking for it
+			window.cancel(pathName);
+			TransferScheduler.finished(peer, pathName);
+			Document response = new Document();		
+
+			response.append("command", "FILE_CREATE_RESPONSE");
+			response.append("fileDescriptor", des);
+			response.append("pathName", pathName);
+			response.append("message", "there was a problem creating the file");
+			response.append("status", false);
+			
+			result.add(response.toJson());
+		}
 		return result;
 	}
 	
+	// check a file whose last block arrived, and make room for the next transfer
+	private boolean complete(String pathName, HostPort peer) throws NoSuchAlgorithmException, IOException {
+		try {
+			return fileSystemManager.checkWriteComplete(pathName);
+		} finally {
+			TransferScheduler.finished(peer, pathName);
+		}
+	}
+	
 	public String delete_file(Document message) {
 		Document response = new Document();	
 		Document des = (Document)message.get("fileDescriptor");
@@ -421,7 +678,12 @@ public class ServerMain implements FileSystemObserver {
 	public String create_directory(Document message) {
 		Document response = new Document();	;
 		String pathName = (String)message.get("pathName");
-		if(fileSystemManager.makeDirectory((String)message.get("pathName")) == true) {
+		if(fileSystemManager.isExcluded(pathName, true) == true) {
+			response.append("command", "DIRECTORY_CREATE_RESPONSE");
+			response.append("pathName", pathName);
+			response.append("message", "pathname is excluded" );
+			response.append("status", false);
+		} else if(fileSystemManager.makeDirectory((String)message.get("pathName")) == true) {
 			response.append("command", "DIRECTORY_CREATE_RESPONSE");
 			response.append("pathName", pathName);
 			response.append("message", "directory created" );
@@ -5,23 +5,29 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import javax.net.ServerSocketFactory;
-
 import org.json.simple.parser.ParseException;
 
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.Handlers;
 import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.MessageEncoder;
+import unimelb.bitbox.util.Metrics;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 
 public class TCP {
@@ -33,6 +39,10 @@ public class TCP {
 	protected static ArrayList<Socket> socketList = Peer.socketList;
 	protected static Queue<HostPort> hostPortsQueue = Peer.hostPortsQueue;
 	protected static ServerMain ser = Peer.ser;
+	// each connection's buffer for the messages written to it
+	private static ConcurrentHashMap<Socket, MessageEncoder> encoders = new ConcurrentHashMap<Socket, MessageEncoder>();
+	// events are written out once this much of them is buffered
+	private static final int ENCODER_FLUSH = 64 * 1024;
 	
 	// ================================= waiting for new connection request ==================================
 		// running all the time waiting for incoming connections
@@ -40,12 +50,13 @@ public class TCP {
 			Thread serverListening = new Thread(new Runnable() {
 				@Override
 				public void run() {
-					ServerSocketFactory factory = ServerSocketFactory.getDefault();
-					try (ServerSocket serverSocket = factory.createServerSocket(port)) {
+					// sockets made from channels, so file bytes can be sent and received without copies
+					try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+						serverSocket.bind(new InetSocketAddress(port));
 						System.out.println("Server listening on " + ip + ":" + port + " for a connection");
 						while (true) {
 							// this step will block, if there is no more connection coming in
-							Socket socket = serverSocket.accept();
+							Socket socket = serverSocket.accept().socket();
 							BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
 							BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
 							
@@ -56,7 +67,7 @@ public class TCP {
 							switch (command.get("command").toString()) {
 							case "HANDSHAKE_REQUEST":
 								// here need to build a socket and start a thread: in handleHandshake
-								message = handleHandshake(socket, command, ser);
+								message = handleHandshake(command, ser);
 								command = Document.parse(message);
 								
 								// if message is HANDSHAKE_RESPONSE
@@ -73,17 +84,13 @@ public class TCP {
 									if (command.get("command").toString().equals("HANDSHAKE_RESPONSE")) {
 										// Add the connecting peer to the connected peer list
 										HostPort hostPort = new HostPort((Document) command.get("hostPort"));
+										PeerFeatures.remember(hostPort, PeerFeatures.from(command));
 										connectedPeers.add(hostPort);
 										socketList.add(socket);
 
 										// connection success and send the local file to another peer
-										new Thread(() -> peerRunning(socket, hostPort, ser)).start();
-										ArrayList<FileSystemEvent> pathevents = ser.fileSystemManager.generateSyncEvents();
-										for(FileSystemEvent pathevent : pathevents) {
-											ser.processFileSystemEvent(pathevent);
-										}
-										peerSending(socket, ser);
-										ser.eventList.removeAll(ser.eventList);
+										peerRunning(socket, hostPort, ser);
+										peerSending(socket, ser.fileSystemManager.generateSyncEvents());
 									}
 									break;
 									
@@ -117,7 +124,7 @@ public class TCP {
 			// if socket exist: means the other peer is running
 			if ((socket != null) && (!socket.isClosed())) {
 				HostPort hostport = new HostPort(peerIP, peerPort);
-				new Thread(() -> peerRunning(socket, hostport, ser)).start();
+				peerRunning(socket, hostport, ser);
 				socketList.add(socket);
 				connectedPeers.add(hostport);
 			}
@@ -129,7 +136,11 @@ public class TCP {
 		Socket socket = null;
 		System.out.println("Sent connection request: Try connecting to " + peerIp + ":" + peerPort);
 		try {
-			socket = new Socket(peerIp, peerPort);
+			InetSocketAddress address = new InetSocketAddress(peerIp, peerPort);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(peerIp);
+			}
+			socket = SocketChannel.open(address).socket();
 			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
 			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
 			Document newCommand = new Document();
@@ -137,6 +148,7 @@ public class TCP {
 			// my own host port info
 			HostPort hostPort = new HostPort(ip, port);
 			newCommand.append("hostPort", (Document) hostPort.toDoc());
+			PeerFeatures.local().appendTo(newCommand);
 			out.write(newCommand.toJson() + "\n");
 			out.flush();
 			
@@ -147,10 +159,20 @@ public class TCP {
 			System.out.println(command.get("command").toString());
 			switch (command.get("command").toString()) {
 				case "HANDSHAKE_RESPONSE":
+					// refuse a peer that cannot understand our file descriptors
+					String incompatible = PeerFeatures.local().checkCompatible(PeerFeatures.from(command));
+					if (incompatible != null) {
+						System.out.println("connection failed: " + incompatible);
+						socket.close();
+						socket = null;
+						break;
+					}
+					PeerFeatures.remember(new HostPort(peerIp, peerPort), PeerFeatures.from(command));
 					// reply to the server
 					Document replyCommand = new Document();
 					replyCommand.append("command", "HANDSHAKE_RESPONSE");
 					replyCommand.append("hostPort", new HostPort(ip, port).toDoc());
+					PeerFeatures.local().appendTo(replyCommand);
 					out.write(replyCommand.toJson() + "\n");
 					out.flush();
 					break;
@@ -199,15 +221,19 @@ public class TCP {
 	}
 	
 	// =============================== send the new events to the other peer ==========================================
-	public static Boolean peerSending(Socket socket, ServerMain ser) {
+	public static Boolean peerSending(Socket socket, ArrayList<FileSystemEvent> events) {
 		try {
-			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
 			// if we have message need to send out
-			Iterator<String> iter = ser.eventList.iterator();
+			Iterator<FileSystemEvent> iter = events.iterator();
 			while (iter.hasNext()) {
-				String s = iter.next();
-				out.write(s + "\n");
-				out.flush();
+				// never in the middle of a binary frame, nor holding frames up for a whole sync
+				synchronized (socket) {
+					MessageEncoder encoder = encoder(socket);
+					while (iter.hasNext() && encoder.size() < ENCODER_FLUSH) {
+						encoder.event(iter.next());
+					}
+					flush(socket, encoder);
+				}
 			}
 		} catch (IOException e) {
 			System.out.println("can't send");
@@ -219,137 +245,281 @@ public class TCP {
 	// ==================== running the thread to receive, channel established between two sockets ====================
 	public static void peerRunning(Socket socket, HostPort hostport, ServerMain ser) {
 		
-		Thread receive = new Thread(new Runnable() {
+		Handlers.start("peer " + hostport, new Runnable() {
 			@Override
 			public void run() {
 				try {
-					BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
-					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+					// read the channel itself, its socket's input stream would block writers while it waits
+					ReadableByteChannel channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+					BinaryFrame.StreamReader in = new BinaryFrame.StreamReader(channel, bulkTransfer());
+					Link link = new SocketLink(socket);
+					// transfers from this peer may be started by any peer's thread
+					TransferScheduler.register(hostport, messages -> link.send(messages));
 					
 					while (true) {
-						String received = in.readLine();
-						Document command = Document.parse(received);
-						System.out.println(command.get("command").toString());
-						switch (command.get("command").toString()) {
-									
-								case "FILE_MODIFY_REQUEST":					
-									try {
-										String reply4 = ser.file_modify_response(command);
-										out.write(reply4 + "\n");
-										out.flush();
-										System.out.println("COMMAND SENT: " + reply4);
-										String reply5 = ser.byte_request(command);
-										out.write(reply5 + "\n");
-										out.flush();
-										System.out.println("COMMAND SENT: " + reply5);
-									} catch (NoSuchAlgorithmException e2) {
-										e2.printStackTrace();
-									}
-									break;
-									
-								case "FILE_CREATE_REQUEST":
-									String reply1;
-									try {
-										reply1 = ser.file_create_response(command);
-										out.write(reply1 + "\n");
-										out.flush();
-										System.out.println("COMMAND SENT: " + reply1);
-									} catch (NoSuchAlgorithmException e1) {
-										// TODO Auto-generated catch block
-										e1.printStackTrace();
-									}									
-												
-												String reply4 = ser.file_bytes_request(command);
-												if (!reply4.equals("complete")) {
-													out.write(reply4 + "\n");
-													out.flush();
-													System.out.println("COMMAND SENT: " + reply4);
-												}
-									break;
-								case "FILE_CREATE_RESPONSE":
-									break;
-								case "FILE_DELETE_RESPONSE":
-									break;
-								case "FILE_MODIFY_RESPONSE":
-									break;
-								case "DIRECTORY_CREATE_RESPONSE":
-									break;
-								case "DIRECTORY_DELETE_RESPONSE":
-									break;
-									
-								case "FILE_DELETE_REQUEST":
-									String reply = ser.delete_file(command);
-									out.write(reply + "\n");
-									out.flush();
-									System.out.println("COMMAND SENT: " + reply);		
-									break;
-									
-								case "DIRECTORY_DELETE_REQUEST":
-									String reply5 = ser.delete_directory(command);
-									out.write(reply5 + "\n");
-									out.flush();
-									System.out.println("COMMAND SENT: " + reply5);
-									break;
-									
-								case "DIRECTORY_CREATE_REQUEST":
-									String reply2 = ser.create_directory(command);
-									out.write(reply2 + "\n");
-									out.flush();
-									System.out.println("COMMAND SENT: " + reply2);
-									break;
-									
-								case "FILE_BYTES_RESPONSE":
-									try {
-										String reply3 = ser.write_byte(command);
-										System.out.println(reply3);
-										if(reply3.equals("complete")) {
-											break;
-										}else {
-										out.write(reply3+"\n");
-										out.flush();
-										System.out.println("COMMAND SENT: " + reply3);
-										}
-									} catch (NoSuchAlgorithmException e) {
-										e.printStackTrace();
-									} catch (ParseException e) {
-										e.printStackTrace();
-									}
-									break;
-									
-								case "FILE_BYTES_REQUEST":
-									
-									String byte_response;
-									try {
-										System.out.println(command.toJson());
-										byte_response = ser.byte_response(command);
-										out.write(byte_response+"\n");
-										out.flush();
-										System.out.println("COMMAND SENT: " + byte_response);
-									} catch (NoSuchAlgorithmException e) {
-										e.printStackTrace();
-									} catch (ParseException e) {
-										e.printStackTrace();
-									}
-									break;
-									
-								case "INVALID_PROTOCOL":
-									break;
-									
-								default:
-									System.out.println("COMMAND RECEIVED: " + received);
-									System.out.println("Running: No matched protocol");
-									break;
-								}
-							
+						handle(in.read(), hostport, ser, link);
 					} 
 					
 				} catch (IOException e) {
 					connectedPeers.remove(hostport);
 					socketList.remove(socket);
+					encoders.remove(socket);
+					PeerFeatures.forget(hostport);
+					TransferScheduler.unregister(hostport);
 				}
 			}
 		});
-		receive.start();
+	}
+	
+	/**
+	 * The connection to one peer, which {@link TCP#handle(BinaryFrame, HostPort, ServerMain, Link)}
+	 * answers that peer's messages on. Every method may be called from any thread.
+	 */
+	interface Link {
+		void send(String message) throws IOException;
+		
+		// the requests of a transfer window go out together
+		void send(ArrayList<String> messages) throws IOException;
+		
+		// the link releases the frame once it is sent, or could not be
+		void send(BinaryFrame frame) throws IOException;
+		
+		/**
+		 * Send a FILE_BYTES_RESPONSE straight from the file, see {@link ServerMain#byte_response_bulk(Document, WritableByteChannel)}.
+		 * @return False if the link cannot, or the block could not be read that way.
+		 */
+		boolean sendBulk(Document command) throws IOException, NoSuchAlgorithmException;
+		
+		// true if a frame's payload is best read into a direct buffer
+		boolean direct();
+	}
+	
+	// a blocking socket, written under its lock so messages never end up in the middle of a frame
+	private static class SocketLink implements Link {
+		private final Socket socket;
+		
+		SocketLink(Socket socket) {
+			this.socket = socket;
+		}
+		
+		@Override
+		public void send(String message) throws IOException {
+			synchronized (socket) {
+				MessageEncoder encoder = encoder(socket);
+				encoder.message(message);
+				flush(socket, encoder);
+			}
+		}
+		
+		@Override
+		public void send(ArrayList<String> messages) throws IOException {
+			synchronized (socket) {
+				writeLines(socket, messages);
+			}
+		}
+		
+		@Override
+		public void send(BinaryFrame frame) throws IOException {
+			try {
+				synchronized (socket) {
+					if (socket.getChannel() != null) {
+						frame.writeTo(socket.getChannel());
+					} else {
+						frame.writeTo(socket.getOutputStream());
+					}
+				}
+			} finally {
+				frame.release();
+			}
+		}
+		
+		@Override
+		public boolean sendBulk(Document command) throws IOException, NoSuchAlgorithmException {
+			if (!bulkTransfer() || socket.getChannel() == null) {
+				return false;
+			}
+			synchronized (socket) {
+				return ser.byte_response_bulk(command, socket.getChannel());
+			}
+		}
+		
+		@Override
+		public boolean direct() {
+			return socket.getChannel() != null;
+		}
+	}
+	
+	// ======================= answer one message from a peer, whichever transport it came over =======================
+	static void handle(BinaryFrame frame, HostPort hostport, ServerMain ser, Link link) throws IOException {
+		Document command = frame.header;
+		if (!command.containsKey("command")) {
+			System.out.println("Running: message without a command");
+			return;
+		}
+		System.out.println(command.get("command").toString());
+		switch (command.get("command").toString()) {
+			
+			case "FILE_MODIFY_REQUEST":
+				try {
+					String reply4 = ser.file_modify_response(command);
+					link.send(reply4);
+					System.out.println("COMMAND SENT: " + reply4);
+					// only the changes, if there is an older copy to build on
+					String delta = ser.delta_request(command, hostport);
+					String chunks = delta == null ? ser.chunks_request(command, hostport) : null;
+					if (delta != null) {
+						link.send(delta);
+						System.out.println("COMMAND SENT: FILE_DELTA_REQUEST " + command.get("pathName"));
+					} else if (chunks != null) {
+						link.send(chunks);
+						System.out.println("COMMAND SENT: FILE_CHUNKS_REQUEST " + command.get("pathName"));
+					} else {
+						ser.byte_request(command, hostport);
+					}
+				} catch (NoSuchAlgorithmException e2) {
+					e2.printStackTrace();
+				}
+				break;
+				
+			case "FILE_CREATE_REQUEST":
+				String reply1;
+				try {
+					reply1 = ser.file_create_response(command);
+					link.send(reply1);
+					System.out.println("COMMAND SENT: " + reply1);
+				} catch (NoSuchAlgorithmException e1) {
+					// TODO Auto-generated catch block
+					e1.printStackTrace();
+				}
+				// built from chunks of local files where it can be
+				String chunks = ser.chunks_request(command, hostport);
+				if (chunks != null) {
+					link.send(chunks);
+					System.out.println("COMMAND SENT: FILE_CHUNKS_REQUEST " + command.get("pathName"));
+				} else {
+					ser.file_bytes_request(command, hostport);
+				}
+				break;
+			case "FILE_CREATE_RESPONSE":
+				break;
+			case "FILE_DELETE_RESPONSE":
+				break;
+			case "FILE_MODIFY_RESPONSE":
+				break;
+			case "DIRECTORY_CREATE_RESPONSE":
+				break;
+			case "DIRECTORY_DELETE_RESPONSE":
+				break;
+				
+			case "FILE_DELETE_REQUEST":
+				String reply = ser.delete_file(command);
+				link.send(reply);
+				System.out.println("COMMAND SENT: " + reply);
+				break;
+				
+			case "DIRECTORY_DELETE_REQUEST":
+				String reply5 = ser.delete_directory(command);
+				link.send(reply5);
+				System.out.println("COMMAND SENT: " + reply5);
+				break;
+				
+			case "DIRECTORY_CREATE_REQUEST":
+				String reply2 = ser.create_directory(command);
+				link.send(reply2);
+				System.out.println("COMMAND SENT: " + reply2);
+				break;
+				
+			case "FILE_DELTA_REQUEST":
+				try {
+					String deltaResponse = ser.delta_response(command);
+					link.send(deltaResponse);
+					System.out.println("COMMAND SENT: FILE_DELTA_RESPONSE " + command.get("pathName"));
+				} catch (NoSuchAlgorithmException e) {
+					e.printStackTrace();
+				}
+				break;
+				
+			case "FILE_CHUNKS_REQUEST":
+				try {
+					String chunksResponse = ser.chunks_response(command);
+					link.send(chunksResponse);
+					System.out.println("COMMAND SENT: FILE_CHUNKS_RESPONSE " + command.get("pathName"));
+				} catch (NoSuchAlgorithmException e) {
+					e.printStackTrace();
+				}
+				break;
+				
+			case "FILE_CHUNKS_RESPONSE":
+				try {
+					ser.apply_chunks(command, hostport);
+				} catch (NoSuchAlgorithmException e) {
+					e.printStackTrace();
+				}
+				break;
+				
+			case "FILE_DELTA_RESPONSE":
+				try {
+					ser.apply_delta(command, hostport);
+				} catch (NoSuchAlgorithmException e) {
+					e.printStackTrace();
+				}
+				break;
+				
+			case "FILE_BYTES_RESPONSE":
+				try {
+					if (frame.body != null) {
+						link.send(ser.write_byte(command, frame.body, frame.bodyLength, hostport));
+					} else if (frame.payload != null) {
+						link.send(ser.write_byte(command, frame.payload, hostport));
+					} else {
+						link.send(ser.write_byte(command, hostport));
+					}
+				} catch (NoSuchAlgorithmException e) {
+					e.printStackTrace();
+				} catch (ParseException e) {
+					e.printStackTrace();
+				}
+				break;
+				
+			case "FILE_BYTES_REQUEST":
+				
+				String byte_response;
+				try {
+					System.out.println(command.toJson());
+					// the bytes as they were read, rather than Base64 inside JSON
+					if (PeerFeatures.of(hostport).binaryFrames && BlockCodec.encodingFor(hostport) == null) {
+						// straight from the file to the socket, which cannot compress
+						if (link.sendBulk(command)) {
+							System.out.println("FRAME SENT: " + command.toJson());
+							break;
+						}
+					}
+					if (PeerFeatures.of(hostport).binaryFrames) {
+						BinaryFrame byte_frame = ser.byte_response_frame(command, hostport, link.direct());
+						if (byte_frame != null) {
+							link.send(byte_frame);
+							System.out.println("FRAME SENT: " + byte_frame.header.toJson());
+							break;
+						}
+					}
+					byte_response = ser.byte_response(command, hostport);
+					link.send(byte_response);
+					System.out.println("COMMAND SENT: " + byte_response);
+				} catch (NoSuchAlgorithmException e) {
+					e.printStackTrace();
+				} catch (ParseException e) {
+					e.printStackTrace();
+				}
+				break;
+				
+			case "INVALID_PROTOCOL":
+				break;
+				
+			default:
+				System.out.println("COMMAND RECEIVED: " + command.toJson());
+				System.out.println("Running: No matched protocol");
+				break;
+		}
 	}
 	
 	// ================================ sync ==================================================
@@ -363,35 +533,60 @@ public class TCP {
 					//e.printStackTrace();
 				}
 				
-				// avoid synchronizing and updating concurrently
+				// the events are taken out of the list, so none are sent twice or lost while sending
+				ArrayList<FileSystemEvent> events = ser.takeEvents();
 				// sync with all peers
 				if (count == sleepTime) {
-					ArrayList<FileSystemEvent> pathevents = ser.fileSystemManager.generateSyncEvents();
-					for(FileSystemEvent pathevent : pathevents) {
-						ser.processFileSystemEvent(pathevent);
-					}
+					events.addAll(ser.fileSystemManager.generateSyncEvents());
 					Iterator<Socket> iter = socketList.iterator();
 					while (iter.hasNext()) {
 						Socket socket = iter.next();
-						peerSending(socket, ser);
+						peerSending(socket, events);
 					}
-					ser.eventList.removeAll(ser.eventList);
 					count = 0;
 					System.out.println(connectedPeers);
+					log.info("metrics: " + Metrics.toDoc().toJson());
 				} else {
 				// if not synchronizing, we keep checking update for every 1 second
 					Iterator<Socket> iter = socketList.iterator();
 					while (iter.hasNext()) {
 						Socket socket = iter.next();
-						peerSending(socket, ser);
+						peerSending(socket, events);
 					}
-					ser.eventList.removeAll(ser.eventList);
 				}
 				count++;
 			}
 		}
 	
 	// ============================== helper methods =======================================================
+	// write each message as a line, the requests of a transfer window go out together
+	private static void writeLines(Socket socket, ArrayList<String> messages) throws IOException {
+		MessageEncoder encoder = encoder(socket);
+		for (String message : messages) {
+			encoder.message(message);
+			System.out.println("COMMAND SENT: " + message);
+		}
+		flush(socket, encoder);
+	}
+	
+	// the encoder of a connection, only to be used holding the socket's lock
+	private static MessageEncoder encoder(Socket socket) {
+		return encoders.computeIfAbsent(socket, s -> new MessageEncoder());
+	}
+	
+	private static void flush(Socket socket, MessageEncoder encoder) throws IOException {
+		if (socket.getChannel() != null) {
+			encoder.writeTo(socket.getChannel());
+		} else {
+			encoder.writeTo(socket.getOutputStream());
+		}
+	}
+	
+	// file bytes go between the file and the socket without copies, when both sides take binary frames
+	private static boolean bulkTransfer() {
+		return Boolean.parseBoolean(Configuration.getConfigurationValue("bulkTransfer", "true"));
+	}
+	
 	/**
 	 * A method that generates HANDSHAKE_RESPONSE in response to HANDSHAKE_REQUEST
 	 * The result is a marshaled JSONString
@@ -401,10 +596,11 @@ public class TCP {
 	 */	
 	
 	// return a message for either CONNECTION_REFUSED or HANDSHAKE_RESPONSE or INVALID_PROTOCOL
-	private static String handleHandshake(Socket socket, Document command, ServerMain ser) {
+	static String handleHandshake(Document command, ServerMain ser) {
 		HostPort hostPort = new HostPort((Document) command.get("hostPort"));
 
 		Document newCommand = new Document();
+		String incompatible = PeerFeatures.local().checkCompatible(PeerFeatures.from(command));
 		// TODO Check if the maximum connections are reached
 		// If reached, reply with the current connected peer list
 		if (checkConnectionNumber() >= Integer
@@ -420,10 +616,14 @@ public class TCP {
 		} else if (connectedPeers.contains(hostPort)) {
 			newCommand.append("command", "INVALID_PROTOCOL");
 			newCommand.append("message", "peer already connected");
+		} else if (incompatible != null) {
+			newCommand.append("command", "INVALID_PROTOCOL");
+			newCommand.append("message", incompatible);
 		} else {
 			// Accept connection, generate a Handshake response
 			newCommand.append("command", "HANDSHAKE_RESPONSE");
 			newCommand.append("hostPort", new HostPort(ip, port).toDoc());
+			PeerFeatures.local().appendTo(newCommand);
 			
 			checkConnectionNumber();
 			System.out.println("Current connected peers: " + connectedPeers);
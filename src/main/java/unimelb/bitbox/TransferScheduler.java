@@ -0,0 +1,264 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Metrics;
+
+/**
+ * Decides which of the files waiting to be received are transferred, and when. At most
+ * concurrentTransfersPerPeer files are received from any one peer at a time, and at most
+ * concurrentTransfers from all peers together. The rest wait in a queue, in the order
+ * given by transferOrder, a comma separated list of:
+ * <li>smallest: smaller files first, so one large file does not hold up many small ones.</li>
+ * <li>recent: the most recently modified files first.</li>
+ * <li>arrival: in the order the peers asked to create them, always the last tie breaker.</li>
+ * Directories are created as soon as they are asked for and never wait behind a file.
+ * <br/>
+ * The transfers themselves are run by each peer's {@link TransferWindow}. Queue depth,
+ * active transfers and the time files spent queued are published in {@link Metrics}.
+ */
+public class TransferScheduler {
+	private static Logger log = Logger.getLogger(TransferScheduler.class.getName());
+
+	/**
+	 * Sends messages to one peer, from whichever thread starts a transfer for it.
+	 */
+	public interface Sender {
+		void send(ArrayList<String> messages) throws IOException;
+	}
+
+	/**
+	 * A file waiting to be received.
+	 */
+	private static class Pending {
+		final HostPort peer;
+		final Document des;
+		final String pathName;
+		// the parts of the file to receive, null for all of it
+		final TreeMap<Long,Long> ranges;
+		final long queuedAt;
+		final long sequence;
+
+		Pending(HostPort peer, Document des, String pathName, TreeMap<Long,Long> ranges, long sequence) {
+			this.peer=peer;
+			this.des=des;
+			this.pathName=pathName;
+			this.ranges=ranges;
+			this.queuedAt=System.currentTimeMillis();
+			this.sequence=sequence;
+		}
+
+		String key() {
+			return key(peer, pathName);
+		}
+
+		static String key(HostPort peer, String pathName) {
+			return peer+" "+pathName;
+		}
+	}
+
+	private static final ConcurrentHashMap<HostPort,Sender> senders = new ConcurrentHashMap<HostPort,Sender>();
+	private static final TreeSet<Pending> queue = new TreeSet<Pending>(order(Configuration.getConfigurationValue("transferOrder", "smallest")));
+	// the queued files by key, to replace a file that is asked for again
+	private static final HashMap<String,Pending> queued = new HashMap<String,Pending>();
+	// the files being received, by key
+	private static final HashMap<String,HostPort> active = new HashMap<String,HostPort>();
+	private static final HashMap<HostPort,Integer> activePerPeer = new HashMap<HostPort,Integer>();
+	private static long sequence;
+
+	// gives up on transfers a peer stopped answering, whose slots would otherwise stay taken
+	private static final ScheduledExecutorService stallChecks = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "transfer stall checks");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		long timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(Configuration.getConfigurationValue("transferStallTimeout", "60")));
+		long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)/4);
+		stallChecks.scheduleWithFixedDelay(() -> {
+			try {
+				for(TransferWindow window : TransferWindow.all()) window.stalled(timeout);
+			} catch (RuntimeException e) {
+				log.warning("checking for stalled transfers: "+e);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param policies The transferOrder setting.
+	 * @return The order to start queued files in.
+	 */
+	private static Comparator<Pending> order(String policies) {
+		Comparator<Pending> order = null;
+		for(String policy : policies.split(",")) {
+			Comparator<Pending> next;
+			switch(policy.trim()) {
+			case "smallest":
+				next = Comparator.comparingLong(pending -> (long) pending.des.get("fileSize"));
+				break;
+			case "recent":
+				next = Comparator.comparingLong(pending -> -(long) pending.des.get("lastModified"));
+				break;
+			case "arrival":
+			case "":
+				continue;
+			default:
+				log.warning("unknown transferOrder "+policy);
+				continue;
+			}
+			order = order==null ? next : order.thenComparing(next);
+		}
+		Comparator<Pending> arrival = Comparator.comparingLong(pending -> pending.sequence);
+		return order==null ? arrival : order.thenComparing(arrival);
+	}
+
+	/**
+	 * Start scheduling transfers from a peer.
+	 * @param sender How to send the peer its FILE_BYTES_REQUESTs.
+	 */
+	public static void register(HostPort peer, Sender sender) {
+		senders.put(peer, sender);
+	}
+
+	/**
+	 * Forget a peer that disconnected, along with the files queued for it.
+	 */
+	public static void unregister(HostPort peer) {
+		senders.remove(peer);
+		ArrayList<Pending> starts;
+		synchronized(TransferScheduler.class) {
+			Iterator<Pending> it = queue.iterator();
+			while(it.hasNext()) {
+				Pending pending = it.next();
+				if(pending.peer.equals(peer)) {
+					it.remove();
+					queued.remove(pending.key());
+				}
+			}
+			Iterator<HostPort> activeIt = active.values().iterator();
+			while(activeIt.hasNext()) {
+				if(activeIt.next().equals(peer)) activeIt.remove();
+			}
+			activePerPeer.remove(peer);
+			starts = next();
+		}
+		start(starts);
+	}
+
+	/**
+	 * Receive a file from a peer, now or once there is room for it.
+	 * @param des The file descriptor of the file.
+	 * @param pathName The path name, as sent by the peer.
+	 */
+	public static void submit(HostPort peer, Document des, String pathName) {
+		submit(peer, des, pathName, null);
+	}
+
+	/**
+	 * The same as {@link #submit(HostPort, Document, String)}, for a file that is only missing some parts.
+	 * @param ranges The parts to receive, position to length, or null for the whole file.
+	 */
+	public static void submit(HostPort peer, Document des, String pathName, TreeMap<Long,Long> ranges) {
+		ArrayList<Pending> starts;
+		synchronized(TransferScheduler.class) {
+			String key = Pending.key(peer, pathName);
+			Pending old = queued.remove(key);
+			if(old!=null) queue.remove(old);
+			Pending pending = new Pending(peer, des, pathName, ranges, sequence++);
+			if(active.containsKey(key)) {
+				// already has a slot, start again in it
+				starts = new ArrayList<Pending>();
+				starts.add(pending);
+			} else {
+				queue.add(pending);
+				queued.put(key, pending);
+				starts = next();
+			}
+		}
+		start(starts);
+	}
+
+	/**
+	 * Note that a file is no longer being received, because it is complete or was given up on,
+	 * which makes room for the next one.
+	 */
+	public static void finished(HostPort peer, String pathName) {
+		ArrayList<Pending> starts;
+		synchronized(TransferScheduler.class) {
+			if(active.remove(Pending.key(peer, pathName))==null) return;
+			Integer count = activePerPeer.get(peer);
+			if(count!=null && count>1) {
+				activePerPeer.put(peer, count-1);
+			} else {
+				activePerPeer.remove(peer);
+			}
+			starts = next();
+		}
+		start(starts);
+	}
+
+	/**
+	 * Take as many queued files as there is room for, in order. Called holding the class lock.
+	 */
+	private static ArrayList<Pending> next() {
+		ArrayList<Pending> starts = new ArrayList<Pending>();
+		int limit = Integer.parseInt(Configuration.getConfigurationValue("concurrentTransfers", "16"));
+		int peerLimit = Integer.parseInt(Configuration.getConfigurationValue("concurrentTransfersPerPeer", "4"));
+		Iterator<Pending> it = queue.iterator();
+		while(active.size()<limit && it.hasNext()) {
+			Pending pending = it.next();
+			Integer count = activePerPeer.get(pending.peer);
+			if(count!=null && count>=peerLimit) continue;
+			it.remove();
+			queued.remove(pending.key());
+			active.put(pending.key(), pending.peer);
+			activePerPeer.put(pending.peer, count==null ? 1 : count+1);
+			long waited = System.currentTimeMillis()-pending.queuedAt;
+			Metrics.add("transfersStarted", 1);
+			Metrics.add("transferWaitTotalMillis", waited);
+			if(waited>Metrics.get("transferWaitMaxMillis")) Metrics.set("transferWaitMaxMillis", waited);
+			starts.add(pending);
+		}
+		Metrics.set("transfersQueued", queue.size());
+		Metrics.set("transfersActive", active.size());
+		return starts;
+	}
+
+	/**
+	 * Start the transfers, outside the class lock as this sends messages.
+	 */
+	private static void start(ArrayList<Pending> starts) {
+		for(Pending pending : starts) {
+			ArrayList<String> requests = TransferWindow.of(pending.peer).start(pending.des, pending.pathName, pending.ranges);
+			Sender sender = senders.get(pending.peer);
+			if(requests.isEmpty() || sender==null) {
+				finished(pending.peer, pending.pathName);
+				continue;
+			}
+			try {
+				sender.send(requests);
+			} catch (IOException e) {
+				log.warning("could not request "+pending.pathName+" from "+pending.peer+": "+e.getMessage());
+				finished(pending.peer, pending.pathName);
+			}
+		}
+	}
+
+	private TransferScheduler() {
+	}
+}
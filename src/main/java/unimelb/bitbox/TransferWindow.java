@@ -0,0 +1,324 @@
+package unimelb.bitbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Metrics;
+
+/**
+ * The FILE_BYTES_REQUESTs outstanding with one peer over one transport. Rather than asking
+ * for the next block of a file only once the previous one has arrived, up to a window of
+ * requests is kept outstanding for each file, so a transfer is not limited to one block per
+ * round trip. Blocks may arrive in any order, each is written at its own position and the
+ * window tracks which parts of the file are still to come.
+ * <br/>
+ * The window starts at transferWindow requests, grows by about one request for each window
+ * of blocks that arrives, up to maximumTransferWindow, and halves when a block is lost.
+ * Its current size is published in {@link Metrics} as "transferWindow [transport] [peer]".
+ * <br/>
+ * A file that has had no block for transferStallTimeout seconds, 60 by default, is given up
+ * on, see {@link #stalled(long)}, as over TCP a request that is never answered is not retried.
+ */
+public class TransferWindow {
+	private static Logger log = Logger.getLogger(TransferWindow.class.getName());
+
+	private static final ConcurrentHashMap<String,TransferWindow> windows = new ConcurrentHashMap<String,TransferWindow>();
+
+	/**
+	 * A block that was requested and has not arrived yet.
+	 */
+	private static class Request {
+		long length;
+		long sentAt;
+		int attempts;
+	}
+
+	/**
+	 * A file being received.
+	 */
+	private static class Transfer {
+		final Document des;
+		final String pathName;
+		final long fileSize;
+		// the first position never requested
+		long next;
+		// parts of the file that have to be requested again, position to length
+		final TreeMap<Long,Long> missing = new TreeMap<Long,Long>();
+		final TreeMap<Long,Request> outstanding = new TreeMap<Long,Request>();
+		long lastArrival;
+		// when the transfer started or a block last arrived
+		long lastProgress = System.nanoTime();
+
+		Transfer(Document des, String pathName) {
+			this.des=des;
+			this.pathName=pathName;
+			this.fileSize=(long) des.get("fileSize");
+		}
+
+		boolean complete() {
+			return next>=fileSize && missing.isEmpty() && outstanding.isEmpty();
+		}
+	}
+
+	// returned by retry when a transfer is given up on
+	private static final String ABANDONED = "";
+
+	private final HostPort peer;
+	private final BlockSizeTuner tuner;
+	private final String metric;
+	private final double maximum;
+	private double size;
+	private final HashMap<String,Transfer> transfers = new HashMap<String,Transfer>();
+
+	private TransferWindow(HostPort peer, BlockSizeTuner tuner, String metric, double initial, double maximum) {
+		this.peer=peer;
+		this.tuner=tuner;
+		this.metric=metric;
+		this.maximum=maximum;
+		this.size=Math.max(1, Math.min(initial, maximum));
+		Metrics.set(metric, (long) size);
+	}
+
+	/**
+	 * @param peer The peer the blocks are requested from.
+	 * @return The window for the peer over the configured transport.
+	 */
+	public static TransferWindow of(HostPort peer) {
+		String metric = "transferWindow "+Configuration.getConfigurationValue("mode", "tcp")+" "+peer;
+		TransferWindow window = windows.get(metric);
+		if(window==null) {
+			int initial = Integer.parseInt(Configuration.getConfigurationValue("transferWindow", "4"));
+			int maximum = Math.max(initial, Integer.parseInt(Configuration.getConfigurationValue("maximumTransferWindow", "16")));
+			TransferWindow created = new TransferWindow(peer, BlockSizeTuner.of(peer), metric, initial, maximum);
+			window = windows.putIfAbsent(metric, created);
+			if(window==null) window = created;
+		}
+		return window;
+	}
+
+	/**
+	 * Start receiving a file, replacing any earlier transfer of the same path name.
+	 * @param des The file descriptor of the file.
+	 * @param pathName The path name, as sent by the peer.
+	 * @return The first FILE_BYTES_REQUESTs to send.
+	 */
+	public synchronized ArrayList<String> start(Document des, String pathName) {
+		return start(des, pathName, null);
+	}
+
+	/**
+	 * The same as {@link #start(Document, String)}, for a file that is only missing some parts,
+	 * for example the literal data of a {@link unimelb.bitbox.util.Delta}.
+	 * @param ranges The parts to receive, position to length, or null for the whole file.
+	 */
+	public synchronized ArrayList<String> start(Document des, String pathName, TreeMap<Long,Long> ranges) {
+		Transfer transfer = new Transfer(des, pathName);
+		if(ranges!=null) {
+			transfer.next = transfer.fileSize;
+			transfer.missing.putAll(ranges);
+		}
+		if(transfer.complete()) return new ArrayList<String>();
+		transfers.put(pathName, transfer);
+		return fill(pathName);
+	}
+
+	/**
+	 * Note that a block arrived and was written.
+	 * @return True if that completed the file, in which case the transfer is over.
+	 * False if more is to come, or if the block is not part of any transfer, for example
+	 * a block that was thought lost and was requested again.
+	 */
+	public synchronized boolean received(String pathName, long position, long length) {
+		Transfer transfer = transfers.get(pathName);
+		if(transfer==null) return false;
+		Request request = transfer.outstanding.get(position);
+		if(request==null) return false;
+		transfer.outstanding.remove(position);
+		if(length<request.length) {
+			transfer.missing.put(position+length, request.length-length);
+		}
+		long now = System.nanoTime();
+		// blocks queue behind each other, so time each from when the one before it arrived
+		tuner.sample(length, now-Math.max(request.sentAt, transfer.lastArrival));
+		transfer.lastArrival = now;
+		transfer.lastProgress = now;
+		resize(size+1/size);
+		if(!transfer.complete()) return false;
+		transfers.remove(pathName);
+		return true;
+	}
+
+	/**
+	 * Check the length of a block before anything is allocated for it, as it comes from the peer.
+	 * @return True if the block is no longer than the request outstanding at its position, or,
+	 * if there is none, than the largest block ever requested.
+	 */
+	public synchronized boolean accepts(String pathName, long position, long length) {
+		if(length<0) return false;
+		Transfer transfer = transfers.get(pathName);
+		Request request = transfer==null ? null : transfer.outstanding.get(position);
+		return length<=(request==null ? tuner.maximumBlockSize() : request.length);
+	}
+
+	/**
+	 * @return The FILE_BYTES_REQUESTs that bring the file up to a full window of outstanding
+	 * requests, empty if it is not being received.
+	 */
+	public synchronized ArrayList<String> fill(String pathName) {
+		ArrayList<String> requests = new ArrayList<String>();
+		Transfer transfer = transfers.get(pathName);
+		if(transfer==null) return requests;
+		long blockSize = tuner.blockSize();
+		while(transfer.outstanding.size()<(int) size) {
+			long position;
+			long length;
+			Map.Entry<Long,Long> gap = transfer.missing.pollFirstEntry();
+			if(gap!=null) {
+				position = gap.getKey();
+				length = Math.min(gap.getValue(), blockSize);
+				if(length<gap.getValue()) transfer.missing.put(position+length, gap.getValue()-length);
+			} else if(transfer.next<transfer.fileSize) {
+				position = transfer.next;
+				length = Math.min(blockSize, transfer.fileSize-position);
+				transfer.next += length;
+			} else {
+				break;
+			}
+			Request request = new Request();
+			request.length = length;
+			request.sentAt = System.nanoTime();
+			transfer.outstanding.put(position, request);
+			requests.add(request(transfer, position, length));
+		}
+		return requests;
+	}
+
+	/**
+	 * Stop receiving a file, the blocks still outstanding are ignored when they arrive.
+	 */
+	public synchronized void cancel(String pathName) {
+		transfers.remove(pathName);
+	}
+
+	/**
+	 * @return Every window, to check for stalled transfers.
+	 */
+	static ArrayList<TransferWindow> all() {
+		return new ArrayList<TransferWindow>(windows.values());
+	}
+
+	/**
+	 * Give up on the files that have had no block for a while, which makes room for the next
+	 * ones. Their outstanding blocks are ignored if they arrive after all.
+	 * @param timeout How long a file may go without a block, in nanoseconds.
+	 */
+	public void stalled(long timeout) {
+		ArrayList<String> abandoned = new ArrayList<String>();
+		synchronized(this) {
+			long now = System.nanoTime();
+			Iterator<Transfer> it = transfers.values().iterator();
+			while(it.hasNext()) {
+				Transfer transfer = it.next();
+				if(now-transfer.lastProgress<timeout) continue;
+				log.warning("giving up on "+transfer.pathName+" from "+peer+", no block for "+TimeUnit.NANOSECONDS.toSeconds(now-transfer.lastProgress)+"s");
+				Metrics.add("transfersStalled", 1);
+				it.remove();
+				abandoned.add(transfer.pathName);
+			}
+		}
+		// outside the lock, as this may start another peer's transfers
+		for(String pathName : abandoned) TransferScheduler.finished(peer, pathName);
+	}
+
+	/**
+	 * Check on a request that should have been answered by now, for transports that lose messages.
+	 * @param timeout How long the request has had to be answered, in nanoseconds.
+	 * @return The FILE_BYTES_REQUEST to send again, at the block size that applies after the loss,
+	 * or null if the request was answered, was sent again since, or the transfer was abandoned
+	 * after too many attempts.
+	 */
+	public String timedOut(String pathName, long position, long timeout) {
+		String again = retry(pathName, position, timeout);
+		if(again==ABANDONED) {
+			// outside the lock, as this may start another peer's transfers
+			TransferScheduler.finished(peer, pathName);
+			return null;
+		}
+		return again;
+	}
+
+	/**
+	 * Ask again for a block that arrived damaged. Unlike a lost block this says nothing about
+	 * the network being overloaded, so the window and block size are left as they are.
+	 * @return The FILE_BYTES_REQUEST to send again, or null if the block is not outstanding or
+	 * the transfer was abandoned after too many attempts.
+	 */
+	public String corrupted(String pathName, long position) {
+		String again = resend(pathName, position);
+		if(again==ABANDONED) {
+			TransferScheduler.finished(peer, pathName);
+			return null;
+		}
+		return again;
+	}
+
+	private synchronized String resend(String pathName, long position) {
+		Transfer transfer = transfers.get(pathName);
+		if(transfer==null) return null;
+		Request request = transfer.outstanding.get(position);
+		if(request==null) return null;
+		Metrics.add("blocksCorrupt", 1);
+		if(++request.attempts>=Integer.parseInt(Configuration.getConfigurationValue("udpRetries", "3"))) {
+			log.warning("giving up on "+pathName+" after "+request.attempts+" attempts");
+			transfers.remove(pathName);
+			return ABANDONED;
+		}
+		request.sentAt = System.nanoTime();
+		return request(transfer, position, request.length);
+	}
+
+	private synchronized String retry(String pathName, long position, long timeout) {
+		Transfer transfer = transfers.get(pathName);
+		if(transfer==null) return null;
+		Request request = transfer.outstanding.get(position);
+		if(request==null || System.nanoTime()-request.sentAt<timeout) return null;
+		if(++request.attempts>=Integer.parseInt(Configuration.getConfigurationValue("udpRetries", "3"))) {
+			log.warning("giving up on "+pathName+" after "+request.attempts+" attempts");
+			transfers.remove(pathName);
+			return ABANDONED;
+		}
+		tuner.lost();
+		resize(size/2);
+		long length = Math.min(request.length, tuner.blockSize());
+		if(length<request.length) {
+			transfer.missing.put(position+length, request.length-length);
+			request.length = length;
+		}
+		request.sentAt = System.nanoTime();
+		return request(transfer, position, length);
+	}
+
+	private String request(Transfer transfer, long position, long length) {
+		Document request = new Document();
+		request.append("command", "FILE_BYTES_REQUEST");
+		request.append("fileDescriptor", transfer.des);
+		request.append("pathName", transfer.pathName);
+		request.append("position", position);
+		request.append("length", length);
+		return request.toJson();
+	}
+
+	private void resize(double newSize) {
+		size = Math.max(1, Math.min(newSize, maximum));
+		Metrics.set(metric, (long) size);
+	}
+}
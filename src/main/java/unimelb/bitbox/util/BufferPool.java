@@ -0,0 +1,174 @@
+package unimelb.bitbox.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Buffers for blocks of file content, reused from one block to the next rather than
+ * allocated for each, so that a transfer in steady state leaves the garbage collector
+ * next to nothing to do. Buffers come in power of two sizes from 4 KB to 16 MB, a request
+ * gets the smallest that fits with its limit set to the length asked for. Larger requests
+ * are allocated and dropped as before.
+ * <br/>
+ * Direct buffers are for content that only passes between channels, such as a file and a
+ * socket, which then needs no copy through a temporary direct buffer. Heap buffers are for
+ * content that is also worked on as an array, such as Base64 or compression.
+ * <br/>
+ * Every buffer acquired must be released exactly once, by whoever acquired it, and must
+ * not be used after that. At most bufferPoolSize megabytes are kept, 64 by default. With
+ * bufferPoolDebug on, a buffer that is garbage collected without being released is logged
+ * with where it was acquired, and a buffer released twice is logged as well.
+ */
+public class BufferPool {
+	private static Logger log = Logger.getLogger(BufferPool.class.getName());
+
+	private static final int MINIMUM_SHIFT = 12;
+	private static final int MAXIMUM_SHIFT = 24;
+
+	private static final ArrayList<ConcurrentLinkedDeque<ByteBuffer>> heap = new ArrayList<ConcurrentLinkedDeque<ByteBuffer>>();
+	private static final ArrayList<ConcurrentLinkedDeque<ByteBuffer>> direct = new ArrayList<ConcurrentLinkedDeque<ByteBuffer>>();
+	private static final AtomicLong pooledBytes = new AtomicLong();
+	private static final long limit = Long.parseLong(Configuration.getConfigurationValue("bufferPoolSize", "64"))*1024*1024;
+
+	private static final boolean debug = Boolean.parseBoolean(Configuration.getConfigurationValue("bufferPoolDebug", "false"));
+	// the buffers handed out, by identity hash, only kept in debug mode
+	private static final ConcurrentHashMap<Integer,ArrayList<Tracker>> outstanding = new ConcurrentHashMap<Integer,ArrayList<Tracker>>();
+	private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+	static {
+		for(int shift=MINIMUM_SHIFT;shift<=MAXIMUM_SHIFT;shift++) {
+			heap.add(new ConcurrentLinkedDeque<ByteBuffer>());
+			direct.add(new ConcurrentLinkedDeque<ByteBuffer>());
+		}
+	}
+
+	/**
+	 * A buffer handed out in debug mode, which does not keep it from being collected.
+	 */
+	private static class Tracker extends WeakReference<ByteBuffer> {
+		final int key;
+		final Throwable acquired;
+
+		Tracker(ByteBuffer buffer, int key) {
+			super(buffer, collected);
+			this.key=key;
+			this.acquired=new Throwable("acquired here");
+		}
+	}
+
+	/**
+	 * @return A heap buffer with its position at 0 and its limit at length.
+	 */
+	public static ByteBuffer acquire(int length) {
+		return acquire(length, heap, false);
+	}
+
+	/**
+	 * @return A direct buffer with its position at 0 and its limit at length.
+	 */
+	public static ByteBuffer acquireDirect(int length) {
+		return acquire(length, direct, true);
+	}
+
+	/**
+	 * Give back a buffer from {@link #acquire(int)} or {@link #acquireDirect(int)}.
+	 * Null is ignored.
+	 */
+	public static void release(ByteBuffer buffer) {
+		if(buffer==null) return;
+		if(debug && !untrack(buffer)) {
+			log.warning("buffer released twice or not from the pool");
+			Thread.dumpStack();
+			return;
+		}
+		int index = index(buffer.capacity());
+		if(index<0 || buffer.capacity()!=1<<(index+MINIMUM_SHIFT)) return;
+		if(pooledBytes.addAndGet(buffer.capacity())>limit) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			return;
+		}
+		buffer.clear();
+		(buffer.isDirect() ? direct : heap).get(index).push(buffer);
+		Metrics.set("bufferPoolBytes", pooledBytes.get());
+	}
+
+	private static ByteBuffer acquire(int length, ArrayList<ConcurrentLinkedDeque<ByteBuffer>> pool, boolean isDirect) {
+		int index = index(length);
+		ByteBuffer buffer = null;
+		if(index>=0) {
+			buffer = pool.get(index).poll();
+		}
+		if(buffer!=null) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			Metrics.add("bufferPoolHits", 1);
+		} else {
+			int capacity = index>=0 ? 1<<(index+MINIMUM_SHIFT) : length;
+			buffer = isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			Metrics.add("bufferPoolMisses", 1);
+		}
+		buffer.limit(length);
+		if(debug) track(buffer);
+		return buffer;
+	}
+
+	// the size class that holds length bytes, or -1 if it is too large to pool
+	private static int index(int length) {
+		if(length>1<<MAXIMUM_SHIFT) return -1;
+		int shift = 32-Integer.numberOfLeadingZeros(Math.max(length, 1)-1);
+		return Math.max(shift, MINIMUM_SHIFT)-MINIMUM_SHIFT;
+	}
+
+	private static void track(ByteBuffer buffer) {
+		for(Reference<? extends ByteBuffer> ref=collected.poll(); ref!=null; ref=collected.poll()) {
+			Tracker leaked = (Tracker) ref;
+			ArrayList<Tracker> trackers = outstanding.get(leaked.key);
+			if(trackers==null) continue;
+			boolean wasOutstanding;
+			synchronized(trackers) {
+				wasOutstanding = trackers.remove(leaked);
+			}
+			if(wasOutstanding) {
+				Metrics.add("buffersLeaked", 1);
+				log.warning("buffer was never released: "+stackTrace(leaked.acquired));
+			}
+		}
+		int key = System.identityHashCode(buffer);
+		ArrayList<Tracker> trackers = outstanding.computeIfAbsent(key, k -> new ArrayList<Tracker>());
+		synchronized(trackers) {
+			trackers.add(new Tracker(buffer, key));
+		}
+	}
+
+	private static boolean untrack(ByteBuffer buffer) {
+		ArrayList<Tracker> trackers = outstanding.get(System.identityHashCode(buffer));
+		if(trackers==null) return false;
+		synchronized(trackers) {
+			for(int i=0;i<trackers.size();i++) {
+				if(trackers.get(i).get()==buffer) {
+					trackers.remove(i).clear();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static String stackTrace(Throwable throwable) {
+		StringBuilder trace = new StringBuilder();
+		for(StackTraceElement element : throwable.getStackTrace()) {
+			if(element.getClassName().startsWith(BufferPool.class.getName())) continue;
+			trace.append("\n\tat ").append(element);
+		}
+		return trace.toString();
+	}
+
+	private BufferPool() {
+	}
+}
@@ -0,0 +1,198 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * An index of the chunks of every file in the share, so that a file being received can be
+ * built from chunks that any local file already has, not just from a file with the same
+ * content as a whole or from the older copy of the same file.
+ * <br/>
+ * Files are split at boundaries chosen by their content, with a gear rolling hash, rather
+ * than at fixed positions, so that inserting or removing bytes only changes the chunks
+ * around the change and the rest line up with the chunks of other files. Both peers must
+ * split alike, so the chunk sizes and the gear table are fixed. Chunks are identified by
+ * the first 8 bytes of their MD5, a wrong match is caught by the hash of the whole file.
+ * <br/>
+ * The index points at content by its hash rather than by path name, content that is no
+ * longer in the share is dropped the next time the index is brought up to date.
+ */
+public class ChunkStore {
+	public static final int MINIMUM_CHUNK = 2048;
+	public static final int MAXIMUM_CHUNK = 64*1024;
+	// a boundary where the top 13 bits of the hash are zero, 8 KB apart on average
+	private static final long BOUNDARY_MASK = 0xFFF8000000000000L;
+	private static final int READ_SIZE = 1024*1024;
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// the same table on every peer
+		Random random = new Random(0x6269746278L);
+		for(int i=0;i<GEAR.length;i++) GEAR[i] = random.nextLong();
+	}
+
+	/**
+	 * The chunks of a file, in order.
+	 */
+	public static class Chunks {
+		public final int[] lengths;
+		public final long[] hashes;
+
+		public Chunks(int[] lengths, long[] hashes) {
+			this.lengths=lengths;
+			this.hashes=hashes;
+		}
+
+		/**
+		 * @return The length and hash of each chunk packed into 12 bytes and Base64 encoded,
+		 * as a large file has many thousands of chunks.
+		 */
+		public String encode() {
+			ByteBuffer packed = ByteBuffer.allocate(12*lengths.length);
+			for(int i=0;i<lengths.length;i++) packed.putInt(lengths[i]).putLong(hashes[i]);
+			return Base64.getEncoder().encodeToString(packed.array());
+		}
+
+		public static Chunks decode(String encoded) {
+			ByteBuffer packed = ByteBuffer.wrap(Base64.getDecoder().decode(encoded));
+			int count = packed.remaining()/12;
+			int[] lengths = new int[count];
+			long[] hashes = new long[count];
+			for(int i=0;i<count;i++) {
+				lengths[i] = packed.getInt();
+				hashes[i] = packed.getLong();
+			}
+			return new Chunks(lengths, hashes);
+		}
+	}
+
+	/**
+	 * Where a chunk can be read from.
+	 */
+	public static class Location {
+		/**
+		 * The hash of the content holding the chunk.
+		 */
+		public final String md5;
+		public final long position;
+		public final int length;
+
+		Location(String md5, long position, int length) {
+			this.md5=md5;
+			this.position=position;
+			this.length=length;
+		}
+	}
+
+	private final HashMap<Long,Location> locations = new HashMap<Long,Location>();
+	// the chunks of each content that is indexed, to drop them again
+	private final HashMap<String,long[]> indexed = new HashMap<String,long[]>();
+
+	/**
+	 * Split a file into chunks.
+	 * @param file The file, read from the start.
+	 */
+	public static Chunks chunk(FileChannel file) throws IOException, NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		int[] lengths = new int[16];
+		long[] hashes = new long[16];
+		int count = 0;
+		byte[] bytes = new byte[READ_SIZE+MAXIMUM_CHUNK];
+		// the chunk being split off starts at start, the file position of bytes[0] is offset
+		int start = 0;
+		int filled = 0;
+		long offset = 0;
+		boolean end = false;
+		while(true) {
+			if(!end && filled-start<MAXIMUM_CHUNK) {
+				System.arraycopy(bytes, start, bytes, 0, filled-start);
+				offset += start;
+				filled -= start;
+				start = 0;
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, filled, bytes.length-filled);
+				while(buffer.hasRemaining()) {
+					if(file.read(buffer, offset+buffer.position())<0) {
+						end = true;
+						break;
+					}
+				}
+				filled = buffer.position();
+			}
+			if(filled==start) break;
+			int length = boundary(bytes, start, filled);
+			digest.update(bytes, start, length);
+			if(count==lengths.length) {
+				lengths = Arrays.copyOf(lengths, count*2);
+				hashes = Arrays.copyOf(hashes, count*2);
+			}
+			lengths[count] = length;
+			hashes[count] = ByteBuffer.wrap(digest.digest()).getLong();
+			count++;
+			start += length;
+		}
+		return new Chunks(Arrays.copyOf(lengths, count), Arrays.copyOf(hashes, count));
+	}
+
+	// the length of the chunk at start
+	private static int boundary(byte[] bytes, int start, int filled) {
+		int limit = Math.min(filled-start, MAXIMUM_CHUNK);
+		if(limit<=MINIMUM_CHUNK) return limit;
+		long hash = 0;
+		// the hash only depends on the last 64 bytes, start it that far before the minimum
+		for(int i=MINIMUM_CHUNK-64;i<limit;i++) {
+			hash = (hash<<1)+GEAR[bytes[start+i]&0xff];
+			if(i>=MINIMUM_CHUNK && (hash&BOUNDARY_MASK)==0) return i+1;
+		}
+		return limit;
+	}
+
+	/**
+	 * Index the chunks of some content, replacing where earlier content had the same chunks.
+	 */
+	public synchronized void add(String md5, Chunks chunks) {
+		remove(md5);
+		long position = 0;
+		for(int i=0;i<chunks.lengths.length;i++) {
+			locations.put(chunks.hashes[i], new Location(md5, position, chunks.lengths[i]));
+			position += chunks.lengths[i];
+		}
+		indexed.put(md5, chunks.hashes);
+		Metrics.set("chunksIndexed", locations.size());
+	}
+
+	/**
+	 * Drop the chunks of content that is no longer in the share.
+	 */
+	public synchronized void remove(String md5) {
+		long[] hashes = indexed.remove(md5);
+		if(hashes==null) return;
+		for(long hash : hashes) {
+			Location location = locations.get(hash);
+			if(location!=null && location.md5.equals(md5)) locations.remove(hash);
+		}
+		Metrics.set("chunksIndexed", locations.size());
+	}
+
+	/**
+	 * @return Where a chunk with the hash can be read from, or null if no indexed content has it.
+	 */
+	public synchronized Location find(long hash) {
+		return locations.get(hash);
+	}
+
+	/**
+	 * @return The hashes of the content that is indexed.
+	 */
+	public synchronized Set<String> indexedContent() {
+		return new HashSet<String>(indexed.keySet());
+	}
+}
@@ -51,6 +51,11 @@ public class Configuration {
         return properties.getProperty(key);
     }
 
+    // optional settings fall back to a default when absent from older configuration files
+    public static String getConfigurationValue(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue).trim();
+    }
+
     // private constructor to prevent initialization
     private Configuration() {
     }
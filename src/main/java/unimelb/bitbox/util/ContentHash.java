@@ -0,0 +1,297 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The hash used to identify file content, i.e. the value carried in the "md5" field
+ * of a file descriptor. Files are read through a large per thread direct buffer, or
+ * memory mapped when they are large, and each thread reuses its own hash state.
+ * <br/>
+ * Available hashes:
+ * <li>{@link #MD5} "md5", the original protocol hash, understood by every peer.</li>
+ * <li>{@link #XXH64} "xxh64", a much faster non-cryptographic 64 bit hash. Both peers
+ * must be configured with it, see {@link #forName(String)}.</li>
+ */
+public abstract class ContentHash {
+	public static final String MD5 = "md5";
+	public static final String XXH64 = "xxh64";
+
+	// files larger than this are memory mapped rather than read
+	private static final long MAP_THRESHOLD = 16L*1024*1024;
+	private static final long MAP_WINDOW = 64L*1024*1024;
+	private static final int BUFFER_SIZE = 1024*1024;
+
+	private static final ThreadLocal<ByteBuffer> buffers =
+			ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	private final ThreadLocal<State> states = ThreadLocal.withInitial(() -> newState());
+
+	/**
+	 * Incremental hash state, for content that arrives in pieces.
+	 */
+	public interface State {
+		/**
+		 * Add the remaining bytes of the buffer to the hash, consuming them.
+		 */
+		void update(ByteBuffer bytes);
+		/**
+		 * @return The hash of everything added so far as a lower case hex string.
+		 * The state is reset to empty.
+		 */
+		String finish();
+	}
+
+	/**
+	 * @param name The configured hash name, e.g. {@link #MD5}.
+	 * @return The content hash with that name.
+	 * @throws NoSuchAlgorithmException If there is no such hash.
+	 */
+	public static ContentHash forName(String name) throws NoSuchAlgorithmException {
+		switch(name) {
+		case MD5:
+			return new DigestHash(MD5,"MD5");
+		case XXH64:
+			return new XXHash64();
+		default:
+			throw new NoSuchAlgorithmException("unknown content hash "+name);
+		}
+	}
+
+	/**
+	 * @return The name used in configuration and in the handshake.
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return A new, empty, hash state.
+	 */
+	public abstract State newState();
+
+	/**
+	 * Hash the whole content of a file.
+	 */
+	public String hash(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return hash(channel);
+		}
+	}
+
+	/**
+	 * Hash the whole content of an open file, without changing its position.
+	 */
+	public String hash(FileChannel channel) throws IOException {
+		State state = states.get();
+		boolean finished = false;
+		try {
+			long size = channel.size();
+			if(size>=MAP_THRESHOLD) {
+				for(long position=0; position<size; position+=MAP_WINDOW) {
+					MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW,size-position));
+					state.update(mapped);
+				}
+			} else {
+				ByteBuffer buffer = buffers.get();
+				long position=0;
+				while(true) {
+					buffer.clear();
+					int read = channel.read(buffer, position);
+					if(read<=0) break;
+					position+=read;
+					buffer.flip();
+					state.update(buffer);
+				}
+			}
+			String hash = state.finish();
+			finished = true;
+			return hash;
+		} finally {
+			// a file that failed part way must not leave its bytes in the next file's hash
+			if(!finished) states.remove();
+		}
+	}
+
+	/**
+	 * Add part of an open file to a hash state, without changing the file's position.
+	 * @throws IOException If the file ends before the part does.
+	 */
+	public void update(State state, FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer buffer = buffers.get();
+		long end = position+length;
+		while(position<end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end-position));
+			int read = channel.read(buffer, position);
+			if(read<=0) throw new IOException("file ended before the part to hash");
+			position+=read;
+			buffer.flip();
+			state.update(buffer);
+		}
+	}
+
+	protected static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length*2);
+		for(int i=0; i< bytes.length ;i++)
+		{
+			sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A hash backed by a {@link MessageDigest}.
+	 */
+	private static class DigestHash extends ContentHash {
+		private final String name;
+		private final MessageDigest prototype;
+
+		DigestHash(String name, String algorithm) throws NoSuchAlgorithmException {
+			this.name=name;
+			this.prototype=MessageDigest.getInstance(algorithm);
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public State newState() {
+			final MessageDigest digest;
+			try {
+				digest = (MessageDigest) prototype.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+			return new State() {
+				@Override
+				public void update(ByteBuffer bytes) {
+					digest.update(bytes);
+				}
+				@Override
+				public String finish() {
+					return toHex(digest.digest());
+				}
+			};
+		}
+	}
+
+	/**
+	 * The 64 bit xxHash of the content, with seed 0.
+	 */
+	private static class XXHash64 extends ContentHash {
+		private static final long PRIME1 = 0x9E3779B185EBCA87L;
+		private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+		private static final long PRIME3 = 0x165667B19E3779F9L;
+		private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+		private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+		@Override
+		public String getName() {
+			return XXH64;
+		}
+
+		@Override
+		public State newState() {
+			return new XXState();
+		}
+
+		private static long round(long acc, long input) {
+			acc += input*PRIME2;
+			acc = Long.rotateLeft(acc, 31);
+			return acc*PRIME1;
+		}
+
+		private static long merge(long acc, long value) {
+			acc ^= round(0, value);
+			return acc*PRIME1+PRIME4;
+		}
+
+		private static class XXState implements State {
+			private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+			private long v1, v2, v3, v4;
+			private long total;
+
+			XXState() {
+				reset();
+			}
+
+			private void reset() {
+				v1 = PRIME1+PRIME2;
+				v2 = PRIME2;
+				v3 = 0;
+				v4 = -PRIME1;
+				total = 0;
+				pending.clear();
+			}
+
+			private void stripe(ByteBuffer in) {
+				v1 = round(v1, in.getLong());
+				v2 = round(v2, in.getLong());
+				v3 = round(v3, in.getLong());
+				v4 = round(v4, in.getLong());
+			}
+
+			@Override
+			public void update(ByteBuffer bytes) {
+				total += bytes.remaining();
+				if(pending.position()>0) {
+					while(pending.hasRemaining() && bytes.hasRemaining()) pending.put(bytes.get());
+					if(pending.hasRemaining()) return;
+					pending.flip();
+					stripe(pending);
+					pending.clear();
+				}
+				ByteOrder order = bytes.order();
+				bytes.order(ByteOrder.LITTLE_ENDIAN);
+				while(bytes.remaining()>=32) stripe(bytes);
+				bytes.order(order);
+				pending.put(bytes);
+			}
+
+			@Override
+			public String finish() {
+				long h;
+				if(total>=32) {
+					h = Long.rotateLeft(v1,1)+Long.rotateLeft(v2,7)+Long.rotateLeft(v3,12)+Long.rotateLeft(v4,18);
+					h = merge(h,v1);
+					h = merge(h,v2);
+					h = merge(h,v3);
+					h = merge(h,v4);
+				} else {
+					h = PRIME5;
+				}
+				h += total;
+				pending.flip();
+				while(pending.remaining()>=8) {
+					h ^= round(0, pending.getLong());
+					h = Long.rotateLeft(h,27)*PRIME1+PRIME4;
+				}
+				if(pending.remaining()>=4) {
+					h ^= (pending.getInt() & 0xFFFFFFFFL)*PRIME1;
+					h = Long.rotateLeft(h,23)*PRIME2+PRIME3;
+				}
+				while(pending.hasRemaining()) {
+					h ^= (pending.get() & 0xFF)*PRIME5;
+					h = Long.rotateLeft(h,11)*PRIME1;
+				}
+				h ^= h>>>33;
+				h *= PRIME2;
+				h ^= h>>>29;
+				h *= PRIME3;
+				h ^= h>>>32;
+				reset();
+				String hex = Long.toHexString(h);
+				while(hex.length()<16) hex = "0"+hex;
+				return hex;
+			}
+		}
+	}
+}
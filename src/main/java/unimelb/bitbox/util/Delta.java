@@ -0,0 +1,322 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * Transfers a modified file as the difference from the receiver's current copy, in the
+ * manner of rsync. The receiver splits its copy into blocks and sends a weak rolling
+ * checksum and a strong checksum of each, see {@link #sign(FileChannel, long)}. The sender
+ * slides a window over the new content a byte at a time, looking for blocks with the same
+ * checksums, see {@link #match(FileChannel, Signatures)}, and replies with instructions
+ * that build the new content from blocks of the old copy and literal ranges of the new
+ * content. The receiver copies the blocks itself and requests only the literal ranges.
+ * <br/>
+ * A wrong match is caught by the hash of the whole file when it completes.
+ */
+public class Delta {
+	public static final long MINIMUM_BLOCK = 2048;
+	public static final long MAXIMUM_BLOCK = 128*1024;
+	// the new content is read this much at a time
+	private static final int READ_SIZE = 1024*1024;
+
+	/**
+	 * The checksums of the blocks of the receiver's copy. A short block at the end is left
+	 * out, its bytes are sent as literal data.
+	 */
+	public static class Signatures {
+		public final long blockSize;
+		public final int[] weak;
+		public final long[] strong;
+
+		public Signatures(long blockSize, int[] weak, long[] strong) {
+			this.blockSize=blockSize;
+			this.weak=weak;
+			this.strong=strong;
+		}
+
+		public Document toDoc() {
+			ArrayList<Long> weakList = new ArrayList<Long>();
+			ArrayList<Long> strongList = new ArrayList<Long>();
+			for(int i=0;i<weak.length;i++) {
+				weakList.add((long) weak[i]);
+				strongList.add(strong[i]);
+			}
+			Document doc = new Document();
+			doc.append("blockSize", blockSize);
+			doc.append("weak", weakList);
+			doc.append("strong", strongList);
+			return doc;
+		}
+
+		@SuppressWarnings("unchecked")
+		public static Signatures fromDoc(Document doc) {
+			ArrayList<Object> weakList = (ArrayList<Object>) doc.get("weak");
+			ArrayList<Object> strongList = (ArrayList<Object>) doc.get("strong");
+			int[] weak = new int[weakList.size()];
+			long[] strong = new long[weak.length];
+			for(int i=0;i<weak.length;i++) {
+				weak[i] = (int) (long) weakList.get(i);
+				strong[i] = (long) strongList.get(i);
+			}
+			return new Signatures(doc.getLong("blockSize"), weak, strong);
+		}
+	}
+
+	/**
+	 * One step in building the new content.
+	 */
+	public static class Instruction {
+		/**
+		 * The position in the new content.
+		 */
+		public final long position;
+		public long length;
+		/**
+		 * The position in the receiver's copy to copy from, or -1 for literal data that has
+		 * to be fetched from the sender.
+		 */
+		public final long source;
+
+		public Instruction(long position, long length, long source) {
+			this.position=position;
+			this.length=length;
+			this.source=source;
+		}
+
+		public boolean isLiteral() {
+			return source<0;
+		}
+
+		public Document toDoc() {
+			Document doc = new Document();
+			doc.append("position", position);
+			doc.append("length", length);
+			if(!isLiteral()) doc.append("source", source);
+			return doc;
+		}
+
+		public static Instruction fromDoc(Document doc) {
+			return new Instruction(doc.getLong("position"), doc.getLong("length"),
+					doc.containsKey("source") ? doc.getLong("source") : -1);
+		}
+	}
+
+	/**
+	 * @param fileSize The size of the new content.
+	 * @return The block size to sign the old copy with, about the square root of the size
+	 * as rsync does, so that the number of signatures and the size of each grow alike.
+	 */
+	public static long blockSize(long fileSize) {
+		long size = ((long) Math.sqrt(fileSize)+1023)/1024*1024;
+		return Math.max(MINIMUM_BLOCK, Math.min(size, MAXIMUM_BLOCK));
+	}
+
+	/**
+	 * @param file The receiver's copy.
+	 * @return The checksums of each full block of the file.
+	 */
+	public static Signatures sign(FileChannel file, long blockSize) throws IOException, NoSuchAlgorithmException {
+		int blocks = (int) (file.size()/blockSize);
+		int[] weak = new int[blocks];
+		long[] strong = new long[blocks];
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		byte[] block = new byte[(int) blockSize];
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		for(int i=0;i<blocks;i++) {
+			buffer.clear();
+			long position = i*blockSize;
+			while(buffer.hasRemaining()) {
+				if(file.read(buffer, position+buffer.position())<0) throw new IOException("file shrank while signing");
+			}
+			weak[i] = weak(block, 0, block.length);
+			strong[i] = strong(digest, block, 0, block.length);
+		}
+		return new Signatures(blockSize, weak, strong);
+	}
+
+	/**
+	 * @param file The new content.
+	 * @param signatures The checksums of the receiver's copy.
+	 * @return The instructions that build the new content, in order of position and covering
+	 * all of it. Neighbouring blocks copied from neighbouring places are one instruction.
+	 */
+	public static ArrayList<Instruction> match(FileChannel file, Signatures signatures) throws IOException, NoSuchAlgorithmException {
+		ArrayList<Instruction> instructions = new ArrayList<Instruction>();
+		long fileSize = file.size();
+		int length = (int) signatures.blockSize;
+		int blocks = signatures.weak.length;
+		if(blocks==0 || fileSize<length) {
+			addLiteral(instructions, 0, fileSize);
+			return instructions;
+		}
+		// open hash of the weak checksums, chained through next
+		int tableSize = Integer.highestOneBit(blocks)*4;
+		int[] head = new int[tableSize];
+		int[] next = new int[blocks];
+		Arrays.fill(head, -1);
+		for(int i=blocks-1;i>=0;i--) {
+			int slot = slot(signatures.weak[i], tableSize);
+			next[i] = head[slot];
+			head[slot] = i;
+		}
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		Window window = new Window(file, Math.max(READ_SIZE, 2*length));
+		long literalStart = 0;
+		int expected = -1;
+		boolean rolling = false;
+		int a = 0;
+		int b = 0;
+		while(window.ensure(length)) {
+			byte[] bytes = window.bytes;
+			int k = window.start;
+			if(!rolling) {
+				a = 0;
+				b = 0;
+				for(int i=0;i<length;i++) {
+					int x = bytes[k+i]&0xff;
+					a += x;
+					b += (length-i)*x;
+				}
+				a &= 0xffff;
+				b &= 0xffff;
+				rolling = true;
+			}
+			int weak = a|(b<<16);
+			int match = -1;
+			long strong = 0;
+			boolean strongDone = false;
+			// the block after the last match is the most likely one
+			if(expected>=0 && expected<blocks && signatures.weak[expected]==weak) {
+				strong = strong(digest, bytes, k, length);
+				strongDone = true;
+				if(signatures.strong[expected]==strong) match = expected;
+			}
+			for(int i=head[slot(weak, tableSize)];match<0 && i>=0;i=next[i]) {
+				if(signatures.weak[i]!=weak) continue;
+				if(!strongDone) {
+					strong = strong(digest, bytes, k, length);
+					strongDone = true;
+				}
+				if(signatures.strong[i]==strong) match = i;
+			}
+			long position = window.position();
+			if(match>=0) {
+				addLiteral(instructions, literalStart, position-literalStart);
+				addCopy(instructions, position, length, match*signatures.blockSize);
+				window.start += length;
+				literalStart = position+length;
+				expected = match+1;
+				rolling = false;
+			} else {
+				if(!window.ensure(length+1)) break;
+				bytes = window.bytes;
+				k = window.start;
+				int out = bytes[k]&0xff;
+				int in = bytes[k+length]&0xff;
+				a = (a-out+in)&0xffff;
+				b = (b-length*out+a)&0xffff;
+				window.start++;
+			}
+		}
+		addLiteral(instructions, literalStart, fileSize-literalStart);
+		return instructions;
+	}
+
+	/**
+	 * @param instructions The instructions for a file.
+	 * @return The literal ranges, position to length, in the form kept by the transfer window.
+	 */
+	public static TreeMap<Long,Long> literals(ArrayList<Instruction> instructions) {
+		TreeMap<Long,Long> ranges = new TreeMap<Long,Long>();
+		for(Instruction instruction : instructions) {
+			if(instruction.isLiteral()) ranges.put(instruction.position, instruction.length);
+		}
+		return ranges;
+	}
+
+	private static void addLiteral(ArrayList<Instruction> instructions, long position, long length) {
+		if(length>0) instructions.add(new Instruction(position, length, -1));
+	}
+
+	private static void addCopy(ArrayList<Instruction> instructions, long position, long length, long source) {
+		if(!instructions.isEmpty()) {
+			Instruction last = instructions.get(instructions.size()-1);
+			if(!last.isLiteral() && last.position+last.length==position && last.source+last.length==source) {
+				last.length += length;
+				return;
+			}
+		}
+		instructions.add(new Instruction(position, length, source));
+	}
+
+	// the rsync rolling checksum, two 16 bit sums of the bytes
+	private static int weak(byte[] bytes, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for(int i=0;i<length;i++) {
+			int x = bytes[offset+i]&0xff;
+			a += x;
+			b += (length-i)*x;
+		}
+		return (a&0xffff)|((b&0xffff)<<16);
+	}
+
+	// the first 8 bytes of the MD5 of the block
+	private static long strong(MessageDigest digest, byte[] bytes, int offset, int length) {
+		digest.update(bytes, offset, length);
+		byte[] hash = digest.digest();
+		return ByteBuffer.wrap(hash).getLong();
+	}
+
+	private static int slot(int weak, int tableSize) {
+		return (weak^(weak>>>16))*0x9E3779B1>>>8&(tableSize-1);
+	}
+
+	/**
+	 * The part of the new content around the window being matched.
+	 */
+	private static class Window {
+		private final FileChannel file;
+		byte[] bytes;
+		// the file position of bytes[0]
+		long offset;
+		int filled;
+		// the start of the window in bytes
+		int start;
+
+		Window(FileChannel file, int size) {
+			this.file=file;
+			this.bytes=new byte[size];
+		}
+
+		long position() {
+			return offset+start;
+		}
+
+		/**
+		 * @return True if count bytes from the start of the window are in bytes, false if
+		 * the file ends before that.
+		 */
+		boolean ensure(int count) throws IOException {
+			if(filled-start>=count) return true;
+			System.arraycopy(bytes, start, bytes, 0, filled-start);
+			offset += start;
+			filled -= start;
+			start = 0;
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, filled, bytes.length-filled);
+			while(filled<count) {
+				int n = file.read(buffer, offset+filled);
+				if(n<0) return false;
+				filled += n;
+			}
+			return true;
+		}
+	}
+}
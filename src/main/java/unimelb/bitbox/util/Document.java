@@ -84,12 +84,15 @@ public class Document {
 		obj.put(key, new Integer(val));
 	}
 	
+	// a parser keeps its 32 KB lexer buffer from one message to the next, but is not thread safe
+	private static final ThreadLocal<JSONParser> parsers = ThreadLocal.withInitial(() -> new JSONParser());
+	
 	public String toJson(){
 		return obj.toJSONString();
 	}
 	
 	public static Document parse(String json) {
-		JSONParser parser = new JSONParser();
+		JSONParser parser = parsers.get();
 		try {
 			JSONObject obj  = (JSONObject) parser.parse(json);
 			return new Document(obj);
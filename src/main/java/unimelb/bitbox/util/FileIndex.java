@@ -0,0 +1,152 @@
+package unimelb.bitbox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A persistent copy of the file system manager's view of the share directory, so that
+ * files which have not changed since the last run do not need to be hashed again on startup.
+ * The index is kept next to (not inside) the share directory, so it never generates
+ * file system events of its own.
+ * <br/>
+ * The index is always written to a temporary file first and then moved over the old
+ * index, and ends with a CRC32 of its contents, so a process that is killed part way
+ * through a save leaves either the old index or the new one, never a corrupt one.
+ * An index that cannot be read is ignored and the share is hashed as before.
+ */
+public class FileIndex {
+	private static Logger log = Logger.getLogger(FileIndex.class.getName());
+
+	private static final int MAGIC = 0x42424958; // "BBIX"
+	private static final int VERSION = 2;
+
+	/**
+	 * What was known about a file when the index was saved.
+	 */
+	public static class Entry {
+		/**
+		 * The pathname of the file, relative to the share directory.
+		 */
+		public final String pathName;
+		public final long fileSize;
+		public final long lastModified;
+		/**
+		 * The content hash, see {@link ContentHash}.
+		 */
+		public final String md5;
+
+		public Entry(String pathName, long fileSize, long lastModified, String md5) {
+			this.pathName=pathName;
+			this.fileSize=fileSize;
+			this.lastModified=lastModified;
+			this.md5=md5;
+		}
+	}
+
+	private final File file;
+	private final String hashName;
+
+	/**
+	 * @param file The index file to read and write.
+	 * @param hashName The name of the {@link ContentHash} the saved hashes were made with.
+	 * An index made with a different hash is ignored.
+	 */
+	public FileIndex(File file, String hashName) {
+		this.file=file;
+		this.hashName=hashName;
+	}
+
+	/**
+	 * Read the index.
+	 * @return The saved entries keyed by path name, empty if there was no usable index.
+	 */
+	public HashMap<String,Entry> load() {
+		HashMap<String,Entry> entries = new HashMap<String,Entry>();
+		if(!file.isFile()) return entries;
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1<<16), crc))) {
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+				log.warning("ignoring index with unknown format "+file);
+				return entries;
+			}
+			if(!in.readUTF().equals(hashName)) {
+				log.warning("ignoring index made with a different content hash "+file);
+				return entries;
+			}
+			int count = in.readInt();
+			for(int i=0;i<count;i++) {
+				String pathName = in.readUTF();
+				long fileSize = in.readLong();
+				long lastModified = in.readLong();
+				String md5 = in.readUTF();
+				entries.put(pathName, new Entry(pathName,fileSize,lastModified,md5));
+			}
+			long expected = crc.getValue();
+			if(in.readLong()!=expected) {
+				log.warning("ignoring corrupt index "+file);
+				entries.clear();
+			}
+		} catch (EOFException e) {
+			log.warning("ignoring truncated index "+file);
+			entries.clear();
+		} catch (IOException e) {
+			log.warning("could not read index "+file+": "+e.getMessage());
+			entries.clear();
+		}
+		log.info("loaded "+entries.size()+" index entries from "+file);
+		return entries;
+	}
+
+	/**
+	 * Atomically replace the index with the given entries.
+	 * @param entries The entries to save.
+	 * @throws IOException If the index could not be written, the old index is left in place in this case.
+	 */
+	public void save(List<Entry> entries) throws IOException {
+		File tmp = new File(file.getPath()+".tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(fos, 1<<16), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(hashName);
+			out.writeInt(entries.size());
+			for(Entry entry : entries) {
+				out.writeUTF(entry.pathName);
+				out.writeLong(entry.fileSize);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(entry.md5);
+			}
+			out.writeLong(crc.getValue());
+			out.flush();
+			// make sure the contents are on disk before the rename makes them visible
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -1,27 +1,45 @@
 package unimelb.bitbox.util;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 /**
@@ -38,16 +56,20 @@ import java.util.logging.Logger;
  * <li>{@link #createFileLoader(String, String)}</li>
  * <li>{@link #checkShortcut(String)}</li>
  * <li>{@link #checkWriteComplete(String)}</li>
+ * <li>{@link #copyBlocks(String, ArrayList)}</li>
  * <li>{@link #deleteDirectory(String)}</li>
  * <li>{@link #deleteFile(String, long)}</li>
  * <li>{@link #dirNameExists(String)}</li>
  * <li>{@link #fileNameExists(String)}</li>
  * <li>{@link #fileNameExists(String, String)}</li>
  * <li>{@link #generateSyncEvents()}</li>
+ * <li>{@link #isExcluded(String, boolean)}</li>
  * <li>{@link #isSafePathName(String)}</li>
  * <li>{@link #readFile(String, long, long)}</li>
+ * <li>{@link #readFile(String, long, ByteBuffer)}</li>
  * <li>{@link #makeDirectory(String)}</li>
  * <li>{@link #modifyFileLoader(String, String, long)}</li>
+ * <li>{@link #signFile(String, long)}</li>
  * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
  * @author Aaron Harwood
  * @author Andrew Linxi Wang (contributions to Windows compatibility)
@@ -61,6 +83,15 @@ public class FileSystemManager extends Thread {
 	 * as they are ignored by the file system monitor.
 	 */
 	public final String loadingSuffix = "(bitbox)";
+	/**
+	 * The suffix, after {@link #loadingSuffix}, of the file that records which parts of a loader
+	 * file have been received, so that loading can resume after a disconnect or a restart.
+	 * It is written to a temporary file first, with {@link #STATE_TEMP_SUFFIX} added.
+	 */
+	public static final String STATE_SUFFIX = ".state";
+	public static final String STATE_TEMP_SUFFIX = ".new";
+	// how often a loader records its progress, at most
+	private static final long STATE_SAVE_INTERVAL = 1000;
 	
 	/**
 	 * Possible file system events.
@@ -175,7 +206,8 @@ public class FileSystemManager extends Thread {
 		 */
 		public long lastModified;
 		/**
-		 * The MD5 hash of the file's content.
+		 * The hash of the file's content, MD5 unless another {@link ContentHash}
+		 * is configured.
 		 */
 		public String md5;
 		/**
@@ -212,15 +244,15 @@ public class FileSystemManager extends Thread {
 	 * @param root The pathname to the root directory to share, called the share directory.
 	 * @param fileSystemObserver The observer of the file system events, which must implement {@link FileSystemObserver}.
 	 * @throws IOException Thrown if an initial scan of the share directory fails.
-	 * @throws NoSuchAlgorithmException Thrown if the MD5 hash algorithm is not available.
+	 * @throws NoSuchAlgorithmException Thrown if the configured content hash (MD5 by default) is not available.
 	 */
 	public FileSystemManager(String root, FileSystemObserver fileSystemObserver) throws IOException, NoSuchAlgorithmException{
 		this.fileSystemObserver=fileSystemObserver;
 		this.root=root;
-		watchedFiles=new HashMap<String,FileDescriptor>();
-		loadingFiles=new HashMap<String,FileLoader>();
-		watchedDirectories=new HashSet<String>();
-		hashMap=new HashMap<String,HashSet<String>>();
+		pathTable=new PathTable();
+		loadingFiles=new ConcurrentHashMap<String,FileLoader>();
+		hashMap=new HashMap<String,PathTable.Node>();
+		for(int i=0;i<PATH_LOCKS;i++) pathLocks[i]=new ReentrantLock();
 		File file = new File(root);
 		if(!file.exists() || !file.isDirectory()) {
 			log.severe("incorrect root given: "+root);
@@ -228,9 +260,41 @@ public class FileSystemManager extends Thread {
 		}
 		cannonicalRoot = file.getCanonicalPath();
 		log.info("monitoring "+cannonicalRoot);
+		if(Configuration.getConfigurationValue("fileSystemMonitor","poll").equals("watch")) {
+			try {
+				watchService = FileSystems.getDefault().newWatchService();
+				watchKeys = new ConcurrentHashMap<String,WatchKey>();
+				watchDirectory(root);
+			} catch (IOException | UnsupportedOperationException e) {
+				log.warning("change notification unavailable, polling instead: "+e.getMessage());
+				watchService = null;
+			}
+		}
+		contentHash = ContentHash.forName(Configuration.getConfigurationValue("hashAlgorithm",ContentHash.MD5));
+		fileIndex = new FileIndex(new File(Configuration.getConfigurationValue("indexFile",cannonicalRoot+".bitboxindex")),
+				contentHash.getName());
+		indexSaveInterval = Long.parseLong(Configuration.getConfigurationValue("indexSaveInterval","30"))*1000;
+		writeSettleTime = Long.parseLong(Configuration.getConfigurationValue("writeSettleTime","0"))*1000;
+		readChannels = new ReadChannelCache(Integer.parseInt(Configuration.getConfigurationValue("readChannelCache","64")));
+		if(Boolean.parseBoolean(Configuration.getConfigurationValue("chunkStore","true"))) {
+			chunkStore = new ChunkStore();
+		}
+		previousIndex = fileIndex.load();
+		int scanThreads = Integer.parseInt(Configuration.getConfigurationValue("scanThreads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		scanPool = new ForkJoinPool(Math.max(scanThreads,1));
 		scanDirectoryTree(root);
+		previousIndex = null;
+		saveIndex();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> saveIndex()));
 		log.info("starting file system monitor thread");
 		start();
+		if(chunkStore!=null) {
+			Thread indexer = new Thread(() -> indexChunks(), "chunk indexer");
+			indexer.setDaemon(true);
+			indexer.setPriority(Thread.MIN_PRIORITY);
+			indexer.start();
+		}
 	}
 	
 
@@ -264,6 +328,22 @@ public class FileSystemManager extends Thread {
 				cannonicalName.length()>cannonicalRoot.length()+1;
 	}
 	
+	/**
+	 * Returns true if the path name is excluded from syncing by the {@link IgnoreRules}
+	 * in the share directory, either itself or because a parent directory is.
+	 * @param pathName The path name to test, relative to the share directory.
+	 * @param directory True if the path name is for a directory.
+	 * @return True if the path name should not be created or synced.
+	 */
+	public boolean isExcluded(String pathName, boolean directory) {
+		pathName=separatorsToSystem(pathName);
+		for(int end=pathName.indexOf(File.separatorChar); end>=0; end=pathName.indexOf(File.separatorChar,end+1)) {
+			String parent=pathName.substring(0,end);
+			if(rulesFor(parentName(parent)).isExcluded(parent,true)) return true;
+		}
+		return rulesFor(parentName(pathName)).isExcluded(pathName,directory);
+	}
+	
 	// directories
 	
 	/**
@@ -274,8 +354,12 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean dirNameExists(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			return watchedDirectories.contains(root+FileSystems.getDefault().getSeparator()+pathName);
+		tableLock.readLock().lock();
+		try {
+			PathTable.Node node=pathTable.find(pathName);
+			return node!=null && node.directory;
+		} finally {
+			tableLock.readLock().unlock();
 		}
 	}
 	
@@ -289,9 +373,13 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean makeDirectory(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
 			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
 			return file.mkdir();
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -304,11 +392,15 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean deleteDirectory(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
 			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
 			if(file.isDirectory()) {
 				return file.delete();
 			} else return false;
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -325,8 +417,12 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean fileNameExists(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			return watchedFiles.containsKey(root+FileSystems.getDefault().getSeparator()+pathName);
+		tableLock.readLock().lock();
+		try {
+			PathTable.Node node=pathTable.find(pathName);
+			return node!=null && node.file!=null;
+		} finally {
+			tableLock.readLock().unlock();
 		}
 	}
 	
@@ -342,10 +438,13 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean fileNameExists(String pathName, String md5) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			return watchedFiles.containsKey(fullPathName) &&
-					watchedFiles.get(fullPathName).md5.equals(md5);
+		tableLock.readLock().lock();
+		try {
+			PathTable.Node node=pathTable.find(pathName);
+			return node!=null && node.file!=null &&
+					node.file.md5.equals(md5);
+		} finally {
+			tableLock.readLock().unlock();
 		}
 	}
 	
@@ -360,16 +459,26 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean deleteFile(String pathName, long lastModified, String md5) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			tableLock.readLock().lock();
+			try {
+				PathTable.Node node=pathTable.find(pathName);
+				if(node==null || node.file==null || (node.file.lastModified>lastModified &&
+						!node.file.md5.equals(md5))) return false;
+			} finally {
+				tableLock.readLock().unlock();
+			}
 			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(watchedFiles.containsKey(fullPathName) && (watchedFiles.get(fullPathName).lastModified<=lastModified||
-					watchedFiles.get(fullPathName).md5.equals(md5))) {
-				log.info("deleting "+fullPathName);
-				File file = new File(fullPathName);
-				if(file.isFile()) {
-					return file.delete();
-				} else return false;
+			log.info("deleting "+fullPathName);
+			File file = new File(fullPathName);
+			readChannels.invalidate(file.getPath());
+			if(file.isFile()) {
+				return file.delete();
 			} else return false;
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -392,11 +501,17 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean createFileLoader(String pathName, String md5, long length, long lastModified) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(watchedFiles.containsKey(fullPathName)) return false;
-			if(loadingFiles.containsKey(fullPathName)) return false;
-			loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,length,lastModified));
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			if(fileNameExists(pathName)) return false;
+			FileLoader existing=loadingFiles.get(pathName);
+			// asked again for the same content, e.g. after a reconnect, carry on where it left off
+			if(existing!=null) return existing.md5.equals(md5) && existing.length==length;
+			addLoader(pathName,new FileLoader(root+FileSystems.getDefault().getSeparator()+pathName,
+					md5,length,lastModified));
+		} finally {
+			lock.unlock();
 		}
 		return true;
 	}
@@ -413,14 +528,76 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean writeFile(String pathName, ByteBuffer src, long position) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(!loadingFiles.containsKey(fullPathName)) return false;
-			loadingFiles.get(fullPathName).writeFile(src, position);
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader==null) return false;
+			loader.writeFile(src, position);
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+	
+	/**
+	 * The same as {@link #writeFile(String, ByteBuffer, long)}, for bytes that are still in a
+	 * channel such as a socket. They go from the channel to the file without being copied
+	 * through the heap.
+	 * @param src The channel to read the bytes from.
+	 * @param length The number of bytes to write.
+	 * @return True if successfully written, false if there was no associated file loader for the given
+	 * name, nothing is read from the channel in that case.
+	 * @throws IOException If there was an error reading or writing the bytes.
+	 */
+	public boolean writeFile(String pathName, ReadableByteChannel src, long position, long length) throws IOException {
+		pathName=separatorsToSystem(pathName);
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader==null) return false;
+			loader.writeFile(src, position, length);
+		} finally {
+			lock.unlock();
 		}
 		return true;
 	}
 	
+	/**
+	 * Open any file containing the matching specific content, for sending its bytes straight
+	 * from the file, see {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 * @param md5 The MD5 hash of the content of the file to read from.
+	 * @return A read only channel which the caller must close, or null if there was no such file.
+	 * The content is checked when the file is opened, a file that changes while it is being sent
+	 * is caught by the receiver's final check.
+	 * @throws IOException If there were any problems accessing the file system.
+	 * @throws NoSuchAlgorithmException  If the MD5 hash algorithm is unavailable.
+	 */
+	public FileChannel openFile(String md5) throws IOException, NoSuchAlgorithmException {
+		for(SameContent attempt : filesWithHash(md5)) {
+			ReentrantLock pathLock=pathLock(attempt.pathName);
+			pathLock.lock();
+			try {
+				File file = attempt.file;
+				log.info("opening file "+file);
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				boolean same = false;
+				try {
+					same = hashFile(file,md5,attempt.lastModified).equals(md5);
+				} finally {
+					if(!same) channel.close();
+				}
+				if(same) return channel;
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				pathLock.unlock();
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Read bytes from any file containing the matching specific content.
 	 * @param md5 The MD5 hash of the content of the file to read from.
@@ -432,35 +609,60 @@ public class FileSystemManager extends Thread {
 	 * @throws NoSuchAlgorithmException  If the MD5 hash algorithm is unavailable.
 	 */
 	public ByteBuffer readFile(String md5, long position, long length) throws IOException, NoSuchAlgorithmException {
-		synchronized(this) {
-			if(hashMap.containsKey(md5)) {
-				for(String attempt: hashMap.get(md5)) {
-					try {
-						File file = new File(attempt);
-						log.info("reading file "+file);
-						RandomAccessFile raf = new RandomAccessFile(file, "rw");
-						FileChannel channel = raf.getChannel();
-						FileLock lock = channel.lock();
-						String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
-						if(currentMd5.equals(md5)) {
-							ByteBuffer bb = ByteBuffer.allocate((int) length);
-							channel.position(position);
-							int read = channel.read(bb);
-							lock.release();
-							channel.close();
-							raf.close();
-							if(read<length) throw new IOException("did not read everything expected");
-							return bb;
-						}
-						lock.release();
-						channel.close();
-						raf.close();
-					} catch (IOException e) {
-						// try another one
+		ByteBuffer bb = ByteBuffer.allocate((int) length);
+		return readFile(md5, position, bb) ? bb : null;
+	}
+	
+	/**
+	 * The same as {@link #readFile(String, long, long)}, into a buffer the caller provides,
+	 * for example one from the {@link BufferPool}.
+	 * @param bb The buffer to read into, from its position up to its limit. Its position
+	 * is at its limit once the bytes are read.
+	 * @return True if the bytes were read, false if there was no such file with that content.
+	 */
+	public boolean readFile(String md5, long position, ByteBuffer bb) throws IOException, NoSuchAlgorithmException {
+		int start = bb.position();
+		for(SameContent attempt : filesWithHash(md5)) {
+			bb.position(start);
+			// unchanged since it was hashed, read it through the cache without the path lock
+			ReadChannelCache.Entry entry = readChannels.acquire(attempt.file, attempt.fileSize, attempt.lastModified);
+			if(entry!=null) {
+				try {
+					readFully(entry.channel, bb, position);
+					return true;
+				} catch (IOException e) {
+					readChannels.invalidate(entry.path); // try another one
+				} finally {
+					readChannels.release(entry);
+				}
+				continue;
+			}
+			ReentrantLock pathLock=pathLock(attempt.pathName);
+			pathLock.lock();
+			try {
+				File file = attempt.file;
+				log.info("reading file "+file);
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					String currentMd5 = hashFile(file,md5,attempt.lastModified);
+					if(currentMd5.equals(md5)) {
+						readFully(channel, bb, position);
+						return true;
 					}
 				}
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				pathLock.unlock();
 			}
-			return null;
+		}
+		return false;
+	}
+	
+	// positional, so that threads can share the channel
+	private static void readFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+		long start = position-bb.position();
+		while(bb.hasRemaining()) {
+			if(channel.read(bb, start+bb.position())<0) throw new IOException("did not read everything expected");
 		}
 	}
 	
@@ -479,22 +681,25 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean checkWriteComplete(String pathName) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(!loadingFiles.containsKey(fullPathName)) return false;
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader==null) return false;
 			boolean check=false;
 			try {
-				check = loadingFiles.get(fullPathName).checkWriteComplete();
+				check = loader.checkWriteComplete();
 			} catch (IOException | NoSuchAlgorithmException e) {
-				FileLoader fl = loadingFiles.get(fullPathName);
-				loadingFiles.remove(fullPathName);
-				fl.cancel();
+				removeLoader(pathName);
+				loader.cancel();
 				throw e;
 			}
 			if(check) {
-				loadingFiles.remove(fullPathName);
+				removeLoader(pathName);
 			}
 			return check;
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -512,22 +717,25 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean checkShortcut(String pathName) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(!loadingFiles.containsKey(fullPathName)) return false;
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader==null) return false;
 			boolean check=false;
 			try {
-				check = loadingFiles.get(fullPathName).checkShortcut();
+				check = loader.checkShortcut();
 			} catch (IOException | NoSuchAlgorithmException e) {
-				FileLoader fl = loadingFiles.get(fullPathName);
-				loadingFiles.remove(fullPathName);
-				fl.cancel();
+				removeLoader(pathName);
+				loader.cancel();
 				throw e;
 			}
 			if(check) {
-				loadingFiles.remove(fullPathName);
+				removeLoader(pathName);
 			}
 			return check;
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -545,18 +753,142 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean modifyFileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(loadingFiles.containsKey(fullPathName)) return false;
-			if(watchedFiles.containsKey(fullPathName) && watchedFiles.get(fullPathName).lastModified<lastModified) {
-				loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,
-													length,
-													lastModified));
-			} else return false;
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader existing=loadingFiles.get(pathName);
+			if(existing!=null) return existing.md5.equals(md5) && existing.length==length;
+			tableLock.readLock().lock();
+			try {
+				PathTable.Node node=pathTable.find(pathName);
+				if(node==null || node.file==null || node.file.lastModified>=lastModified) return false;
+			} finally {
+				tableLock.readLock().unlock();
+			}
+			addLoader(pathName, new FileLoader(root+FileSystems.getDefault().getSeparator()+pathName,md5,
+												length,
+												lastModified));
+		} finally {
+			lock.unlock();
 		}
 		return true;
 	}
 	
+	/**
+	 * @param pathName The name of the file being loaded.
+	 * @return The parts of the file that are still to be written, position to length, which
+	 * is all of it for a new loader and less for one that resumed. Null if there is no loader.
+	 */
+	public TreeMap<Long,Long> missingRanges(String pathName) {
+		pathName=separatorsToSystem(pathName);
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader==null) return null;
+			return loader.missing();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sign the current content of a file being modified, for a delta transfer, see {@link Delta}.
+	 * @param pathName The name of the file, which must have a loader from {@link #modifyFileLoader(String, String, long, long)}.
+	 * @param blockSize The block size to sign with.
+	 * @return The signatures, or null if there is no loader or no current content.
+	 * @throws IOException If there were any errors reading the file.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public Delta.Signatures signFile(String pathName, long blockSize) throws IOException, NoSuchAlgorithmException {
+		pathName=separatorsToSystem(pathName);
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader==null) return null;
+			File file = new File(loader.pathName);
+			if(!file.isFile()) return null;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				return Delta.sign(channel, blockSize);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Build the parts of a file being modified that are unchanged from its current content,
+	 * by copying them within the file system rather than receiving them.
+	 * @param pathName The name of the file, which must have a loader.
+	 * @param instructions The instructions from the sender, see {@link Delta#match}. Only the
+	 * copies are carried out, the literal data has to be written with {@link #writeFile(String, ByteBuffer, long)}.
+	 * @return True if the copies were made, false if there was no associated file loader.
+	 * @throws IOException If there were any errors copying, for example if the current content
+	 * is shorter than the sender expected.
+	 */
+	public boolean copyBlocks(String pathName, ArrayList<Delta.Instruction> instructions) throws IOException {
+		pathName=separatorsToSystem(pathName);
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader==null) return false;
+			loader.copyBlocks(instructions);
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+	
+	/**
+	 * Build the parts of a file being received that other local files already have, see
+	 * {@link ChunkStore}. The chunks are read from wherever they are and written through the
+	 * loader like received bytes, the rest has to be written with {@link #writeFile(String, ByteBuffer, long)}.
+	 * @param pathName The name of the file, which must have a loader.
+	 * @param chunks The chunks of the file, from the sender.
+	 * @return The number of bytes written, 0 if there is no chunk store or no loader.
+	 * @throws IOException If there were any errors writing the file.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public long copyChunks(String pathName, ChunkStore.Chunks chunks) throws IOException, NoSuchAlgorithmException {
+		if(chunkStore==null) return 0;
+		long copied = 0;
+		long position = 0;
+		int i = 0;
+		while(i<chunks.lengths.length) {
+			ChunkStore.Location location = chunkStore.find(chunks.hashes[i]);
+			if(location==null || location.length!=chunks.lengths[i]) {
+				position += chunks.lengths[i++];
+				continue;
+			}
+			// neighbouring chunks that are neighbours in the same content are read at once
+			long length = location.length;
+			int next = i+1;
+			while(next<chunks.lengths.length && length<MAXIMUM_COPY) {
+				ChunkStore.Location following = chunkStore.find(chunks.hashes[next]);
+				if(following==null || following.length!=chunks.lengths[next] || !following.md5.equals(location.md5)
+						|| following.position!=location.position+length) break;
+				length += following.length;
+				next++;
+			}
+			// the source is not locked while the chunks are read, so this loader's lock is not held
+			ByteBuffer bytes = BufferPool.acquireDirect((int) length);
+			try {
+				if(readFile(location.md5, location.position, bytes)) {
+					bytes.flip();
+					if(!writeFile(pathName, bytes, position)) return copied;
+					copied += length;
+				}
+			} finally {
+				BufferPool.release(bytes);
+			}
+			position += length;
+			i = next;
+		}
+		return copied;
+	}
+	
 	/**
 	 * Cancel a file loader. Removes the file loader if present, including the loader file.
 	 * No other actions are taken.
@@ -566,21 +898,24 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean cancelFileLoader(String pathName) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(loadingFiles.containsKey(fullPathName)) {
+		ReentrantLock lock=pathLock(pathName);
+		lock.lock();
+		try {
+			FileLoader loader=loadingFiles.get(pathName);
+			if(loader!=null) {
 				boolean success = false;
 				try {
-					success = loadingFiles.get(fullPathName).cancel();
-					loadingFiles.remove(fullPathName);
+					success = loader.cancel();
+					removeLoader(pathName);
 				} catch (IOException e) {
-					FileLoader fl = loadingFiles.get(fullPathName);
-					loadingFiles.remove(fullPathName);
-					fl.cancel();
+					removeLoader(pathName);
+					loader.cancel();
 					throw e;
 				}
 				return success;
 			}
+		} finally {
+			lock.unlock();
 		}
 		return false;
 	}
@@ -594,24 +929,20 @@ public class FileSystemManager extends Thread {
 	 * share directory.
 	 */
 	public ArrayList<FileSystemEvent> generateSyncEvents() {
-		synchronized(this) {
+		tableLock.readLock().lock();
+		try {
 			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
-			ArrayList<String> keys = new ArrayList<String>(watchedDirectories);
-			for(String pathname : keys) {
-				File file = new File(pathname);
-				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
-			}
-			Collections.sort(pathevents,(arg0,arg1) ->
-				{
-					return arg0.path.length()-arg1.path.length();	
-				}
-			);
-			keys = new ArrayList<String>(watchedFiles.keySet());
-			for(String pathname : keys) {
-				File file = new File(pathname);
-				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, watchedFiles.get(pathname)));
+			// parents always come before their children
+			ArrayList<PathTable.Node> nodes = pathTable.subtree(pathTable.root());
+			for(PathTable.Node node : nodes) {
+				if(node.directory) pathevents.add(directoryEvent(node,EVENT.DIRECTORY_CREATE));
+			}
+			for(PathTable.Node node : nodes) {
+				if(node.file!=null) pathevents.add(fileEvent(node,EVENT.FILE_CREATE,node.file));
 			}
 			return pathevents;
+		} finally {
+			tableLock.readLock().unlock();
 		}
 	}
 	
@@ -628,60 +959,176 @@ public class FileSystemManager extends Thread {
 		private FileLock lock; 
 		private File file;
 		private RandomAccessFile raf;
+		// the parts of the loader file written so far, start to end, never touching each other
+		private TreeMap<Long,Long> received = new TreeMap<Long,Long>();
+		private File stateFile;
+		private long lastStateSave;
+		// the hash of the first digested bytes of the loader file
+		private ContentHash.State digest = contentHash.newState();
+		private long digested;
 		public FileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
 			this.pathName=pathName;
 			this.md5=md5;
 			this.length=length;
 			this.lastModified=lastModified;
 			file = new File(pathName+loadingSuffix);
-			if(file.exists()) throw new IOException("file loader already in progress");
-			log.info("creating file "+file.getPath());
-			file.createNewFile();
+			stateFile = new File(pathName+loadingSuffix+STATE_SUFFIX);
+			boolean existed = file.exists();
 			raf = new RandomAccessFile(file, "rw");
 			channel = raf.getChannel();
-			lock = channel.lock();
+			lock = channel.tryLock();
+			if(lock==null) {
+				channel.close();
+				raf.close();
+				throw new IOException("file loader already in progress");
+			}
+			if(existed && readState()) {
+				long bytes = receivedBytes();
+				log.info("resuming file "+file.getPath()+" with "+bytes+" of "+length+" bytes");
+				Metrics.add("transferBytesResumed", bytes);
+			} else {
+				// left by a transfer of other content, or one that never recorded its progress
+				log.info((existed ? "restarting file " : "creating file ")+file.getPath());
+				raf.setLength(0);
+				stateFile.delete();
+			}
+			// small files complete before they have any progress worth recording
+			lastStateSave = System.currentTimeMillis();
 		}
 		
 		public boolean cancel() throws IOException {
 			lock.release();
 			channel.close();
 			raf.close();
+			stateFile.delete();
 			return file.delete();
 		}
 		
+		// the state file records the expected content and the parts received
+		private boolean readState() {
+			try {
+				if(!stateFile.isFile()) return false;
+				Document state = Document.parse(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8));
+				if(!md5.equals(state.getString("md5")) || !state.containsKey("fileSize") || state.getLong("fileSize")!=length) return false;
+				long size = channel.size();
+				for(Object range : (ArrayList<?>) state.get("received")) {
+					Document doc = (Document) range;
+					long position = doc.getLong("position");
+					long count = doc.getLong("length");
+					// bytes that never reached the disk before a crash are received again
+					if(position+count<=size) received(position, count);
+				}
+				return true;
+			} catch (IOException | RuntimeException e) {
+				log.warning("could not read "+stateFile+": "+e.getMessage());
+				received.clear();
+				return false;
+			}
+		}
+		
+		private void saveState(boolean now) throws IOException {
+			long time = System.currentTimeMillis();
+			if(!now && time-lastStateSave<STATE_SAVE_INTERVAL) return;
+			lastStateSave = time;
+			// the bytes have to be on disk before the record of them
+			channel.force(false);
+			ArrayList<Document> ranges = new ArrayList<Document>();
+			for(Map.Entry<Long,Long> range : received.entrySet()) {
+				Document doc = new Document();
+				doc.append("position", range.getKey());
+				doc.append("length", range.getValue()-range.getKey());
+				ranges.add(doc);
+			}
+			Document state = new Document();
+			state.append("md5", md5);
+			state.append("fileSize", length);
+			state.append("lastModified", lastModified);
+			state.append("received", ranges);
+			Path temp = Paths.get(stateFile.getPath()+STATE_TEMP_SUFFIX);
+			Files.write(temp, state.toJson().getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		
+		private void received(long position, long count) {
+			if(count<=0) return;
+			long start = position;
+			long end = position+count;
+			Map.Entry<Long,Long> before = received.floorEntry(start);
+			if(before!=null && before.getValue()>=start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+				received.remove(before.getKey());
+			}
+			Map.Entry<Long,Long> after;
+			while((after=received.ceilingEntry(start))!=null && after.getKey()<=end) {
+				end = Math.max(end, after.getValue());
+				received.remove(after.getKey());
+			}
+			received.put(start, end);
+		}
+		
+		// blocks that arrived ahead of their turn are hashed from the file once the gap before them is filled
+		private void digestReceived() throws IOException {
+			Map.Entry<Long,Long> range = received.floorEntry(digested);
+			if(range!=null && range.getValue()>digested) {
+				contentHash.update(digest, channel, digested, range.getValue()-digested);
+				digested = range.getValue();
+			}
+		}
+		
+		private long receivedBytes() {
+			long bytes = 0;
+			for(Map.Entry<Long,Long> range : received.entrySet()) bytes += range.getValue()-range.getKey();
+			return bytes;
+		}
+		
+		public TreeMap<Long,Long> missing() {
+			TreeMap<Long,Long> missing = new TreeMap<Long,Long>();
+			long position = 0;
+			for(Map.Entry<Long,Long> range : received.entrySet()) {
+				if(range.getKey()>position) missing.put(position, range.getKey()-position);
+				position = Math.max(position, range.getValue());
+			}
+			if(position<length) missing.put(position, length-position);
+			return missing;
+		}
+		
 		public boolean checkShortcut() throws NoSuchAlgorithmException, IOException {
 			// check for a shortcut
 			boolean success=false;
-			if(hashMap.containsKey(md5)) {
-				for(String attempt: hashMap.get(md5)) {
-					RandomAccessFile raf2 = null;
-					FileChannel channel2 = null;
-					FileLock lock2 = null;
-					try {
-						File file = new File(attempt);
-						raf2 = new RandomAccessFile(file, "rw");
-						channel2 = raf2.getChannel();
-						lock2 = channel2.lock();
-						String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
-						if(currentMd5.equals(md5)) {
-							Path dest = Paths.get(pathName);
-							CopyOption[] options = new CopyOption[]{
-							          StandardCopyOption.REPLACE_EXISTING
-							};
-							InputStream is = Channels.newInputStream(channel2);
-							Files.copy(is, dest, options);
-				    		dest.toFile().setLastModified(lastModified);
-							success=true;
-							break;
-						}
-					} catch (IOException e) {
-						e.printStackTrace(); // try another one
-					}
-					finally {
-						if (lock2 != null) lock2.release();
-						if (channel2 != null) channel2.close();
-						if (raf2 != null) raf2.close();
+			for(SameContent attempt : filesWithHash(md5)) {
+				// the file may be busy in another transfer, don't wait for it while holding this one
+				ReentrantLock pathLock2 = pathLock(attempt.pathName);
+				if(!pathLock2.tryLock()) continue;
+				RandomAccessFile raf2 = null;
+				FileChannel channel2 = null;
+				FileLock lock2 = null;
+				try {
+					File file = attempt.file;
+					raf2 = new RandomAccessFile(file, "rw");
+					channel2 = raf2.getChannel();
+					lock2 = channel2.lock();
+					String currentMd5 = hashFile(file,md5,attempt.lastModified);
+					if(currentMd5.equals(md5)) {
+						Path dest = Paths.get(pathName);
+						readChannels.invalidate(dest.toFile().getPath());
+						CopyOption[] options = new CopyOption[]{
+						          StandardCopyOption.REPLACE_EXISTING
+						};
+						InputStream is = Channels.newInputStream(channel2);
+						Files.copy(is, dest, options);
+			    		dest.toFile().setLastModified(lastModified);
+						success=true;
+						break;
 					}
+				} catch (IOException e) {
+					e.printStackTrace(); // try another one
+				}
+				finally {
+					if (lock2 != null) lock2.release();
+					if (channel2 != null) channel2.close();
+					if (raf2 != null) raf2.close();
+					pathLock2.unlock();
 				}
 			}
 			if(success) {
@@ -689,243 +1136,1005 @@ public class FileSystemManager extends Thread {
 				channel.close();
 				raf.close();
 				file.delete();
+				stateFile.delete();
 			}
 			return success;
 		}
 		public void writeFile(ByteBuffer src, long position) throws IOException {
-			if(position>length) throw new IOException("trying to write bytes beyond what is expected");
-			channel.write(src, position);
+			if(position+src.remaining()>length) throw new IOException("trying to write bytes beyond what is expected");
+			ByteBuffer bytes = src.duplicate();
+			int written = channel.write(src, position);
+			received(position, written);
+			if(position==digested) {
+				// the usual case, straight from the block in memory
+				bytes.limit(bytes.position()+written);
+				digest.update(bytes);
+				digested += written;
+			}
+			digestReceived();
+			saveState(false);
+		}
+		public void writeFile(ReadableByteChannel src, long position, long count) throws IOException {
+			if(position+count>length) throw new IOException("trying to write bytes beyond what is expected");
+			// transferFrom only writes at or before the end of the file, blocks may arrive out of order
+			if(position>channel.size()) raf.setLength(position);
+			long written = 0;
+			while(written<count) {
+				long n = channel.transferFrom(src, position+written, count-written);
+				if(n<=0) throw new IOException("channel ended "+(count-written)+" bytes early");
+				written += n;
+			}
+			received(position, count);
+			digestReceived();
+			saveState(false);
+		}
+		public void copyBlocks(ArrayList<Delta.Instruction> instructions) throws IOException {
+			try (FileChannel current = FileChannel.open(Paths.get(pathName), StandardOpenOption.READ)) {
+				for(Delta.Instruction instruction : instructions) {
+					if(instruction.isLiteral()) continue;
+					if(instruction.position+instruction.length>length || instruction.source+instruction.length>current.size()) {
+						throw new IOException("trying to copy bytes beyond what is expected");
+					}
+					if(instruction.position>channel.size()) raf.setLength(instruction.position);
+					current.position(instruction.source);
+					long copied = 0;
+					while(copied<instruction.length) {
+						long n = channel.transferFrom(current, instruction.position+copied, instruction.length-copied);
+						if(n<=0) throw new IOException("current content ended "+(instruction.length-copied)+" bytes early");
+						copied += n;
+					}
+					received(instruction.position, instruction.length);
+				}
+			}
+			digestReceived();
+			saveState(true);
 		}
 		public boolean checkWriteComplete() throws NoSuchAlgorithmException, IOException {
-			String currentMd5 = hashFile(file,pathName,0,raf);
+			// no need to hash a file with parts still to come
+			if(!missing().isEmpty()) return false;
+			String currentMd5;
+			if(digested==length) {
+				currentMd5 = digest.finish();
+			} else {
+				log.info("hashing file "+pathName);
+				currentMd5 = contentHash.hash(channel);
+			}
 			if(currentMd5.equals(md5)) {
 				lock.release();
 				channel.close();
 				raf.close();
 				File dest = new File(pathName);
+				readChannels.invalidate(dest.getPath());
 				if(dest.exists()) dest.delete();
 				file.renameTo(dest);
 				dest.setLastModified(lastModified);
+				stateFile.delete();
 				return true;
 			}
+			// something written was wrong, all of it has to be received again
+			received.clear();
+			digest = contentHash.newState();
+			digested = 0;
+			saveState(true);
 			return false;
 		}
 	}
 
-	private HashSet<String> watchedDirectories;
-	private HashMap<String,HashSet<String>> hashMap;
+	// the watched files and directories
+	private PathTable pathTable;
+	// content hash to the first watched file with that content, any others are chained through the nodes
+	private HashMap<String,PathTable.Node> hashMap;
+	// guards the path table and the hash chains, only ever held for lookups and updates in memory
+	private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+	// serializes the API calls on each path name, see pathLock(String)
+	private static final int PATH_LOCKS = 64;
+	private final ReentrantLock[] pathLocks = new ReentrantLock[PATH_LOCKS];
 	private FileSystemObserver fileSystemObserver;
-	private HashMap<String,FileDescriptor> watchedFiles;
 	private String root;
 	private String cannonicalRoot;
-	private HashMap<String,FileLoader> loadingFiles;
+	// relative path name to its loader
+	private ConcurrentHashMap<String,FileLoader> loadingFiles;
 	
 	
 	
 	
+	private WatchService watchService;
+	private ConcurrentHashMap<String,WatchKey> watchKeys;
+	private ForkJoinPool scanPool;
+	private ContentHash contentHash;
+	private FileIndex fileIndex;
+	private HashMap<String,FileIndex.Entry> previousIndex;
+	private volatile boolean indexDirty;
+	private long lastIndexSave;
+	private long indexSaveInterval;
+	// counts the scans, each scan marks the nodes it sees on disk with its count
+	private int scanEpoch;
+	// the ignore rules of each directory, by path name relative to the share directory
+	private ConcurrentHashMap<String,IgnoreRules> ignoreRules = new ConcurrentHashMap<String,IgnoreRules>();
+	// files that are still being written to, by full path name; only used by the monitor thread
+	private HashMap<String,Settling> settling = new HashMap<String,Settling>();
+	private long writeSettleTime;
+	// open channels to the files being sent
+	private ReadChannelCache readChannels;
+	// null if chunkStore is off
+	private ChunkStore chunkStore;
+	// the most read at once by copyChunks
+	private static final long MAXIMUM_COPY = 1024*1024;
+	
 	public void run() {
-		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		if(watchService!=null) {
+			watchDirectoryTree();
+		} else {
+			pollDirectoryTree();
+		}
+	}
+	
+	/**
+	 * Rescan the whole share directory every second. Used when change notification
+	 * is not configured or not supported by the platform.
+	 */
+	private void pollDirectoryTree() {
+		while (!isInterrupted()) {
+			if(!reconcile()) continue;
+			saveIndexIfDue();
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				log.warning(e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Wait on the watch service and only look at the directories that the
+	 * platform reports as changed. A full rescan is done only when the platform
+	 * reports that events were lost.
+	 */
+	private void watchDirectoryTree() {
+		log.info("watching share directory for changes");
 		while (!isInterrupted()) {
-			
-			pathevents.clear();
-			// check for new/modified files
+			WatchKey key;
+			long timeout = indexSaveInterval;
+			long nextSettled = nextSettled();
+			if(nextSettled>0) timeout = Math.min(timeout, Math.max(nextSettled-System.currentTimeMillis(),1));
 			try {
-				synchronized(this) {
-					pathevents.addAll(scanDirectoryTree(root));
+				key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				log.warning(e.getMessage());
+				break;
+			}
+			// every path that changed in this burst, each is only looked at once however many events it had
+			LinkedHashSet<String> names=new LinkedHashSet<String>();
+			// directories to rescan with their new ignore rules
+			LinkedHashSet<String> rulesChanged=new LinkedHashSet<String>();
+			boolean overflow=false;
+			while(key!=null) {
+				Path dir = (Path) key.watchable();
+				for(WatchEvent<?> watchEvent : key.pollEvents()) {
+					if(watchEvent.kind()==StandardWatchEventKinds.OVERFLOW) {
+						overflow=true;
+						continue;
+					}
+					String name = dir.resolve((Path) watchEvent.context()).toString();
+					if(isLoaderFile(name)) continue;
+					names.add(name);
+					if(watchEvent.context().toString().equals(IgnoreRules.FILE_NAME)) rulesChanged.add(dir.toString());
 				}
-			} catch (NoSuchAlgorithmException e1) {
-				log.severe(e1.getMessage());
-				interrupt();
-				continue;
-			} catch (IOException e1) {
-				log.severe(e1.getMessage());
-			}
-			for(FileSystemEvent pathevent : pathevents) {
-				log.info(pathevent.toString());
-				fileSystemObserver.processFileSystemEvent(pathevent);
-			}
-			
-			// check for deleted files
-			pathevents.clear();
-			synchronized(this) {
-				ArrayList<String> keys = new ArrayList<String>(watchedFiles.keySet());
-				for(String pathname : keys) {
-					File file = new File(pathname);
-					if(!file.exists()) {
-						FileDescriptor fdes = watchedFiles.get(pathname);
-						dropFile(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
+				if(!key.reset()) {
+					watchKeys.remove(dir.toString());
+				}
+				// drain whatever else is already queued so that a burst is handled in one pass
+				key = watchService.poll();
+			}
+			// and the ones that were waiting to settle, if they have had time to
+			long now = System.currentTimeMillis();
+			for(Map.Entry<String,Settling> entry : settling.entrySet()) {
+				if(entry.getValue().due()<=now) names.add(entry.getKey());
+			}
+			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+			ArrayList<FileSystemEvent> deletions=new ArrayList<FileSystemEvent>();
+			for(String name : names) {
+				try {
+					PathTable.Node node = nodeOf(name);
+					if(node==null || !node.directory) {
+						pathevents.addAll(scanDirectoryTree(name));
 					}
+					deletions.addAll(checkDeleted(name));
+				} catch (NoSuchAlgorithmException e) {
+					log.severe(e.getMessage());
+					interrupt();
+				} catch (IOException e) {
+					log.severe(e.getMessage());
+				}
+			}
+			for(String name : rulesChanged) {
+				try {
+					log.info("ignore rules changed in "+name);
+					pathevents.addAll(scanDirectoryTree(name));
+				} catch (NoSuchAlgorithmException e) {
+					log.severe(e.getMessage());
+					interrupt();
+				} catch (IOException e) {
+					log.severe(e.getMessage());
+				}
+			}
+			emitEvents(pathevents);
+			sortDeletions(deletions);
+			emitEvents(deletions);
+			if(overflow) {
+				log.warning("change notifications were lost, rescanning share directory");
+				reconcile();
+			}
+			saveIndexIfDue();
+		}
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			log.warning(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Do a full scan of the share directory, emitting events for anything created,
+	 * modified or deleted since the previous scan.
+	 * @return false if the monitor can no longer run.
+	 */
+	private boolean reconcile() {
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		// check for new/modified files
+		try {
+			pathevents.addAll(scanDirectoryTree(root));
+		} catch (NoSuchAlgorithmException e1) {
+			log.severe(e1.getMessage());
+			interrupt();
+			return false;
+		} catch (IOException e1) {
+			log.severe(e1.getMessage());
+			// anything the scan did not get to would look deleted
+			return true;
+		}
+		emitEvents(pathevents);
+		
+		// check for deleted files and directories, i.e. those the scan did not see
+		pathevents.clear();
+		final int epoch = scanEpoch;
+		settling.values().removeIf(pending -> pending.scanned!=epoch);
+		tableLock.writeLock().lock();
+		try {
+			for(PathTable.Node node : pathTable.collect(pathTable.root(),
+					node -> (node.file!=null || node.directory) && node.scanned!=epoch)) {
+				if(node.file!=null) {
+					FileDescriptor fdes = node.file;
+					dropFile(node);
+					pathevents.add(fileEvent(node,EVENT.FILE_DELETE,fdes));
+				} else {
+					dropDir(node);
+					pathevents.add(directoryEvent(node,EVENT.DIRECTORY_DELETE));
 				}
-				
-				// check for deleted directories
-				keys = new ArrayList<String>(watchedDirectories);
-				for(String pathname : keys) {
-					File file = new File(pathname);
-					if(!file.exists()) {
-						dropDir(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
+			}
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+		sortDeletions(pathevents);
+		emitEvents(pathevents);
+		return true;
+	}
+	
+	/**
+	 * Drop the given path, and everything under it if it was a directory, when it
+	 * no longer exists on disk.
+	 * @param name The full path name reported by the watch service.
+	 * @return The delete events, unsorted.
+	 */
+	private ArrayList<FileSystemEvent> checkDeleted(String name) {
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		if(new File(name).exists()) return pathevents;
+		// it never settled, so nobody was told about it
+		settling.remove(name);
+		String prefix = name+File.separator;
+		settling.keySet().removeIf(settlingName -> settlingName.startsWith(prefix));
+		PathTable.Node node = nodeOf(name);
+		if(node==null) return pathevents;
+		tableLock.writeLock().lock();
+		try {
+			if(node.file!=null) {
+				FileDescriptor fdes = node.file;
+				dropFile(node);
+				pathevents.add(fileEvent(node,EVENT.FILE_DELETE,fdes));
+			} else if(node.directory) {
+				// the watch service does not report the contents of a deleted directory
+				for(PathTable.Node child : pathTable.subtree(node)) {
+					if(child.file!=null) {
+						FileDescriptor fdes = child.file;
+						dropFile(child);
+						pathevents.add(fileEvent(child,EVENT.FILE_DELETE,fdes));
+					} else if(child.directory) {
+						dropDir(child);
+						pathevents.add(directoryEvent(child,EVENT.DIRECTORY_DELETE));
 					}
 				}
 			}
-			// sort all of the events so they make sense
-			Collections.sort(pathevents,(arg0,arg1) ->
-				{
-					return arg1.path.length()-arg0.path.length();	
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+		return pathevents;
+	}
+	
+	// sort all of the delete events so they make sense, deepest first
+	private static void sortDeletions(ArrayList<FileSystemEvent> pathevents) {
+		Collections.sort(pathevents,(arg0,arg1) ->
+			{
+				return arg1.path.length()-arg0.path.length();	
+			}
+		);
+	}
+	
+	private void emitEvents(ArrayList<FileSystemEvent> pathevents) {
+		for(FileSystemEvent pathevent : pathevents) {
+			log.info(pathevent.toString());
+			fileSystemObserver.processFileSystemEvent(pathevent);
+		}
+	}
+	
+	// events are sent later, without the table lock, so they carry a copy of the descriptor
+	// rather than the node's own, which modifyFile changes in place
+	private FileSystemEvent fileEvent(PathTable.Node node, EVENT event, FileDescriptor fileDescriptor) {
+		FileDescriptor snapshot=new FileDescriptor(fileDescriptor.lastModified,fileDescriptor.md5,fileDescriptor.fileSize);
+		return new FileSystemEvent(node.parent.path(root),node.name,event,snapshot);
+	}
+	
+	private FileSystemEvent directoryEvent(PathTable.Node node, EVENT event) {
+		return new FileSystemEvent(node.parent.path(root),node.name,event);
+	}
+	
+	/**
+	 * @param name A full path name, including the share directory, as found on disk.
+	 * @return The node for it, or null if it is not in the path table.
+	 */
+	private PathTable.Node nodeOf(String name) {
+		if(name.equals(root)) return pathTable.root();
+		tableLock.readLock().lock();
+		try {
+			return pathTable.find(name.substring(root.length()+1));
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+	
+	private PathTable.Node child(PathTable.Node node, String name) {
+		if(node==null) return null;
+		tableLock.readLock().lock();
+		try {
+			return node.child(name);
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Lock striping for the file system API. Calls on the same path name are serialized,
+	 * e.g. writing blocks to a loader and hashing it to check that it is complete, while
+	 * calls on different files, and the file system monitor, run in parallel.
+	 */
+	private ReentrantLock pathLock(String pathName) {
+		int h = pathName.hashCode();
+		return pathLocks[(h^(h>>>16)) & (PATH_LOCKS-1)];
+	}
+	
+	// the loader's node is marked so that it is kept in the path table while loading
+	// loader files and their state files never generate events
+	private boolean isLoaderFile(String name) {
+		return name.endsWith(loadingSuffix) || name.endsWith(loadingSuffix+STATE_SUFFIX)
+				|| name.endsWith(loadingSuffix+STATE_SUFFIX+STATE_TEMP_SUFFIX);
+	}
+	
+	private void addLoader(String pathName, FileLoader loader) {
+		tableLock.writeLock().lock();
+		try {
+			pathTable.getOrCreate(pathName).loading=true;
+			loadingFiles.put(pathName, loader);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+	
+	private void removeLoader(String pathName) {
+		tableLock.writeLock().lock();
+		try {
+			loadingFiles.remove(pathName);
+			PathTable.Node node=pathTable.find(pathName);
+			if(node!=null) {
+				node.loading=false;
+				pathTable.prune(node);
+			}
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * A watched file with some given content, copied out of the path table so that
+	 * it can be opened and hashed without holding the table lock.
+	 */
+	private static class SameContent {
+		final String pathName;
+		final File file;
+		final long lastModified;
+		final long fileSize;
+		SameContent(String pathName, File file, long lastModified, long fileSize) {
+			this.pathName=pathName;
+			this.file=file;
+			this.lastModified=lastModified;
+			this.fileSize=fileSize;
+		}
+	}
+	
+	/**
+	 * Keep the {@link ChunkStore} up to date with the content in the share, every chunkIndexInterval
+	 * seconds. Content is chunked once, whichever files have it, and is dropped once no file does.
+	 */
+	private void indexChunks() {
+		long interval = Long.parseLong(Configuration.getConfigurationValue("chunkIndexInterval","10"))*1000;
+		while(true) {
+			HashMap<String,SameContent> content = new HashMap<String,SameContent>();
+			tableLock.readLock().lock();
+			try {
+				for(Map.Entry<String,PathTable.Node> entry : hashMap.entrySet()) {
+					PathTable.Node node = entry.getValue();
+					if(node.file.fileSize<ChunkStore.MINIMUM_CHUNK) continue;
+					content.put(entry.getKey(), new SameContent(node.relativePath(),new File(node.path(root)),
+							node.file.lastModified,node.file.fileSize));
+				}
+			} finally {
+				tableLock.readLock().unlock();
+			}
+			Set<String> indexed = chunkStore.indexedContent();
+			for(String md5 : indexed) {
+				if(!content.containsKey(md5)) chunkStore.remove(md5);
+			}
+			for(Map.Entry<String,SameContent> entry : content.entrySet()) {
+				if(indexed.contains(entry.getKey())) continue;
+				SameContent attempt = entry.getValue();
+				// only content that is unchanged since it was hashed
+				ReadChannelCache.Entry channel = readChannels.acquire(attempt.file, attempt.fileSize, attempt.lastModified);
+				if(channel==null) continue;
+				try {
+					chunkStore.add(entry.getKey(), ChunkStore.chunk(channel.channel));
+				} catch (IOException | NoSuchAlgorithmException e) {
+					log.warning("could not chunk "+attempt.pathName+": "+e.getMessage());
+				} finally {
+					readChannels.release(channel);
 				}
-			);
-			
-			for(FileSystemEvent pathevent : pathevents) {
-				log.info(pathevent.toString());
-				fileSystemObserver.processFileSystemEvent(pathevent);
 			}
-			
 			try {
-				Thread.sleep(1000);
+				Thread.sleep(interval);
 			} catch (InterruptedException e) {
-				log.warning(e.getMessage());
+				return;
 			}
-			
 		}
-		
 	}
 	
-	private String hashFile(File file,String name,long lastModified) throws NoSuchAlgorithmException, IOException {
-		log.info("hashing file "+name);
-		if(lastModified!=0 && lastModified==file.lastModified()) {
-			return watchedFiles.get(name).md5;
+	private ArrayList<SameContent> filesWithHash(String md5) {
+		ArrayList<SameContent> files = new ArrayList<SameContent>();
+		tableLock.readLock().lock();
+		try {
+			for(PathTable.Node node=hashMap.get(md5); node!=null; node=node.nextSameHash) {
+				files.add(new SameContent(node.relativePath(),new File(node.path(root)),node.file.lastModified,node.file.fileSize));
+			}
+		} finally {
+			tableLock.readLock().unlock();
+		}
+		return files;
+	}
+	
+	private void saveIndexIfDue() {
+		if(indexDirty && System.currentTimeMillis()-lastIndexSave>=indexSaveInterval) {
+			saveIndex();
+		}
+	}
+	
+	/**
+	 * Write the current view of the share directory to the index file. The
+	 * entries are copied under the lock and written without it.
+	 */
+	private void saveIndex() {
+		if(fileIndex==null) return;
+		ArrayList<FileIndex.Entry> entries;
+		tableLock.readLock().lock();
+		try {
+			entries = new ArrayList<FileIndex.Entry>();
+			for(PathTable.Node node : pathTable.subtree(pathTable.root())) {
+				FileDescriptor fdes = node.file;
+				if(fdes==null) continue;
+				entries.add(new FileIndex.Entry(node.relativePath(),
+						fdes.fileSize,fdes.lastModified,fdes.md5));
+			}
+			indexDirty=false;
+			lastIndexSave=System.currentTimeMillis();
+		} finally {
+			tableLock.readLock().unlock();
+		}
+		try {
+			// the shutdown hook may save at the same time as the monitor thread
+			synchronized(fileIndex) {
+				fileIndex.save(entries);
+			}
+			log.info("saved "+entries.size()+" index entries");
+		} catch (IOException e) {
+			log.warning("could not save index: "+e.getMessage());
+			indexDirty=true;
 		}
-		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-		String checksum = getFileChecksum(md5Digest, file);
-		return checksum;
 	}
 	
-	private String hashFile(File file,String name,long lastModified, RandomAccessFile raf) throws NoSuchAlgorithmException, IOException {
-		log.info("hashing file "+name);
+	private void watchDirectory(String name) throws IOException {
+		Path path = Paths.get(name);
+		WatchKey key = path.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		watchKeys.put(path.toString(), key);
+	}
+	
+	private String hashFile(File file,String md5,long lastModified) throws NoSuchAlgorithmException, IOException {
+		log.info("hashing file "+file);
 		if(lastModified!=0 && lastModified==file.lastModified()) {
-			return watchedFiles.get(name).md5;
+			return md5;
 		}
-		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-		String checksum = getFileChecksum(md5Digest, raf);
-		return checksum;
+		return contentHash.hash(file);
 	}
 	
+	/**
+	 * Scan the given file or directory tree, updating the watched files and directories
+	 * and returning the events in the same order as a depth first walk would produce them.
+	 * The walk and the hashing of files is done in parallel on {@link #scanPool} without
+	 * holding the table lock, and the results are then applied to the path table on the
+	 * calling thread. Only this thread changes the watched files and directories.
+	 */
 	private ArrayList<FileSystemEvent> scanDirectoryTree(String name) throws IOException, NoSuchAlgorithmException {
 		ArrayList<FileSystemEvent> pathEvents = new ArrayList<FileSystemEvent>();
-		if(name.endsWith(loadingSuffix)) return pathEvents;
-		File file = new File(name);
-		if(file.isFile()) {
-			long lastModified = file.lastModified();
-			long fileSize = file.length();
-			if(watchedFiles.containsKey(name)) {
-				if(lastModified!=watchedFiles.get(name).lastModified) {
-					String newHash = hashFile(file,name,0);
-					modifyFile(name,newHash,lastModified,fileSize);
-					FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,watchedFiles.get(name));
-					pathEvents.add(pe);
-				} else {
-					// do nothing
+		if(isLoaderFile(name)) return pathEvents;
+		ScanStatistics stats = new ScanStatistics();
+		final int epoch = ++scanEpoch;
+		ArrayList<ScanChange> changes;
+		try {
+			IgnoreRules rules = name.equals(root) ? IgnoreRules.NONE : rulesFor(parentName(relativeName(name)));
+			changes = scanPool.invoke(new ScanTask(name,nodeOf(name),stats,epoch,rules));
+		} catch (RuntimeException e) {
+			// fork join rethrows a copy of the exception, so look through the causes for the original
+			for(Throwable cause=e; cause!=null; cause=cause.getCause()) {
+				if(cause instanceof IOException) throw (IOException) cause;
+				if(cause instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) cause;
+				if(cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+			}
+			throw e;
+		}
+		tableLock.writeLock().lock();
+		try {
+			// consecutive changes are mostly in the same directory
+			String parentName = null;
+			PathTable.Node parent = null;
+			for(ScanChange change : changes) {
+				if(change.excluded) {
+					PathTable.Node node = pathTable.find(relativeName(change.name));
+					if(node!=null) forget(node);
+					continue;
+				}
+				if(change.settling) {
+					Settling pending = settling.get(change.name);
+					if(pending==null || pending.lastModified!=change.lastModified || pending.fileSize!=change.fileSize) {
+						if(pending==null) log.info("waiting for "+change.name+" to settle");
+						pending = new Settling(change.lastModified,change.fileSize,System.currentTimeMillis());
+						settling.put(change.name, pending);
+					}
+					pending.scanned = epoch;
+					continue;
+				}
+				settling.remove(change.name);
+				if(change.event==null) continue;
+				File file = change.file;
+				if(!file.getParent().equals(parentName)) {
+					parentName = file.getParent();
+					parent = pathTable.getOrCreate(parentName.equals(root) ? "" : parentName.substring(root.length()+1));
+				}
+				PathTable.Node node = pathTable.getOrCreate(parent,file.getName());
+				node.scanned = epoch;
+				switch(change.event) {
+				case DIRECTORY_CREATE:
+					addDir(node,change.name);
+					pathEvents.add(directoryEvent(node,EVENT.DIRECTORY_CREATE));
+					break;
+				case FILE_MODIFY:
+					modifyFile(node,change.md5,change.lastModified,change.fileSize);
+					pathEvents.add(fileEvent(node,EVENT.FILE_MODIFY,node.file));
+					break;
+				case FILE_CREATE:
+					addFile(node,new FileDescriptor(change.lastModified,change.md5,change.fileSize));
+					pathEvents.add(fileEvent(node,EVENT.FILE_CREATE,node.file));
+					break;
+				default:
+					break;
 				}
-			} else {
-				String newHash = hashFile(file,name,0);
-				addFile(name,new FileDescriptor(lastModified,newHash,fileSize));
-				FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(name));
-				pathEvents.add(pe);
-			}
-		} else if(file.isDirectory()) {
-			Path path = Paths.get(name);
-			if(watchedDirectories.contains(name) || name.equals(root)) {
-				// do nothing
-			} else {
-				addDir(name);
-				pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
 			}
-			DirectoryStream<Path> stream = Files.newDirectoryStream(path);
-		    for (Path subpath: stream) {
-		    	pathEvents.addAll(scanDirectoryTree(subpath.toString()));
-		    }
-		    stream.close();
+		} finally {
+			tableLock.writeLock().unlock();
 		}
+		if(name.equals(root)) stats.report();
 		return pathEvents;
 	}
 	
-	private void removeHash(String name) {
-		HashSet<String> hs = hashMap.get(watchedFiles.get(name).md5);
-		hs.remove(name);
-		if(hs.size()==0) hs.remove(watchedFiles.get(name).md5);
+	/**
+	 * A change found by a scan, not yet applied to the watched files and directories.
+	 */
+	private static class ScanChange {
+		final String name;
+		final File file;
+		// null if the file was waiting to settle but is back the way it was last reported
+		final EVENT event;
+		long lastModified;
+		long fileSize;
+		String md5;
+		// the file is still being written to, so it has not been hashed and no event is due yet
+		boolean settling;
+		// the path is excluded by the ignore rules and should be forgotten without an event
+		boolean excluded;
+		ScanChange(String name, File file, EVENT event) {
+			this.name=name;
+			this.file=file;
+			this.event=event;
+		}
+	}
+	
+	/**
+	 * A created or modified file that has not been reported yet, because it has been
+	 * written to too recently. Files are held back until their size and timestamp stay the
+	 * same for {@link #writeSettleTime}, so that a file that is written over several seconds
+	 * is hashed and reported once, with the net change: a file that is created and then
+	 * modified is one create, and one that is created and then deleted is never reported.
+	 */
+	private class Settling {
+		final long lastModified;
+		final long fileSize;
+		// when this size and timestamp were first seen
+		final long since;
+		int scanned;
+		Settling(long lastModified, long fileSize, long since) {
+			this.lastModified=lastModified;
+			this.fileSize=fileSize;
+			this.since=since;
+		}
+		// a timestamp in the future counts from when it was first seen
+		long due() {
+			return Math.min(since,lastModified)+writeSettleTime;
+		}
+	}
+	
+	/**
+	 * @return The time the next file waiting to settle is due, or 0 if there are none.
+	 */
+	private long nextSettled() {
+		long next = 0;
+		for(Settling pending : settling.values()) {
+			if(next==0 || pending.due()<next) next = pending.due();
+		}
+		return next;
+	}
+	
+	/**
+	 * @return True if the file has not been written to for long enough to be reported.
+	 */
+	private boolean settled(String name, long lastModified, long fileSize) {
+		if(writeSettleTime<=0) return true;
+		long now = System.currentTimeMillis();
+		if(now-lastModified>=writeSettleTime) return true;
+		Settling pending = settling.get(name);
+		return pending!=null && pending.lastModified==lastModified && pending.fileSize==fileSize &&
+				now-pending.since>=writeSettleTime;
+	}
+	
+	/**
+	 * Counters shared by the tasks of a single scan, to report scan throughput.
+	 */
+	private static class ScanStatistics {
+		final long start = System.nanoTime();
+		final AtomicLong files = new AtomicLong();
+		final AtomicLong hashedFiles = new AtomicLong();
+		final AtomicLong hashedBytes = new AtomicLong();
+		void report() {
+			double seconds = Math.max(System.nanoTime()-start,1)/1e9;
+			double megabytes = hashedBytes.get()/(1024.0*1024.0);
+			log.info(String.format("scanned %d files, hashed %d files (%.1f MB) in %.3f s: %.0f files/s, %.1f MB/s",
+					files.get(),hashedFiles.get(),megabytes,seconds,files.get()/seconds,megabytes/seconds));
+		}
+	}
+	
+	/**
+	 * Walks a directory, forking a task for each subdirectory and for each batch of files, so that
+	 * idle workers steal whole subtrees. Only reads the path table, taking the table lock
+	 * for each lookup; the changes found are returned in walk order.
+	 */
+	private class ScanTask extends RecursiveTask<ArrayList<ScanChange>> {
+		private static final long serialVersionUID = 1L;
+		private static final int BATCH = 32;
+		private final String name;
+		// the node for name, or for the directory holding the batch; null if not in the path table yet
+		private final PathTable.Node node;
+		// files and their attributes, read once when the directory was listed
+		private final ArrayList<Path> batch;
+		private final ArrayList<BasicFileAttributes> batchAttributes;
+		private final ScanStatistics stats;
+		private final int epoch;
+		// the rules of the directory holding name, batches are already filtered
+		private final IgnoreRules rules;
+		
+		ScanTask(String name, PathTable.Node node, ScanStatistics stats, int epoch, IgnoreRules rules) {
+			this.name=name;
+			this.node=node;
+			this.batch=null;
+			this.batchAttributes=null;
+			this.stats=stats;
+			this.epoch=epoch;
+			this.rules=rules;
+		}
+		
+		ScanTask(ArrayList<Path> batch, ArrayList<BasicFileAttributes> batchAttributes, PathTable.Node directory,
+				ScanStatistics stats, int epoch) {
+			this.name=null;
+			this.node=directory;
+			this.batch=batch;
+			this.batchAttributes=batchAttributes;
+			this.stats=stats;
+			this.epoch=epoch;
+			this.rules=null;
+		}
+		
+		@Override
+		protected ArrayList<ScanChange> compute() {
+			try {
+				ArrayList<ScanChange> changes = new ArrayList<ScanChange>();
+				if(batch!=null) {
+					for(int i=0;i<batch.size();i++) {
+						Path path = batch.get(i);
+						String fileName = path.getFileName().toString();
+						checkFile(path.toString(),batchAttributes.get(i),child(node,fileName),changes);
+					}
+					return changes;
+				}
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(Paths.get(name), BasicFileAttributes.class);
+				} catch (NoSuchFileException e) {
+					return changes;
+				}
+				if(!name.equals(root) && rules.isExcluded(relativeName(name),attributes.isDirectory())) {
+					if(node!=null) changes.add(excluded(name));
+					return changes;
+				}
+				if(attributes.isRegularFile()) {
+					checkFile(name,attributes,node,changes);
+				} else if(attributes.isDirectory()) {
+					scanDirectory(new File(name),changes);
+				}
+				return changes;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private void scanDirectory(File file, ArrayList<ScanChange> changes) throws IOException {
+			if(node!=null) node.scanned = epoch;
+			if((node==null || !node.directory) && !name.equals(root)) {
+				// watch before listing so that nothing created in between is missed
+				if(watchService!=null) watchDirectory(name);
+				changes.add(new ScanChange(name,file,EVENT.DIRECTORY_CREATE));
+			}
+			String relativeName = relativeName(name);
+			IgnoreRules directoryRules = IgnoreRules.load(rules,file,relativeName);
+			ignoreRules.put(relativeName, directoryRules);
+			ArrayList<ScanTask> subtasks = new ArrayList<ScanTask>();
+			ArrayList<Path> files = new ArrayList<Path>();
+			ArrayList<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+			DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(name));
+			try {
+				for (Path subpath: stream) {
+					String subname = subpath.toString();
+					if(isLoaderFile(subname)) continue;
+					// the one stat for this entry in this scan
+					BasicFileAttributes subattributes;
+					try {
+						subattributes = Files.readAttributes(subpath, BasicFileAttributes.class);
+					} catch (NoSuchFileException e) {
+						continue;
+					}
+					if(directoryRules.isExcluded(subname.substring(root.length()+1),subattributes.isDirectory())) {
+						// never opened, and forgotten if it was synced before the rule was added
+						if(child(node,subpath.getFileName().toString())!=null) changes.add(excluded(subname));
+						continue;
+					}
+					if(subattributes.isDirectory()) {
+						if(!files.isEmpty()) {
+							subtasks.add(new ScanTask(files,attributes,node,stats,epoch));
+							files = new ArrayList<Path>();
+							attributes = new ArrayList<BasicFileAttributes>();
+						}
+						PathTable.Node child = child(node,subpath.getFileName().toString());
+						subtasks.add(new ScanTask(subname,child,stats,epoch,directoryRules));
+					} else {
+						files.add(subpath);
+						attributes.add(subattributes);
+						if(files.size()==BATCH) {
+							subtasks.add(new ScanTask(files,attributes,node,stats,epoch));
+							files = new ArrayList<Path>();
+							attributes = new ArrayList<BasicFileAttributes>();
+						}
+					}
+				}
+			} finally {
+				stream.close();
+			}
+			if(!files.isEmpty()) subtasks.add(new ScanTask(files,attributes,node,stats,epoch));
+			for(ScanTask subtask : subtasks) subtask.fork();
+			for(ScanTask subtask : subtasks) changes.addAll(subtask.join());
+		}
+		
+		private void checkFile(String name, BasicFileAttributes attributes, PathTable.Node existing,
+				ArrayList<ScanChange> changes) throws IOException, NoSuchAlgorithmException {
+			if(!attributes.isRegularFile()) return;
+			if(existing!=null) existing.scanned = epoch;
+			File file = new File(name);
+			stats.files.incrementAndGet();
+			long lastModified = attributes.lastModifiedTime().toMillis();
+			long fileSize = attributes.size();
+			ScanChange change;
+			if(existing!=null && existing.file!=null && lastModified==existing.file.lastModified) {
+				// back to what was last reported, so there is nothing left to wait for
+				if(settling.containsKey(name)) changes.add(new ScanChange(name,file,null));
+				return;
+			}
+			if(!settled(name,lastModified,fileSize)) {
+				change = new ScanChange(name,file,existing!=null && existing.file!=null ? EVENT.FILE_MODIFY : EVENT.FILE_CREATE);
+				change.settling = true;
+			} else if(existing!=null && existing.file!=null) {
+				change = new ScanChange(name,file,EVENT.FILE_MODIFY);
+				change.md5 = hash(file,fileSize);
+			} else {
+				change = new ScanChange(name,file,EVENT.FILE_CREATE);
+				change.md5 = indexedHash(name,lastModified,fileSize);
+				if(change.md5==null) change.md5 = hash(file,fileSize);
+			}
+			change.lastModified=lastModified;
+			change.fileSize=fileSize;
+			changes.add(change);
+		}
+		
+		private String hash(File file, long fileSize) throws IOException {
+			stats.hashedFiles.incrementAndGet();
+			stats.hashedBytes.addAndGet(fileSize);
+			log.info("hashing file "+file);
+			return contentHash.hash(file);
+		}
+	}
+	
+	// the hash saved by a previous run, if the file has not changed since
+	private String indexedHash(String name, long lastModified, long fileSize) {
+		if(previousIndex==null) return null;
+		FileIndex.Entry entry = previousIndex.get(name.substring(root.length()+1));
+		if(entry!=null && entry.lastModified==lastModified && entry.fileSize==fileSize) {
+			return entry.md5;
+		}
+		return null;
+	}
+	
+	private void removeHash(PathTable.Node node) {
+		String md5 = node.file.md5;
+		PathTable.Node head = hashMap.get(md5);
+		if(head==node) {
+			if(node.nextSameHash==null) hashMap.remove(md5);
+			else hashMap.put(md5, node.nextSameHash);
+		} else {
+			for(PathTable.Node prev=head; prev!=null; prev=prev.nextSameHash) {
+				if(prev.nextSameHash==node) {
+					prev.nextSameHash=node.nextSameHash;
+					break;
+				}
+			}
+		}
+		node.nextSameHash=null;
+	}
+	
+	private void addHash(String md5, PathTable.Node node) {
+		node.nextSameHash=hashMap.get(md5);
+		hashMap.put(md5, node);
+	}
+	
+	private void modifyFile(PathTable.Node node, String md5, long lastModified, long fileSize) {
+		log.info("modified file "+node.relativePath());
+		indexDirty=true;
+		removeHash(node);
+		node.file.md5=md5;
+		node.file.lastModified=lastModified;
+		node.file.fileSize=fileSize;
+		addHash(md5,node);
+	}
+	
+	private void dropFile(PathTable.Node node) {
+		log.info("dropping file "+node.relativePath());
+		indexDirty=true;
+		removeHash(node);
+		node.file=null;
+		pathTable.prune(node);
+	}
+	
+	private void addFile(PathTable.Node node, FileDescriptor fileDescriptor) {
+		log.info("adding file "+node.relativePath());
+		indexDirty=true;
+		node.file=fileDescriptor;
+		addHash(fileDescriptor.md5,node);
+	}
+	
+	private void dropDir(PathTable.Node node) {
+		log.info("dropping directory "+node.relativePath());
+		node.directory=false;
+		ignoreRules.remove(node.relativePath());
+		if(watchService!=null) {
+			WatchKey key = watchKeys.remove(node.path(root));
+			if(key!=null) key.cancel();
+		}
+		pathTable.prune(node);
 	}
 	
-	private void addHash(String md5, String name) {
-		if(!hashMap.containsKey(md5)) {
-			hashMap.put(md5, new HashSet<String>());
+	/**
+	 * Drop a newly excluded file or directory tree without emitting any events, so that
+	 * it stops being synced but is left alone on the other peers.
+	 */
+	private void forget(PathTable.Node node) {
+		ArrayList<PathTable.Node> nodes = pathTable.subtree(node);
+		Collections.reverse(nodes);
+		for(PathTable.Node forgotten : nodes) {
+			if(forgotten.file!=null) dropFile(forgotten);
+			else if(forgotten.directory) dropDir(forgotten);
 		}
-		hashMap.get(md5).add(name);
+		String name = node.path(root);
+		String prefix = name+File.separator;
+		settling.remove(name);
+		settling.keySet().removeIf(settlingName -> settlingName.startsWith(prefix));
 	}
 	
-	private void modifyFile(String name, String md5, long lastModified, long fileSize) {
-		log.info("modified file "+name);
-		removeHash(name);
-		watchedFiles.get(name).md5=md5;
-		watchedFiles.get(name).lastModified=lastModified;
-		watchedFiles.get(name).fileSize=fileSize;
-		addHash(md5,name);
+	private static ScanChange excluded(String name) {
+		ScanChange change = new ScanChange(name,new File(name),null);
+		change.excluded = true;
+		return change;
 	}
 	
-	private void dropFile(String name) {
-		log.info("dropping file "+name);
-		removeHash(name);
-		watchedFiles.remove(name);
+	/**
+	 * @param relativeName A directory path name relative to the share directory, empty for the share directory.
+	 * @return The ignore rules that apply in the directory.
+	 */
+	private IgnoreRules rulesFor(String relativeName) {
+		IgnoreRules rules = ignoreRules.get(relativeName);
+		if(rules!=null) return rules;
+		IgnoreRules parent = relativeName.isEmpty() ? IgnoreRules.NONE : rulesFor(parentName(relativeName));
+		File directory = new File(relativeName.isEmpty() ? root : root+File.separator+relativeName);
+		rules = IgnoreRules.load(parent, directory, relativeName);
+		// only remember directories that exist, a peer can ask about anything
+		if(directory.isDirectory()) ignoreRules.put(relativeName, rules);
+		return rules;
 	}
 	
-	private void addFile(String name, FileDescriptor fileDescriptor) {
-		log.info("adding file "+name);
-		addHash(fileDescriptor.md5,name);
-		watchedFiles.put(name,fileDescriptor);
+	private String relativeName(String name) {
+		return name.equals(root) ? "" : name.substring(root.length()+1);
 	}
 	
-	private void dropDir(String name) {
-		log.info("dropping directory "+name);
-		watchedDirectories.remove(name);
+	private static String parentName(String relativeName) {
+		int separator = relativeName.lastIndexOf(File.separatorChar);
+		return separator<0 ? "" : relativeName.substring(0,separator);
 	}
 	
-	private void addDir(String name) {
+	private void addDir(PathTable.Node node, String name) throws IOException {
 		log.info("adding new directory "+name);
-		watchedDirectories.add(name);
-	}
-	
-	private static String getFileChecksum(MessageDigest digest, RandomAccessFile fis) throws IOException
-	{
-	    byte[] byteArray = new byte[1024];
-	    int bytesCount = 0;
-	    fis.seek(0);
-	    while ((bytesCount = fis.read(byteArray)) != -1) {
-	        digest.update(byteArray, 0, bytesCount);
-	    };
-	    byte[] bytes = digest.digest();
-	    StringBuilder sb = new StringBuilder();
-	    for(int i=0; i< bytes.length ;i++)
-	    {
-	        sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-	    }
-	   return sb.toString();
-	}
-	
-	private static String getFileChecksum(MessageDigest digest, File file) throws IOException
-	{
-		FileInputStream fis = new FileInputStream(file);
-	    byte[] byteArray = new byte[1024];
-	    int bytesCount = 0;
-	    while ((bytesCount = fis.read(byteArray)) != -1) {
-	        digest.update(byteArray, 0, bytesCount);
-	    };
-	    fis.close();
-	    byte[] bytes = digest.digest();
-	    StringBuilder sb = new StringBuilder();
-	    for(int i=0; i< bytes.length ;i++)
-	    {
-	        sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-	    }
-	   return sb.toString();
+		node.directory=true;
+		if(watchService!=null && !watchKeys.containsKey(name)) watchDirectory(name);
 	}
 	
 	private static String separatorsToSystem(String res) {
@@ -938,4 +2147,4 @@ public class FileSystemManager extends Thread {
 	        return res.replace('\\', File.separatorChar);
 	    }
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+package unimelb.bitbox.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Starts the handlers that spend most of their life blocked: one per peer connection,
+ * one per UDP message waiting to be retried and one per client session. With threadMode
+ * set to virtual they run on virtual threads, which cost a few hundred bytes of heap while
+ * blocked rather than a platform thread and its stack, so tens of thousands of them can
+ * wait at once. Virtual threads need Java 21, on older JVMs, or with threadMode platform
+ * (the default), every handler gets a platform thread as before.
+ * <br/>
+ * The JVM is looked up at run time so that the peer still builds and runs on Java 8.
+ */
+public class Handlers {
+	private static Logger log = Logger.getLogger(Handlers.class.getName());
+
+	private static final AtomicInteger count = new AtomicInteger();
+	private static final ThreadFactory virtual = virtualThreads(Configuration.getConfigurationValue("threadMode", "platform"));
+
+	/**
+	 * Run a handler on a thread of its own.
+	 * @param name What the thread is called, followed by a number.
+	 * @return The thread, already started.
+	 */
+	public static Thread start(String name, Runnable handler) {
+		Thread thread;
+		if(virtual!=null) {
+			thread = virtual.newThread(handler);
+			thread.setName(name+" "+count.incrementAndGet());
+		} else {
+			thread = new Thread(handler, name+" "+count.incrementAndGet());
+		}
+		thread.start();
+		return thread;
+	}
+
+	// Thread.ofVirtual().factory() if asked for and there is one
+	private static ThreadFactory virtualThreads(String mode) {
+		if(!mode.equals("virtual")) return null;
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = ofVirtual.getReturnType().getMethod("factory");
+			ThreadFactory threads = (ThreadFactory) factory.invoke(builder);
+			log.info("handlers run on virtual threads");
+			return threads;
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			// including Java 19 and 20, where ofVirtual throws unless previews are enabled
+			log.warning("virtual threads need Java 21, handlers run on platform threads");
+			return null;
+		}
+	}
+
+	private Handlers() {
+	}
+}
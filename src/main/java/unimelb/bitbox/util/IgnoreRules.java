@@ -0,0 +1,203 @@
+package unimelb.bitbox.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Exclusion rules read from {@link #FILE_NAME} files in the share directory, using the
+ * same patterns as a .gitignore file:
+ * <li>Blank lines and lines starting with # are ignored.</li>
+ * <li>A pattern without a slash matches a file or directory name at any depth below the
+ * directory holding the rules file, a pattern with a slash matches a path relative to it.</li>
+ * <li>* and ? match within a name, ** matches any number of directories and [...] is a character class.</li>
+ * <li>A trailing slash only matches directories.</li>
+ * <li>A leading ! includes again what an earlier pattern excluded.</li>
+ * The last matching pattern wins, and the rules of a directory override those of its
+ * parents. Everything below an excluded directory is excluded.
+ * <br/>
+ * Patterns are compiled when the file is read. Patterns without wildcards are compared as
+ * strings and patterns like *.log as suffixes, so most patterns never touch a regular expression.
+ */
+public class IgnoreRules {
+	private static Logger log = Logger.getLogger(IgnoreRules.class.getName());
+
+	public static final String FILE_NAME = ".bitboxignore";
+
+	/**
+	 * No rules at all, the rules of a share directory without any rules files.
+	 */
+	public static final IgnoreRules NONE = new IgnoreRules(null, "", new Rule[0]);
+
+	private final IgnoreRules parent;
+	// the directory holding the rules file, relative to the share directory, separated by '/'
+	private final String base;
+	private final Rule[] rules;
+
+	private IgnoreRules(IgnoreRules parent, String base, Rule[] rules) {
+		this.parent=parent;
+		this.base=base;
+		this.rules=rules;
+	}
+
+	/**
+	 * Read the rules for a directory.
+	 * @param parent The rules of the parent directory, {@link #NONE} for the share directory.
+	 * @param directory The directory.
+	 * @param relativeName The directory's path name relative to the share directory, empty for the share directory.
+	 * @return The rules that apply in the directory, which are the parent's if it has no rules file.
+	 */
+	public static IgnoreRules load(IgnoreRules parent, File directory, String relativeName) {
+		File file = new File(directory, FILE_NAME);
+		if(!file.isFile()) return parent;
+		ArrayList<Rule> rules = new ArrayList<Rule>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while((line = reader.readLine())!=null) {
+				Rule rule = Rule.parse(line);
+				if(rule!=null) rules.add(rule);
+			}
+		} catch (IOException e) {
+			log.warning("could not read "+file+": "+e.getMessage());
+			return parent;
+		}
+		if(rules.isEmpty()) return parent;
+		return new IgnoreRules(parent, toSlashes(relativeName), rules.toArray(new Rule[rules.size()]));
+	}
+
+	/**
+	 * @param relativeName A path name relative to the share directory, below the directory these rules were loaded for.
+	 * @param directory True if the path name is a directory.
+	 * @return True if the path name itself is excluded, its parent directories are not checked.
+	 */
+	public boolean isExcluded(String relativeName, boolean directory) {
+		String path = toSlashes(relativeName);
+		String name = path.substring(path.lastIndexOf('/')+1);
+		for(IgnoreRules level=this; level.parent!=null; level=level.parent) {
+			String relative = level.base.isEmpty() ? path : path.substring(level.base.length()+1);
+			for(int i=level.rules.length-1; i>=0; i--) {
+				Rule rule = level.rules[i];
+				if(rule.matches(relative, name, directory)) return !rule.negated;
+			}
+		}
+		return false;
+	}
+
+	private static String toSlashes(String name) {
+		return File.separatorChar=='/' ? name : name.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * A single compiled pattern.
+	 */
+	private static class Rule {
+		boolean negated;
+		boolean directoryOnly;
+		// matched against the path relative to the rules file rather than just the name
+		boolean anchored;
+		// exactly one of these is set
+		String literal;
+		String suffix;
+		Pattern pattern;
+
+		static Rule parse(String line) {
+			String text = line;
+			// trailing spaces are not significant unless escaped
+			int end = text.length();
+			while(end>0 && text.charAt(end-1)==' ' && (end<2 || text.charAt(end-2)!='\\')) end--;
+			text = text.substring(0, end);
+			if(text.isEmpty() || text.startsWith("#")) return null;
+			Rule rule = new Rule();
+			if(text.startsWith("!")) {
+				rule.negated = true;
+				text = text.substring(1);
+			} else if(text.startsWith("\\!") || text.startsWith("\\#")) {
+				text = text.substring(1);
+			}
+			if(text.endsWith("/")) {
+				rule.directoryOnly = true;
+				text = text.substring(0, text.length()-1);
+			}
+			if(text.startsWith("**/") && text.indexOf('/', 3)<0) {
+				// the same as no directory part at all
+				text = text.substring(3);
+			}
+			if(text.startsWith("/")) {
+				rule.anchored = true;
+				text = text.substring(1);
+			} else if(text.indexOf('/')>=0) {
+				rule.anchored = true;
+			}
+			if(text.isEmpty()) return null;
+			if(!hasWildcards(text)) {
+				rule.literal = text;
+			} else if(text.charAt(0)=='*' && !rule.anchored && !hasWildcards(text.substring(1))) {
+				rule.suffix = text.substring(1);
+			} else {
+				rule.pattern = Pattern.compile(toRegex(text));
+			}
+			return rule;
+		}
+
+		boolean matches(String relative, String name, boolean directory) {
+			if(directoryOnly && !directory) return false;
+			String subject = anchored ? relative : name;
+			if(literal!=null) return subject.equals(literal);
+			if(suffix!=null) return subject.endsWith(suffix);
+			return pattern.matcher(subject).matches();
+		}
+
+		private static boolean hasWildcards(String text) {
+			for(int i=0; i<text.length(); i++) {
+				char c = text.charAt(i);
+				if(c=='*' || c=='?' || c=='[' || c=='\\') return true;
+			}
+			return false;
+		}
+
+		private static String toRegex(String glob) {
+			StringBuilder regex = new StringBuilder();
+			int i = 0;
+			while(i<glob.length()) {
+				char c = glob.charAt(i);
+				if(glob.startsWith("**/", i)) {
+					regex.append("(?:.*/)?");
+					i += 3;
+				} else if(glob.startsWith("**", i)) {
+					regex.append(".*");
+					i += 2;
+				} else if(c=='*') {
+					regex.append("[^/]*");
+					i++;
+				} else if(c=='?') {
+					regex.append("[^/]");
+					i++;
+				} else if(c=='[' && glob.indexOf(']', i+2)>0) {
+					int close = glob.indexOf(']', i+2);
+					String set = glob.substring(i+1, close);
+					regex.append('[');
+					if(set.startsWith("!")) {
+						regex.append('^');
+						set = set.substring(1);
+					}
+					regex.append(set.replace("\\", "\\\\").replace("[", "\\["));
+					regex.append(']');
+					i = close+1;
+				} else if(c=='\\' && i+1<glob.length()) {
+					regex.append(Pattern.quote(String.valueOf(glob.charAt(i+1))));
+					i += 2;
+				} else {
+					regex.append(Pattern.quote(String.valueOf(c)));
+					i++;
+				}
+			}
+			return regex.toString();
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+/**
+ * Writes protocol messages as newline terminated JSON into a buffer kept for one connection,
+ * and the buffer to the connection, so that a message is not first built as maps of its
+ * fields and then turned into a String, and then into bytes by a writer made for the purpose.
+ * The requests for file system events are written from the event itself, other messages
+ * from their {@link Document} or, for those that are only at hand as JSON, their String.
+ * <br/>
+ * An encoder is not thread safe, the caller must keep other writers off it and off the
+ * connection from the first message until {@link #writeTo(WritableByteChannel)} returns.
+ */
+public class MessageEncoder {
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LONG_MIN = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+	private byte[] bytes = new byte[8192];
+	private int count;
+
+	/**
+	 * Add the request a file system event is sent to peers as.
+	 */
+	public MessageEncoder event(FileSystemEvent event) {
+		raw("{\"command\":\"");
+		raw(event.event.name());
+		raw("_REQUEST\"");
+		if(event.fileDescriptor!=null) {
+			raw(",\"fileDescriptor\":{\"md5\":");
+			string(event.fileDescriptor.md5);
+			raw(",\"lastModified\":");
+			number(event.fileDescriptor.lastModified);
+			raw(",\"fileSize\":");
+			number(event.fileDescriptor.fileSize);
+			put((byte) '}');
+		}
+		raw(",\"pathName\":");
+		string(event.pathName);
+		raw("}\n");
+		return this;
+	}
+
+	/**
+	 * Add a message.
+	 */
+	public MessageEncoder document(Document message) {
+		value(message.obj);
+		put((byte) '\n');
+		return this;
+	}
+
+	/**
+	 * Add a message that is already JSON, without its newline.
+	 */
+	public MessageEncoder message(String json) {
+		utf8(json, false);
+		put((byte) '\n');
+		return this;
+	}
+
+	/**
+	 * Add bytes as they are, such as the start of a binary frame.
+	 * @param raw From its position to its limit, which are left as they are.
+	 */
+	public MessageEncoder bytes(ByteBuffer raw) {
+		int length = raw.remaining();
+		ensure(length);
+		raw.duplicate().get(bytes, count, length);
+		count += length;
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes added since the encoder was last written.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Write what was added to a channel and start again.
+	 * @param out The channel, in blocking mode.
+	 */
+	public void writeTo(WritableByteChannel out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+		count = 0;
+		while(buffer.hasRemaining()) out.write(buffer);
+	}
+
+	/**
+	 * Copy what was added to a buffer, which must have room for {@link #size()} bytes, and start again.
+	 */
+	public void writeTo(ByteBuffer out) {
+		out.put(bytes, 0, count);
+		count = 0;
+	}
+
+	/**
+	 * Write what was added to a stream and start again.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		int length = count;
+		count = 0;
+		out.write(bytes, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * @return The request for an event as a String, for transports that need one per message.
+	 */
+	public static String toJson(FileSystemEvent event) {
+		MessageEncoder encoder = new MessageEncoder();
+		encoder.event(event);
+		return new String(encoder.bytes, 0, encoder.count-1, StandardCharsets.UTF_8);
+	}
+
+	private void value(Object value) {
+		if(value instanceof String) {
+			string((String) value);
+		} else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			number(((Number) value).longValue());
+		} else if(value instanceof Boolean) {
+			raw((Boolean) value ? TRUE : FALSE);
+		} else if(value instanceof Document) {
+			value(((Document) value).obj);
+		} else if(value instanceof Map) {
+			put((byte) '{');
+			boolean first = true;
+			for(Map.Entry<?,?> entry : ((Map<?,?>) value).entrySet()) {
+				if(!first) put((byte) ',');
+				first = false;
+				string(String.valueOf(entry.getKey()));
+				put((byte) ':');
+				value(entry.getValue());
+			}
+			put((byte) '}');
+		} else if(value instanceof List) {
+			put((byte) '[');
+			boolean first = true;
+			for(Object element : (List<?>) value) {
+				if(!first) put((byte) ',');
+				first = false;
+				value(element);
+			}
+			put((byte) ']');
+		} else if(value==null) {
+			raw(NULL);
+		} else {
+			// doubles and anything else as json-simple would write them
+			utf8(value.toString(), false);
+		}
+	}
+
+	private void string(String value) {
+		if(value==null) {
+			raw(NULL);
+			return;
+		}
+		put((byte) '"');
+		utf8(value, true);
+		put((byte) '"');
+	}
+
+	// a string as UTF-8, escaped for inside JSON quotes if escape
+	private void utf8(String value, boolean escape) {
+		int length = value.length();
+		ensure(length*3);
+		for(int i=0;i<length;i++) {
+			char c = value.charAt(i);
+			if(c<0x80) {
+				if(escape && (c=='"' || c=='\\')) {
+					bytes[count++] = '\\';
+					bytes[count++] = (byte) c;
+				} else if(escape && c<0x20) {
+					ensure(6+(length-i)*3);
+					bytes[count++] = '\\';
+					bytes[count++] = 'u';
+					bytes[count++] = '0';
+					bytes[count++] = '0';
+					bytes[count++] = HEX[c>>4];
+					bytes[count++] = HEX[c&0xf];
+				} else {
+					bytes[count++] = (byte) c;
+				}
+			} else if(c<0x800) {
+				bytes[count++] = (byte) (0xc0|c>>6);
+				bytes[count++] = (byte) (0x80|c&0x3f);
+			} else if(Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(value.charAt(i+1))) {
+				int code = Character.toCodePoint(c, value.charAt(++i));
+				bytes[count++] = (byte) (0xf0|code>>18);
+				bytes[count++] = (byte) (0x80|code>>12&0x3f);
+				bytes[count++] = (byte) (0x80|code>>6&0x3f);
+				bytes[count++] = (byte) (0x80|code&0x3f);
+			} else if(Character.isSurrogate(c)) {
+				bytes[count++] = '?';
+			} else {
+				bytes[count++] = (byte) (0xe0|c>>12);
+				bytes[count++] = (byte) (0x80|c>>6&0x3f);
+				bytes[count++] = (byte) (0x80|c&0x3f);
+			}
+		}
+	}
+
+	private void number(long value) {
+		if(value==Long.MIN_VALUE) {
+			raw(LONG_MIN);
+			return;
+		}
+		ensure(20);
+		if(value<0) {
+			bytes[count++] = '-';
+			value = -value;
+		}
+		int start = count;
+		do {
+			bytes[count++] = (byte) ('0'+value%10);
+			value /= 10;
+		} while(value>0);
+		// the digits went in backwards
+		for(int i=start, j=count-1;i<j;i++, j--) {
+			byte digit = bytes[i];
+			bytes[i] = bytes[j];
+			bytes[j] = digit;
+		}
+	}
+
+	// ASCII only
+	private void raw(String ascii) {
+		int length = ascii.length();
+		ensure(length);
+		for(int i=0;i<length;i++) bytes[count++] = (byte) ascii.charAt(i);
+	}
+
+	private void raw(byte[] ascii) {
+		ensure(ascii.length);
+		System.arraycopy(ascii, 0, bytes, count, ascii.length);
+		count += ascii.length;
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		bytes[count++] = b;
+	}
+
+	private void ensure(int more) {
+		if(count+more>bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, count+more));
+	}
+}
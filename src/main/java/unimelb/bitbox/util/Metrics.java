@@ -0,0 +1,60 @@
+package unimelb.bitbox.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and gauges describing what the peer is doing, such as the block size
+ * chosen for each peer. Peers log a snapshot every sync interval.
+ */
+public class Metrics {
+	// sorted, so that related names are listed together
+	private static final ConcurrentSkipListMap<String,AtomicLong> values = new ConcurrentSkipListMap<String,AtomicLong>();
+
+	/**
+	 * Set a gauge.
+	 */
+	public static void set(String name, long value) {
+		value(name).set(value);
+	}
+
+	/**
+	 * Add to a counter.
+	 */
+	public static void add(String name, long delta) {
+		value(name).addAndGet(delta);
+	}
+
+	/**
+	 * @return The current value, 0 if it was never set.
+	 */
+	public static long get(String name) {
+		AtomicLong value = values.get(name);
+		return value==null ? 0 : value.get();
+	}
+
+	/**
+	 * @return All current values, keyed by name.
+	 */
+	public static Document toDoc() {
+		Document doc = new Document();
+		for(Map.Entry<String,AtomicLong> entry : values.entrySet()) {
+			doc.append(entry.getKey(), entry.getValue().get());
+		}
+		return doc;
+	}
+
+	private static AtomicLong value(String name) {
+		AtomicLong value = values.get(name);
+		if(value==null) {
+			AtomicLong created = new AtomicLong();
+			value = values.putIfAbsent(name, created);
+			if(value==null) value = created;
+		}
+		return value;
+	}
+
+	private Metrics() {
+	}
+}
@@ -0,0 +1,194 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+import unimelb.bitbox.util.FileSystemManager.FileDescriptor;
+
+/**
+ * The file system manager's view of the share directory, as a tree with one node per
+ * path component. Each component name is stored once, in its node, rather than once per
+ * full path name that contains it, and a path name relative to the share directory is
+ * looked up by walking the tree one component at a time, so no full path strings are
+ * built or kept. A full path name is only built when a file actually has to be opened.
+ * <br/>
+ * Nodes hold the watched state of their path: the {@link FileDescriptor} of a watched file,
+ * or whether it is a watched directory. Nodes that hold nothing are pruned.
+ * Not thread safe, the file system manager guards it.
+ */
+class PathTable {
+	private static final char SEPARATOR = File.separatorChar;
+
+	/**
+	 * A single path component.
+	 */
+	static final class Node {
+		final String name;
+		final Node parent;
+		// created on first child, most nodes are files and never have any
+		private HashMap<String,Node> children;
+		/**
+		 * The descriptor if this is a watched file, otherwise null.
+		 */
+		FileDescriptor file;
+		/**
+		 * True if this is a watched directory.
+		 */
+		boolean directory;
+		/**
+		 * True while a file loader is writing this file.
+		 */
+		boolean loading;
+		/**
+		 * The next watched file with the same content hash, see {@link FileSystemManager}.
+		 */
+		Node nextSameHash;
+		/**
+		 * The last scan that saw this path on disk, see {@link FileSystemManager}.
+		 */
+		int scanned;
+
+		private Node(String name, Node parent) {
+			this.name=name;
+			this.parent=parent;
+		}
+
+		Node child(String name) {
+			return children==null ? null : children.get(name);
+		}
+
+		Collection<Node> children() {
+			if(children==null) return Collections.emptyList();
+			return children.values();
+		}
+
+		/**
+		 * @return The path name relative to the share directory, using the system separator.
+		 */
+		String relativePath() {
+			if(parent==null) return "";
+			StringBuilder sb = new StringBuilder();
+			appendPath(sb);
+			return sb.toString();
+		}
+
+		/**
+		 * @param root The share directory, as given to the file system manager.
+		 * @return The full path name, including the share directory.
+		 */
+		String path(String root) {
+			StringBuilder sb = new StringBuilder(root);
+			if(parent!=null) {
+				sb.append(SEPARATOR);
+				appendPath(sb);
+			}
+			return sb.toString();
+		}
+
+		private void appendPath(StringBuilder sb) {
+			if(parent.parent!=null) {
+				parent.appendPath(sb);
+				sb.append(SEPARATOR);
+			}
+			sb.append(name);
+		}
+
+		private boolean isEmpty() {
+			return file==null && !directory && !loading && (children==null || children.isEmpty());
+		}
+	}
+
+	private final Node root = new Node("", null);
+
+	Node root() {
+		return root;
+	}
+
+	/**
+	 * @param pathName A path name relative to the share directory, using the system separator.
+	 * @return The node for the path name, or null if there is none.
+	 */
+	Node find(String pathName) {
+		Node node = root;
+		int start = 0;
+		int length = pathName.length();
+		while(node!=null && start<length) {
+			int end = pathName.indexOf(SEPARATOR, start);
+			if(end<0) end = length;
+			if(end>start) node = node.child(pathName.substring(start, end));
+			start = end+1;
+		}
+		return node;
+	}
+
+	/**
+	 * @return The child of the parent with the given name, created if needed.
+	 */
+	Node getOrCreate(Node parent, String name) {
+		if(parent.children==null) parent.children = new HashMap<String,Node>(4);
+		Node node = parent.children.get(name);
+		if(node==null) {
+			node = new Node(name, parent);
+			parent.children.put(node.name, node);
+		}
+		return node;
+	}
+
+	/**
+	 * @param pathName A path name relative to the share directory, using the system separator.
+	 * @return The node for the path name, created along with any missing parents if needed.
+	 */
+	Node getOrCreate(String pathName) {
+		Node node = root;
+		int start = 0;
+		int length = pathName.length();
+		while(start<length) {
+			int end = pathName.indexOf(SEPARATOR, start);
+			if(end<0) end = length;
+			if(end>start) node = getOrCreate(node, pathName.substring(start, end));
+			start = end+1;
+		}
+		return node;
+	}
+
+	/**
+	 * Remove the node, and any parents, that no longer hold anything.
+	 */
+	void prune(Node node) {
+		while(node!=null && node.parent!=null && node.isEmpty()) {
+			node.parent.children.remove(node.name);
+			if(node.parent.children.isEmpty()) node.parent.children=null;
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * @param from The node to start at.
+	 * @return The node and all nodes below it, each parent before its children.
+	 */
+	ArrayList<Node> subtree(Node from) {
+		return collect(from, node -> true);
+	}
+
+	/**
+	 * @param from The node to start at.
+	 * @param filter The nodes to return.
+	 * @return The matching nodes out of the node and all nodes below it, each parent before its children.
+	 */
+	ArrayList<Node> collect(Node from, Predicate<Node> filter) {
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		stack.push(from);
+		while(!stack.isEmpty()) {
+			Node node = stack.pop();
+			if(filter.test(node)) nodes.add(node);
+			for(Node child : node.children()) stack.push(child);
+		}
+		return nodes;
+	}
+}
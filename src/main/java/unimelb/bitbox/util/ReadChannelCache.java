@@ -0,0 +1,136 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Read only channels to the files being sent, kept open from one FILE_BYTES_REQUEST to the
+ * next rather than opened, locked and closed for every block. At most a fixed number are
+ * open, the least recently used is closed first.
+ * <br/>
+ * A channel is only handed out while the file on disk still has the size and last modified
+ * time of the content it is asked for, which is checked with one stat rather than by hashing
+ * the file. Reads are positional and need no lock, any number of threads may read a channel
+ * at once. A channel is closed once it is evicted and no thread is reading it.
+ */
+class ReadChannelCache {
+	private static Logger log = Logger.getLogger(ReadChannelCache.class.getName());
+
+	/**
+	 * An open channel, see {@link ReadChannelCache#acquire(File, long, long)}.
+	 */
+	static class Entry {
+		final FileChannel channel;
+		final String path;
+		final long size;
+		final long lastModified;
+		// threads reading, guarded by the cache
+		private int users;
+		private boolean evicted;
+
+		private Entry(FileChannel channel, String path, long size, long lastModified) {
+			this.channel=channel;
+			this.path=path;
+			this.size=size;
+			this.lastModified=lastModified;
+		}
+	}
+
+	private final int capacity;
+	// in order of use, least recent first
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+	ReadChannelCache(int capacity) {
+		this.capacity=Math.max(1, capacity);
+	}
+
+	/**
+	 * @param file The file to read.
+	 * @param size The size of the content to read.
+	 * @param lastModified The last modified time of the content to read.
+	 * @return An open channel to the file, which must be given back with {@link #release(Entry)},
+	 * or null if the file no longer has that size and time, or cannot be opened.
+	 */
+	Entry acquire(File file, long size, long lastModified) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+		if(attributes.size()!=size || attributes.lastModifiedTime().toMillis()!=lastModified) return null;
+		String path = file.getPath();
+		synchronized(this) {
+			Entry entry = entries.get(path);
+			if(entry!=null && entry.size==size && entry.lastModified==lastModified) {
+				entry.users++;
+				Metrics.add("readChannelHits", 1);
+				return entry;
+			}
+			if(entry!=null) evict(entry);
+		}
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return null;
+		}
+		Entry entry = new Entry(channel, path, size, lastModified);
+		synchronized(this) {
+			Metrics.add("readChannelMisses", 1);
+			Entry raced = entries.get(path);
+			if(raced!=null) evict(raced);
+			entry.users++;
+			entries.put(path, entry);
+			Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+			while(entries.size()>capacity && it.hasNext()) {
+				Entry eldest = it.next().getValue();
+				it.remove();
+				eldest.evicted = true;
+				closeIfUnused(eldest);
+			}
+			Metrics.set("readChannelsOpen", entries.size());
+		}
+		return entry;
+	}
+
+	/**
+	 * Give back a channel from {@link #acquire(File, long, long)}.
+	 */
+	synchronized void release(Entry entry) {
+		entry.users--;
+		closeIfUnused(entry);
+	}
+
+	/**
+	 * Close the channel to a file that is about to be deleted or replaced, once it is not being read.
+	 */
+	synchronized void invalidate(String path) {
+		Entry entry = entries.get(path);
+		if(entry!=null) evict(entry);
+	}
+
+	private void evict(Entry entry) {
+		entries.remove(entry.path);
+		entry.evicted = true;
+		closeIfUnused(entry);
+		Metrics.set("readChannelsOpen", entries.size());
+	}
+
+	private void closeIfUnused(Entry entry) {
+		if(!entry.evicted || entry.users>0) return;
+		try {
+			entry.channel.close();
+		} catch (IOException e) {
+			log.warning("could not close "+entry.path+": "+e.getMessage());
+		}
+	}
+}
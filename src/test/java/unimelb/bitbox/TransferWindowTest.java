@@ -0,0 +1,185 @@
+package unimelb.bitbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Metrics;
+
+/**
+ * The window must ask for every part of a file exactly once, however the blocks arrive, and
+ * ask again for whatever a short or lost block left out.
+ */
+class TransferWindowTest {
+	// windows and block sizes are kept per peer, so every test has a peer of its own
+	private static int nextPort = 40000;
+
+	@Test
+	void requestsCoverTheFileWhateverOrderBlocksArriveIn() {
+		HostPort peer = peer();
+		TransferWindow window = TransferWindow.of(peer);
+		long block = BlockSizeTuner.of(peer).blockSize();
+		long fileSize = 10*block+10;
+		TreeMap<Long,Long> requested = new TreeMap<Long,Long>();
+		ArrayList<Long> outstanding = new ArrayList<Long>();
+		add(window.start(descriptor(fileSize), "order.bin"), requested, outstanding);
+		assertEquals(Integer.parseInt(Configuration.getConfigurationValue("transferWindow", "4")), outstanding.size());
+		assertEquals(Long.valueOf(0), outstanding.get(0));
+
+		boolean complete = false;
+		while (!outstanding.isEmpty()) {
+			// the newest request is answered first
+			long position = outstanding.remove(outstanding.size()-1);
+			assertFalse(complete);
+			complete = window.received("order.bin", position, requested.get(position));
+			if (!complete) {
+				add(window.fill("order.bin"), requested, outstanding);
+			}
+		}
+		assertTrue(complete);
+		assertCovered(requested, fileSize);
+	}
+
+	@Test
+	void blocksNotOutstandingAreIgnored() {
+		HostPort peer = peer();
+		TransferWindow window = TransferWindow.of(peer);
+		long block = BlockSizeTuner.of(peer).blockSize();
+		window.start(descriptor(100*block), "ignored.bin");
+		assertFalse(window.received("ignored.bin", 1, block));
+		assertFalse(window.received("other.bin", 0, block));
+		assertFalse(window.received("ignored.bin", 0, block));
+		// answered already
+		assertFalse(window.received("ignored.bin", 0, block));
+	}
+
+	@Test
+	void restOfAShortBlockIsRequestedAgainFirst() {
+		HostPort peer = peer();
+		TransferWindow window = TransferWindow.of(peer);
+		long block = BlockSizeTuner.of(peer).blockSize();
+		window.start(descriptor(100*block), "short.bin");
+		assertFalse(window.received("short.bin", 0, block/2));
+		ArrayList<Document> requests = parse(window.fill("short.bin"));
+		assertEquals(1, requests.size());
+		assertEquals(block/2, requests.get(0).getLong("position"));
+		assertEquals(block-block/2, requests.get(0).getLong("length"));
+	}
+
+	@Test
+	void onlyTheMissingRangesOfAResumedFileAreRequested() {
+		HostPort peer = peer();
+		TransferWindow window = TransferWindow.of(peer);
+		long block = BlockSizeTuner.of(peer).blockSize();
+		TreeMap<Long,Long> ranges = new TreeMap<Long,Long>();
+		ranges.put(block/2, 10L);
+		ranges.put(5*block, block+1);
+		ArrayList<Document> requests = parse(window.start(descriptor(10*block), "resumed.bin", ranges));
+		assertEquals(3, requests.size());
+		assertEquals(block/2, requests.get(0).getLong("position"));
+		assertEquals(10, requests.get(0).getLong("length"));
+		assertEquals(5*block, requests.get(1).getLong("position"));
+		assertEquals(block, requests.get(1).getLong("length"));
+		assertEquals(6*block, requests.get(2).getLong("position"));
+		assertEquals(1, requests.get(2).getLong("length"));
+		assertTrue(window.start(descriptor(10*block), "nothing.bin", new TreeMap<Long,Long>()).isEmpty());
+	}
+
+	@Test
+	void lostBlockShrinksTheWindowAndTheBlock() {
+		HostPort peer = peer();
+		TransferWindow window = TransferWindow.of(peer);
+		String metric = "transferWindow "+Configuration.getConfigurationValue("mode", "tcp")+" "+peer;
+		long block = BlockSizeTuner.of(peer).blockSize();
+		ArrayList<Document> requests = parse(window.start(descriptor(100*block), "lost.bin"));
+		long before = Metrics.get(metric);
+		assertEquals(requests.size(), before);
+
+		// not yet due
+		assertNull(window.timedOut("lost.bin", 0, Long.MAX_VALUE));
+		Document again = Document.parse(window.timedOut("lost.bin", 0, 0));
+		assertEquals(Math.max(1, before/2), Metrics.get(metric));
+		long smaller = BlockSizeTuner.of(peer).blockSize();
+		assertTrue(smaller<=block);
+		assertEquals(0, again.getLong("position"));
+		assertEquals(smaller, again.getLong("length"));
+
+		// the part the smaller block leaves out waits for room in the window
+		assertFalse(window.received("lost.bin", 0, smaller));
+		for (int i = 1; i < requests.size(); i++) {
+			assertFalse(window.received("lost.bin", requests.get(i).getLong("position"), block));
+		}
+		requests = parse(window.fill("lost.bin"));
+		assertTrue(requests.size()<=Metrics.get(metric));
+		if (smaller<block) {
+			assertEquals(smaller, requests.get(0).getLong("position"));
+			assertEquals(block-smaller, requests.get(0).getLong("length"));
+		}
+	}
+
+	@Test
+	void blocksLongerThanTheirRequestAreRefused() {
+		HostPort peer = peer();
+		TransferWindow window = TransferWindow.of(peer);
+		long block = BlockSizeTuner.of(peer).blockSize();
+		window.start(descriptor(100*block), "long.bin");
+		assertTrue(window.accepts("long.bin", 0, block));
+		assertTrue(window.accepts("long.bin", 0, 1));
+		assertFalse(window.accepts("long.bin", 0, block+1));
+		assertFalse(window.accepts("long.bin", 0, -1));
+		// not outstanding, only as long as any block could be
+		long maximum = BlockSizeTuner.of(peer).maximumBlockSize();
+		assertTrue(window.accepts("other.bin", 0, maximum));
+		assertFalse(window.accepts("other.bin", 0, maximum+1));
+		assertFalse(window.accepts("long.bin", 1, Integer.MAX_VALUE));
+	}
+
+	private static synchronized HostPort peer() {
+		return new HostPort("10.0.0.1", nextPort++);
+	}
+
+	private static Document descriptor(long fileSize) {
+		Document des = new Document();
+		des.append("md5", "d41d8cd98f00b204e9800998ecf8427e");
+		des.append("lastModified", 0L);
+		des.append("fileSize", fileSize);
+		return des;
+	}
+
+	private static ArrayList<Document> parse(ArrayList<String> requests) {
+		ArrayList<Document> parsed = new ArrayList<Document>();
+		for (String request : requests) {
+			Document doc = Document.parse(request);
+			assertEquals("FILE_BYTES_REQUEST", doc.getString("command"));
+			parsed.add(doc);
+		}
+		return parsed;
+	}
+
+	private static void add(ArrayList<String> requests, TreeMap<Long,Long> requested, ArrayList<Long> outstanding) {
+		for (Document request : parse(requests)) {
+			long position = request.getLong("position");
+			assertNull(requested.put(position, request.getLong("length")), "requested twice at "+position);
+			outstanding.add(position);
+		}
+	}
+
+	// every byte requested once, nothing past the end
+	private static void assertCovered(TreeMap<Long,Long> requested, long fileSize) {
+		long end = 0;
+		for (Long position : requested.keySet()) {
+			assertEquals(end, (long) position);
+			end += requested.get(position);
+		}
+		assertEquals(fileSize, end);
+	}
+}
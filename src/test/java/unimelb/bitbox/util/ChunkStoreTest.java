@@ -0,0 +1,112 @@
+package unimelb.bitbox.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Peers only find each other's chunks if they split content at the same places, so the
+ * boundaries must not change from one version to the next, nor with how the file is read.
+ */
+class ChunkStoreTest {
+	// larger than one read, so boundaries are also found across reads
+	private static final int SIZE = 3*1024*1024;
+
+	@Test
+	void boundariesAreFixed() throws Exception {
+		ChunkStore.Chunks chunks = chunk(random(SIZE, 42));
+		// taken from the gear table seeded in ChunkStore, any change to it or to the mask breaks this
+		assertEquals(308, chunks.lengths.length);
+		assertArrayEquals(new int[] {11854, 9610, 5002, 14475, 3881, 21537, 13265, 7931}, Arrays.copyOf(chunks.lengths, 8));
+		assertEquals(-1113930155, Arrays.hashCode(chunks.lengths));
+		assertEquals(-3697235259857361029L, chunks.hashes[0]);
+		assertEquals(-1968815005, Arrays.hashCode(chunks.hashes));
+	}
+
+	@Test
+	void chunksCoverTheFileWithinTheLimits() throws Exception {
+		for (byte[] content : new byte[][] {random(SIZE, 1), new byte[SIZE], random(ChunkStore.MINIMUM_CHUNK-1, 2), new byte[0]}) {
+			ChunkStore.Chunks chunks = chunk(content);
+			long total = 0;
+			for (int i = 0; i < chunks.lengths.length; i++) {
+				assertTrue(chunks.lengths[i]<=ChunkStore.MAXIMUM_CHUNK);
+				if (i<chunks.lengths.length-1) assertTrue(chunks.lengths[i]>=ChunkStore.MINIMUM_CHUNK);
+				total += chunks.lengths[i];
+			}
+			assertEquals(content.length, total);
+		}
+	}
+
+	@Test
+	void boundariesFollowTheContent() throws Exception {
+		byte[] content = random(SIZE, 3);
+		ChunkStore.Chunks chunks = chunk(content);
+
+		// bytes inserted near the start only change the chunks around them
+		ByteBuffer inserted = ByteBuffer.allocate(SIZE+100);
+		inserted.put(content, 0, 5000).put(random(100, 4)).put(content, 5000, SIZE-5000);
+		assertTrue(shared(chunks, chunk(inserted.array()))>=chunks.hashes.length-3);
+
+		// a prefix splits as the whole does, up to where it ends
+		ChunkStore.Chunks prefix = chunk(Arrays.copyOf(content, SIZE/2+12345));
+		assertTrue(shared(chunks, prefix)>=prefix.hashes.length-1);
+		for (int i = 0; i < prefix.lengths.length-1; i++) assertEquals(chunks.lengths[i], prefix.lengths[i]);
+	}
+
+	@Test
+	void chunksAreFoundWhereTheyWereIndexed() throws Exception {
+		ChunkStore.Chunks chunks = ChunkStore.Chunks.decode(chunk(random(SIZE/4, 5)).encode());
+		ChunkStore store = new ChunkStore();
+		store.add("a", chunks);
+		long position = 0;
+		for (int i = 0; i < chunks.hashes.length; i++) {
+			ChunkStore.Location location = store.find(chunks.hashes[i]);
+			assertEquals("a", location.md5);
+			assertEquals(position, location.position);
+			assertEquals(chunks.lengths[i], location.length);
+			position += chunks.lengths[i];
+		}
+		store.remove("a");
+		assertNull(store.find(chunks.hashes[0]));
+		assertTrue(store.indexedContent().isEmpty());
+	}
+
+	// how many of the chunks of b are also chunks of a
+	private static int shared(ChunkStore.Chunks a, ChunkStore.Chunks b) {
+		HashSet<Long> hashes = new HashSet<Long>();
+		for (long hash : a.hashes) hashes.add(hash);
+		int count = 0;
+		for (long hash : b.hashes) {
+			if (hashes.contains(hash)) count++;
+		}
+		return count;
+	}
+
+	private static ChunkStore.Chunks chunk(byte[] content) throws IOException, NoSuchAlgorithmException {
+		Path path = Files.createTempFile("chunks", ".bin");
+		Files.write(path, content);
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE)) {
+			return ChunkStore.chunk(file);
+		}
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+}
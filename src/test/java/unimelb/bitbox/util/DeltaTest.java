@@ -0,0 +1,136 @@
+package unimelb.bitbox.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The receiver builds the new content from the sender's instructions, so the instructions
+ * must build exactly the new content from the old copy, whatever the edit.
+ */
+class DeltaTest {
+	private static final int SIZE = 300*1024;
+
+	@Test
+	void identicalContentIsCopied() throws Exception {
+		byte[] old = random(SIZE, 1);
+		ArrayList<Delta.Instruction> instructions = roundTrip(old, old);
+		long blockSize = Delta.blockSize(SIZE);
+		assertEquals(0, instructions.get(0).position);
+		assertEquals(0, instructions.get(0).source);
+		assertEquals(SIZE/blockSize*blockSize, instructions.get(0).length);
+		assertEquals(SIZE%blockSize, literalBytes(instructions));
+	}
+
+	@Test
+	void editsOnlySendWhatChanged() throws Exception {
+		byte[] old = random(SIZE, 2);
+		long blockSize = Delta.blockSize(SIZE);
+
+		byte[] inserted = splice(old, SIZE/2, 0, random(100, 3));
+		assertTrue(literalBytes(roundTrip(old, inserted))<=2*blockSize+100);
+
+		byte[] prepended = splice(old, 0, 0, random(7, 4));
+		assertTrue(literalBytes(roundTrip(old, prepended))<=2*blockSize+7);
+
+		byte[] removed = splice(old, 12345, 5000, new byte[0]);
+		assertTrue(literalBytes(roundTrip(old, removed))<=3*blockSize);
+
+		byte[] changed = old.clone();
+		changed[SIZE-1] ^= 1;
+		changed[100] ^= 1;
+		assertTrue(literalBytes(roundTrip(old, changed))<=3*blockSize);
+
+		// blocks moved around are found wherever they are
+		byte[] swapped = splice(splice(old, 0, SIZE/2, new byte[0]), SIZE-SIZE/2, 0, Arrays.copyOf(old, SIZE/2));
+		assertTrue(literalBytes(roundTrip(old, swapped))<=3*blockSize);
+	}
+
+	@Test
+	void anyContentIsRebuilt() throws Exception {
+		byte[] old = random(SIZE, 5);
+		roundTrip(old, random(SIZE, 6));
+		roundTrip(old, new byte[0]);
+		roundTrip(new byte[0], old);
+		roundTrip(old, Arrays.copyOf(old, 1000));
+		// the same block many times over, and runs of one byte, which roll to the same checksums
+		byte[] repeated = new byte[SIZE];
+		for (int i = 0; i < SIZE; i++) repeated[i] = old[i%(int) Delta.blockSize(SIZE)];
+		roundTrip(old, repeated);
+		roundTrip(repeated, old);
+		roundTrip(new byte[SIZE], splice(new byte[SIZE], 777, 0, new byte[] {1}));
+	}
+
+	/**
+	 * Sign old, match new against it, send both over as JSON and build the new content back,
+	 * checking the instructions cover the new content in order.
+	 */
+	private static ArrayList<Delta.Instruction> roundTrip(byte[] old, byte[] content) throws IOException, NoSuchAlgorithmException {
+		Delta.Signatures signatures;
+		try (FileChannel file = channel(old)) {
+			signatures = Delta.sign(file, Delta.blockSize(content.length));
+		}
+		signatures = Delta.Signatures.fromDoc(Document.parse(signatures.toDoc().toJson()));
+		ArrayList<Delta.Instruction> instructions;
+		try (FileChannel file = channel(content)) {
+			instructions = Delta.match(file, signatures);
+		}
+		byte[] rebuilt = new byte[content.length];
+		long position = 0;
+		for (Delta.Instruction sent : instructions) {
+			Delta.Instruction instruction = Delta.Instruction.fromDoc(Document.parse(sent.toDoc().toJson()));
+			assertEquals(position, instruction.position);
+			assertTrue(instruction.length>0);
+			byte[] from = instruction.isLiteral() ? content : old;
+			long source = instruction.isLiteral() ? instruction.position : instruction.source;
+			System.arraycopy(from, (int) source, rebuilt, (int) instruction.position, (int) instruction.length);
+			position += instruction.length;
+		}
+		assertEquals(content.length, position);
+		assertArrayEquals(content, rebuilt);
+		long literal = 0;
+		for (long length : Delta.literals(instructions).values()) literal += length;
+		assertEquals(literalBytes(instructions), literal);
+		return instructions;
+	}
+
+	private static long literalBytes(ArrayList<Delta.Instruction> instructions) {
+		long literal = 0;
+		for (Delta.Instruction instruction : instructions) {
+			if (instruction.isLiteral()) literal += instruction.length;
+		}
+		return literal;
+	}
+
+	private static FileChannel channel(byte[] content) throws IOException {
+		Path path = Files.createTempFile("delta", ".bin");
+		Files.write(path, content);
+		return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	// content with length bytes at position replaced by insert
+	private static byte[] splice(byte[] content, int position, int length, byte[] insert) {
+		ByteBuffer spliced = ByteBuffer.allocate(content.length-length+insert.length);
+		spliced.put(content, 0, position).put(insert).put(content, position+length, content.length-position-length);
+		return spliced.array();
+	}
+}
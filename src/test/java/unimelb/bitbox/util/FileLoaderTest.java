@@ -0,0 +1,183 @@
+package unimelb.bitbox.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A loader records the parts of a file received so far, in whatever order and overlap they
+ * arrive, and picks up from its state file after a restart, so only what is missing is
+ * requested again.
+ */
+class FileLoaderTest {
+	private static final int SIZE = 1000;
+
+	private static File root;
+	private static FileSystemManager manager;
+
+	@BeforeAll
+	static void startManager() throws IOException, NoSuchAlgorithmException {
+		// the manager keeps its index beside the share, so both go in a directory of their own
+		root = new File(Files.createTempDirectory("loader").toFile(), "share");
+		root.mkdir();
+		manager = new FileSystemManager(root.getPath(), event -> {});
+	}
+
+	@AfterAll
+	static void stopManager() {
+		manager.interrupt();
+	}
+
+	@Test
+	void overlappingAdjacentAndOutOfOrderBlocksMerge() throws Exception {
+		byte[] content = random(SIZE, 1);
+		String md5 = md5(content);
+		assertTrue(manager.createFileLoader("merge.bin", md5, SIZE, 0));
+		write("merge.bin", content, 500, 100);
+		write("merge.bin", content, 100, 100);
+		write("merge.bin", content, 200, 100);
+		write("merge.bin", content, 150, 200);
+		write("merge.bin", content, 100, 50);
+		assertEquals(ranges(0, 100, 350, 150, 600, 400), manager.missingRanges("merge.bin"));
+
+		write("merge.bin", content, 600, 400);
+		write("merge.bin", content, 0, 100);
+		write("merge.bin", content, 350, 150);
+		assertEquals(ranges(), manager.missingRanges("merge.bin"));
+		// blocks hashed out of order still make up the whole content
+		assertTrue(manager.checkWriteComplete("merge.bin"));
+		assertArrayEquals(content, Files.readAllBytes(new File(root, "merge.bin").toPath()));
+	}
+
+	@Test
+	void blocksPastTheEndAreRefused() throws Exception {
+		byte[] content = random(SIZE, 2);
+		assertTrue(manager.createFileLoader("past.bin", md5(content), SIZE, 0));
+		try {
+			assertThrows(IOException.class, () -> write("past.bin", content, SIZE-50, 100, 100));
+			assertThrows(IOException.class, () -> write("past.bin", content, SIZE+1, 0, 0));
+			assertEquals(ranges(0, SIZE), manager.missingRanges("past.bin"));
+		} finally {
+			manager.cancelFileLoader("past.bin");
+		}
+	}
+
+	@Test
+	void resumedLoaderOnlyMissesWhatItHasNot() throws Exception {
+		byte[] content = random(SIZE, 3);
+		String md5 = md5(content);
+		loaderFile("resume.bin", content, 400);
+		stateFile("resume.bin", md5, SIZE, 0, 100, 200, 200);
+		assertTrue(manager.createFileLoader("resume.bin", md5, SIZE, 0));
+		assertEquals(ranges(100, 100, 400, 600), manager.missingRanges("resume.bin"));
+
+		write("resume.bin", content, 100, 100);
+		write("resume.bin", content, 400, 600);
+		// the bytes from before the restart are hashed from the file
+		assertTrue(manager.checkWriteComplete("resume.bin"));
+		assertArrayEquals(content, Files.readAllBytes(new File(root, "resume.bin").toPath()));
+	}
+
+	@Test
+	void rangesPastTheEndOfTheLoaderFileAreReceivedAgain() throws Exception {
+		byte[] content = random(SIZE, 4);
+		String md5 = md5(content);
+		// the state was saved, but the last bytes never reached the disk
+		loaderFile("crash.bin", content, 300);
+		stateFile("crash.bin", md5, SIZE, 0, 100, 250, 100);
+		assertTrue(manager.createFileLoader("crash.bin", md5, SIZE, 0));
+		try {
+			assertEquals(ranges(100, 900), manager.missingRanges("crash.bin"));
+		} finally {
+			manager.cancelFileLoader("crash.bin");
+		}
+	}
+
+	@Test
+	void stateOfOtherContentStartsOver() throws Exception {
+		byte[] content = random(SIZE, 5);
+		loaderFile("other.bin", content, SIZE);
+		stateFile("other.bin", md5(random(SIZE, 6)), SIZE, 0, SIZE);
+		assertTrue(manager.createFileLoader("other.bin", md5(content), SIZE, 0));
+		try {
+			assertEquals(ranges(0, SIZE), manager.missingRanges("other.bin"));
+		} finally {
+			manager.cancelFileLoader("other.bin");
+		}
+	}
+
+	private static void write(String pathName, byte[] content, int position, int length) throws IOException {
+		write(pathName, content, position, position, length);
+	}
+
+	private static void write(String pathName, byte[] content, long position, int from, int length) throws IOException {
+		byte[] block = new byte[length];
+		System.arraycopy(content, from, block, 0, Math.min(length, content.length-from));
+		assertTrue(manager.writeFile(pathName, ByteBuffer.wrap(block), position));
+	}
+
+	// what a transfer interrupted after the first bytes of the content leaves behind
+	private static void loaderFile(String pathName, byte[] content, int length) throws IOException {
+		byte[] written = new byte[length];
+		System.arraycopy(content, 0, written, 0, length);
+		Files.write(new File(root, pathName+manager.loadingSuffix).toPath(), written);
+	}
+
+	private static void stateFile(String pathName, String md5, long fileSize, long... ranges) throws IOException {
+		ArrayList<Document> received = new ArrayList<Document>();
+		for (int i = 0; i < ranges.length; i += 2) {
+			Document range = new Document();
+			range.append("position", ranges[i]);
+			range.append("length", ranges[i+1]);
+			received.add(range);
+		}
+		Document state = new Document();
+		state.append("md5", md5);
+		state.append("fileSize", fileSize);
+		state.append("lastModified", 0L);
+		state.append("received", received);
+		Files.write(new File(root, pathName+manager.loadingSuffix+FileSystemManager.STATE_SUFFIX).toPath(),
+				state.toJson().getBytes(StandardCharsets.UTF_8));
+	}
+
+	// position to length
+	private static TreeMap<Long,Long> ranges(long... ranges) {
+		TreeMap<Long,Long> map = new TreeMap<Long,Long>();
+		for (int i = 0; i < ranges.length; i += 2) {
+			map.put(ranges[i], ranges[i+1]);
+		}
+		return map;
+	}
+
+	private static String md5(byte[] content) throws IOException, NoSuchAlgorithmException {
+		File file = Files.createTempFile("loader", ".bin").toFile();
+		try {
+			Files.write(file.toPath(), content);
+			// as the manager hashes it
+			return ContentHash.forName(Configuration.getConfigurationValue("hashAlgorithm", ContentHash.MD5)).hash(file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+}
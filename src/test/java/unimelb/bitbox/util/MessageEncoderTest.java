@@ -0,0 +1,184 @@
+package unimelb.bitbox.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import unimelb.bitbox.util.FileSystemManager.EVENT;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+/**
+ * The encoder must write messages that a peer parses to the same thing JSONObject wrote
+ * before it, and must escape strings exactly as JSON requires.
+ */
+class MessageEncoderTest {
+	// what path names and messages may hold
+	private static final String[] STRINGS = {
+		"",
+		"plain.txt",
+		"dir/sub/file name.txt",
+		"quote\"d",
+		"back\\slash\\",
+		"tab\tnew\nline\rreturn\bback\ffeed",
+		"control \u0000\u0001\u001f",
+		"delete \u007f and \u0080\u009f",
+		"café über",
+		"文件名.txt",
+		"こんにちは 한국어",
+		"emoji 😀📁.png",
+		"\u2028 line separator",
+	};
+
+	private static File root;
+	private static FileSystemManager manager;
+
+	@BeforeAll
+	static void startManager() throws IOException, NoSuchAlgorithmException {
+		// the manager keeps its index beside the share, so both go in a directory of their own
+		root = new File(Files.createTempDirectory("encoder").toFile(), "share");
+		root.mkdir();
+		manager = new FileSystemManager(root.getPath(), event -> {});
+	}
+
+	@AfterAll
+	static void stopManager() {
+		manager.interrupt();
+	}
+
+	@Test
+	void documentsParseAsJsonObjectWroteThem() throws ParseException {
+		for (String s : STRINGS) {
+			Document descriptor = new Document();
+			descriptor.append("md5", "d41d8cd98f00b204e9800998ecf8427e");
+			descriptor.append("lastModified", 1557000000000L);
+			descriptor.append("fileSize", 0L);
+			ArrayList<Document> peers = new ArrayList<Document>();
+			peers.add(new HostPort(s, 8111).toDoc());
+			peers.add(new HostPort("10.0.0.1", 8112).toDoc());
+			Document message = new Document();
+			message.append("command", "FILE_BYTES_RESPONSE");
+			message.append("fileDescriptor", descriptor);
+			message.append("pathName", s);
+			message.append("position", Long.MAX_VALUE);
+			message.append("length", -42L);
+			message.append("minimum", Long.MIN_VALUE);
+			message.append("status", true);
+			message.append("compressed", false);
+			message.append("message", (String) null);
+			message.append("peers", peers);
+
+			assertEquals(parse(message.toJson()), parse(new String(encode(message), StandardCharsets.UTF_8)), s);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	void eventsParseAsTheRequestsJsonObjectWrote() throws ParseException {
+		for (String s : STRINGS) {
+			String name = s.replace('/', '_').replace('\u0000', '_');
+			FileSystemEvent file = manager.new FileSystemEvent(root.getPath(), name, EVENT.FILE_MODIFY,
+					manager.new FileDescriptor(1557000000000L, "d41d8cd98f00b204e9800998ecf8427e", 1234567L));
+			JSONObject descriptor = new JSONObject();
+			descriptor.put("md5", file.fileDescriptor.md5);
+			descriptor.put("lastModified", file.fileDescriptor.lastModified);
+			descriptor.put("fileSize", file.fileDescriptor.fileSize);
+			JSONObject expected = new JSONObject();
+			expected.put("command", "FILE_MODIFY_REQUEST");
+			expected.put("fileDescriptor", descriptor);
+			expected.put("pathName", file.pathName);
+			assertEquals(parse(expected.toJSONString()), parse(MessageEncoder.toJson(file)), name);
+
+			FileSystemEvent directory = manager.new FileSystemEvent(root.getPath(), name, EVENT.DIRECTORY_CREATE);
+			expected = new JSONObject();
+			expected.put("command", "DIRECTORY_CREATE_REQUEST");
+			expected.put("pathName", directory.pathName);
+			assertEquals(parse(expected.toJSONString()), parse(MessageEncoder.toJson(directory)), name);
+		}
+	}
+
+	@Test
+	void stringsAreEscaped() {
+		assertEquals("{\"s\":\"a\\\"b\"}\n", encodeString("a\"b"));
+		assertEquals("{\"s\":\"a\\\\b\"}\n", encodeString("a\\b"));
+		assertEquals("{\"s\":\"\\u000a\\u0009\\u0000\\u001f\"}\n", encodeString("\n\t\u0000\u001f"));
+		// nothing else needs escaping inside quotes
+		assertEquals("{\"s\":\"a/b \u007f\"}\n", encodeString("a/b \u007f"));
+	}
+
+	@Test
+	void stringsAreUtf8() {
+		for (String s : new String[] {"café", "文件", "😀", "\ud83d lone", "lone \ude00"}) {
+			Document message = new Document();
+			message.append("s", s);
+			// lone surrogates become '?', as String.getBytes makes them
+			assertArrayEquals(("{\"s\":\""+s+"\"}\n").getBytes(StandardCharsets.UTF_8), encode(message), s);
+		}
+		assertArrayEquals(new byte[] {'{', '"', 's', '"', ':', '"', (byte) 0xf0, (byte) 0x9f, (byte) 0x98, (byte) 0x80, '"', '}', '\n'},
+				encode(single("😀")));
+	}
+
+	@Test
+	void encoderStartsAgainAfterEachWrite() throws IOException {
+		MessageEncoder encoder = new MessageEncoder();
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 5000; i++) large.append("文\"");
+		encoder.document(single(large.toString())).message("{\"command\":\"X\"}");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.writeTo(out);
+		assertEquals(0, encoder.size());
+		encoder.message("{\"command\":\"Y\"}");
+		ByteArrayOutputStream channel = new ByteArrayOutputStream();
+		encoder.writeTo(Channels.newChannel(channel));
+		assertEquals(0, encoder.size());
+		assertEquals("{\"command\":\"Y\"}\n", new String(channel.toByteArray(), StandardCharsets.UTF_8));
+		encoder.message("{\"command\":\"Z\"}");
+		ByteBuffer buffer = ByteBuffer.allocate(encoder.size());
+		encoder.writeTo(buffer);
+		assertEquals(0, encoder.size());
+		assertEquals("{\"command\":\"Z\"}\n", new String(buffer.array(), StandardCharsets.UTF_8));
+		assertEquals(single(large.toString()).toJson()+"\n{\"command\":\"X\"}\n",
+				new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static Object parse(String json) throws ParseException {
+		return new JSONParser().parse(json);
+	}
+
+	private static Document single(String s) {
+		Document message = new Document();
+		message.append("s", s);
+		return message;
+	}
+
+	private static String encodeString(String s) {
+		return new String(encode(single(s)), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] encode(Document message) {
+		MessageEncoder encoder = new MessageEncoder();
+		encoder.document(message);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			encoder.writeTo(out);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return out.toByteArray();
+	}
+}